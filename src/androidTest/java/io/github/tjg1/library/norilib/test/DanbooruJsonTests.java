@@ -0,0 +1,60 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.Danbooru;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests for the Danbooru 2.x API, using JSON responses.
+ */
+public class DanbooruJsonTests extends SearchClientTestCase {
+
+  /** Make sure the response format is retained by the client's settings. */
+  public void testResponseFormatSetting() throws Throwable {
+    final SearchClient client = createSearchClient();
+    assertThat(client.getSettings().getResponseFormat())
+        .isEqualTo(SearchClient.Settings.ResponseFormat.JSON);
+  }
+
+  /** Make sure settings without a response format default to XML. */
+  public void testDefaultResponseFormat() throws Throwable {
+    final SearchClient.Settings settings = new SearchClient.Settings(
+        SearchClient.Settings.APIType.DANBOARD, "Danbooru", "https://danbooru.donmai.us",
+        null, null, null);
+    assertThat(settings.getResponseFormat()).isEqualTo(SearchClient.Settings.ResponseFormat.XML);
+  }
+
+  /** Make sure the JSON and XML responses are parsed into the same SearchResult. */
+  public void testSameResultAsXml() throws Throwable {
+    final SearchResult json = createSearchClient().search(getDefaultTag());
+    final SearchResult xml = new Danbooru(getInstrumentation().getContext(),
+        "Danbooru", "https://danbooru.donmai.us").search(getDefaultTag());
+
+    assertThat(json.getImages()).isNotEmpty();
+    // Only compare the first image, new posts could have been uploaded between the requests.
+    assertThat(json.getImages()[0].id).isEqualTo(xml.getImages()[0].id);
+    assertThat(json.getImages()[0].fileUrl).isEqualTo(xml.getImages()[0].fileUrl);
+    assertThat(json.getImages()[0].getTags()).containsOnly(xml.getImages()[0].getTags());
+    assertThat(json.getImages()[0].createdAt).isEqualTo(xml.getImages()[0].createdAt);
+  }
+
+  @Override
+  protected SearchClient createSearchClient() {
+    return new Danbooru(getInstrumentation().getContext(),
+        "Danbooru", "https://danbooru.donmai.us", null, null,
+        SearchClient.Settings.ResponseFormat.JSON);
+  }
+
+  @Override
+  protected String getDefaultTag() {
+    return "blonde_hair";
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import io.github.tjg1.library.norilib.util.DateParser;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.util.DateParser} class. */
+public class DateParserTests extends AndroidTestCase {
+
+  /** Test parsing ISO 8601 dates used by Danbooru 2.x and E621. */
+  public void testParseIso8601() throws Throwable {
+    final DateParser dateParser = new DateParser();
+    assertThat(dateParser.parse("2016-09-25T14:21:03-04:00").getTime())
+        .isEqualTo(parse("2016-09-25T14:21:03-0400", "yyyy-MM-dd'T'HH:mm:ssZ"));
+    assertThat(dateParser.parse("2016-09-25T14:21:03Z").getTime())
+        .isEqualTo(parse("2016-09-25T14:21:03+0000", "yyyy-MM-dd'T'HH:mm:ssZ"));
+    assertThat(dateParser.parse("2016-09-25T14:21:03.621-04:00").getTime())
+        .isEqualTo(parse("2016-09-25T14:21:03.621-0400", "yyyy-MM-dd'T'HH:mm:ss.SSSZ"));
+  }
+
+  /** Test parsing "yyyy-MM-dd HH:mm:ss" dates used by Danbooru 1.x. */
+  public void testParseSqlDatetime() throws Throwable {
+    final DateParser dateParser = new DateParser();
+    assertThat(dateParser.parse("2016-02-29 23:59:59").getTime())
+        .isEqualTo(parse("2016-02-29 23:59:59", "yyyy-MM-dd HH:mm:ss"));
+  }
+
+  /** Test parsing Unix timestamps used by Moebooru. */
+  public void testParseUnixTimestamp() throws Throwable {
+    final DateParser dateParser = new DateParser();
+    assertThat(dateParser.parse("1474813263").getTime()).isEqualTo(1474813263000L);
+  }
+
+  /** Test parsing dates in the format used by Gelbooru. */
+  public void testParseRuby() throws Throwable {
+    final DateParser dateParser = new DateParser();
+    assertThat(dateParser.parse("Sat Oct 15 12:34:56 -0500 2016").getTime())
+        .isEqualTo(parse("Sat Oct 15 12:34:56 -0500 2016", "EEE MMM d HH:mm:ss Z yyyy"));
+    assertThat(dateParser.parse("Sat Oct 1 02:34:56 +0000 2016").getTime())
+        .isEqualTo(parse("Sat Oct 1 02:34:56 +0000 2016", "EEE MMM d HH:mm:ss Z yyyy"));
+  }
+
+  /** Make sure empty strings return null and malformed dates throw a {@link ParseException}. */
+  public void testParseInvalidDates() throws Throwable {
+    final DateParser dateParser = new DateParser();
+    assertThat(dateParser.parse("")).isNull();
+    assertThat(dateParser.parse(null)).isNull();
+    assertThat(dateParser.parse("2016-13-01T00:00:00Z", DateParser.Format.ISO_8601))
+        .isEqualTo(DateParser.INVALID);
+    try {
+      dateParser.parse("yesterday");
+      fail("ParseException expected.");
+    } catch (ParseException ignored) {
+      // Expected.
+    }
+  }
+
+  /** Make sure the parser is shared between clients using the same endpoint. */
+  public void testForEndpoint() throws Throwable {
+    assertThat(DateParser.forEndpoint("https://danbooru.donmai.us"))
+        .isSameAs(DateParser.forEndpoint("https://danbooru.donmai.us"));
+    assertThat(DateParser.forEndpoint("https://danbooru.donmai.us"))
+        .isNotSameAs(DateParser.forEndpoint("https://yande.re"));
+  }
+
+  /**
+   * Parse a date using {@link SimpleDateFormat}, to compare results against.
+   *
+   * @param date    Date string.
+   * @param pattern SimpleDateFormat pattern.
+   * @return Milliseconds since the Unix epoch.
+   */
+  private static long parse(String date, String pattern) throws ParseException {
+    return new SimpleDateFormat(pattern, Locale.US).parse(date).getTime();
+  }
+}
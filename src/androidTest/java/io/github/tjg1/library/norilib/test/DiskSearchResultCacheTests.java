@@ -0,0 +1,135 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.cache.DiskSearchResultCache;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link DiskSearchResultCache} class. */
+public class DiskSearchResultCacheTests extends AndroidTestCase {
+
+  /** API endpoint used in cache keys. */
+  private static final String ENDPOINT = "https://example.com";
+  /** Directory containing the segment file. */
+  private File directory;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = new File(getContext().getCacheDir(), "norilib-test");
+    deleteDirectory();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    deleteDirectory();
+    super.tearDown();
+  }
+
+  /** Make sure pages are decoded with the same data they were written with. */
+  public void testPutAndGet() throws Throwable {
+    final DiskSearchResultCache cache = new DiskSearchResultCache(directory,
+        DiskSearchResultCache.DEFAULT_MAX_SIZE);
+    final SearchResult original = createPage(3);
+    original.onLastPage();
+    cache.put(ENDPOINT, null, "duck bird", 3, original);
+
+    final SearchResult cached = cache.get(ENDPOINT, null, "bird duck", 3);
+    assertThat(cached).isNotNull();
+    assertThat(cached.getQuery()).containsOnly(original.getQuery());
+    assertThat(cached.getCurrentOffset()).isEqualTo(3);
+    assertThat(cached.hasNextPage()).isFalse();
+    assertThat(cached.getImageCount()).isEqualTo(original.getImageCount());
+    for (int i = 0; i < original.getImageCount(); i++) {
+      final Image expected = original.getImage(i);
+      final Image actual = cached.getImage(i);
+      assertThat(actual.id).isEqualTo(expected.id);
+      assertThat(actual.fileUrl).isEqualTo(expected.fileUrl);
+      assertThat(actual.getTags()).containsExactly(expected.getTags());
+      assertThat(actual.safeSearchRating).isEqualTo(expected.safeSearchRating);
+      assertThat(actual.score).isEqualTo(expected.score);
+      assertThat(actual.searchPage).isEqualTo(expected.searchPage);
+      assertThat(actual.searchPagePosition).isEqualTo(expected.searchPagePosition);
+      assertThat(actual.createdAt).isEqualTo(expected.createdAt);
+    }
+    assertThat(cache.get(ENDPOINT, null, "duck", 3)).isNull();
+    cache.close();
+  }
+
+  /** Make sure pages survive re-opening the cache and incomplete records are discarded. */
+  public void testReopenAfterCrash() throws Throwable {
+    DiskSearchResultCache cache = new DiskSearchResultCache(directory,
+        DiskSearchResultCache.DEFAULT_MAX_SIZE);
+    cache.put(ENDPOINT, null, "duck", 0, createPage(0));
+    final long size = cache.getSize();
+    cache.close();
+
+    // Simulate a crash in the middle of writing another record.
+    final RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw");
+    file.seek(file.length());
+    file.write(new byte[]{0x4e, 0x4f, 0x52, 0x49, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x10});
+    file.close();
+
+    cache = new DiskSearchResultCache(directory, DiskSearchResultCache.DEFAULT_MAX_SIZE);
+    assertThat(cache.getSize()).isEqualTo(size);
+    assertThat(cache.get(ENDPOINT, null, "duck", 0).getImage(0).id).isEqualTo("0");
+    cache.close();
+  }
+
+  /** Make sure the oldest pages are evicted when the cache exceeds its size budget. */
+  public void testSizeBudget() throws Throwable {
+    final long maxSize = 32 * 1024;
+    final DiskSearchResultCache cache = new DiskSearchResultCache(directory, maxSize);
+    for (int i = 0; i < 20; i++) {
+      cache.put(ENDPOINT, null, "duck", i, createPage(i));
+    }
+    assertThat(cache.getSize()).isLessThanOrEqualTo(maxSize);
+    assertThat(cache.get(ENDPOINT, null, "duck", 19)).isNotNull();
+    assertThat(cache.get(ENDPOINT, null, "duck", 0)).isNull();
+    cache.close();
+  }
+
+  /**
+   * Create a page of 50 images.
+   *
+   * @param pid Page number.
+   * @return Page of images.
+   */
+  private static SearchResult createPage(int pid) {
+    final Image[] images = new Image[50];
+    for (int i = 0; i < images.length; i++) {
+      images[i] = ImageTests.getMockImage(Image.SafeSearchRating.values()[i % 4],
+          new Tag("duck"), new Tag("tag_" + i, Tag.Type.ARTIST));
+      images[i].id = Integer.toString(pid * images.length + i);
+      images[i].searchPage = pid;
+      images[i].searchPagePosition = i;
+    }
+    return new SearchResult(images, Tag.arrayFromString("duck"), pid);
+  }
+
+  /** Delete the test cache directory. */
+  private void deleteDirectory() {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    directory.delete();
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.content.Context;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.E621;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Compares parse time and allocations of the {@link E621} pull parser against the DOM parser it
+ * replaced, using a 100-post page shaped like an E621 <code>/post/index.xml</code> response.
+ * Results are written to LogCat.
+ */
+public class E621ParserBenchmark extends AndroidTestCase {
+
+  /** LogCat tag. */
+  private static final String TAG = "norilib.test.E621ParserBenchmark";
+  /** Number of posts in the benchmarked page. */
+  private static final int POST_COUNT = 100;
+  /** Number of untimed iterations run to warm up the JIT. */
+  private static final int WARMUP_ITERATIONS = 5;
+  /** Number of timed iterations. */
+  private static final int ITERATIONS = 20;
+
+  /** Verify that both parsers return the same data and log the timings. */
+  public void testParseTimeAndAllocations() throws Throwable {
+    final String body = createResponseBody(POST_COUNT);
+    final BenchmarkE621 client = new BenchmarkE621(getContext());
+
+    // Make sure the parsers are equivalent before comparing them.
+    final SearchResult pullResult = client.parse(body);
+    final List<String[]> domResult = parseWithDom(body);
+    assertThat(pullResult.getImages()).hasSize(POST_COUNT);
+    assertThat(domResult).hasSize(POST_COUNT);
+    for (int i = 0; i < POST_COUNT; i++) {
+      final Image image = pullResult.getImages()[i];
+      assertThat(image.id).isEqualTo(domResult.get(i)[0]);
+      assertThat(image.fileUrl).isEqualTo(domResult.get(i)[1]);
+      assertThat(image.getTags()).hasSize(Integer.parseInt(domResult.get(i)[2]));
+      assertThat(image.searchPagePosition).isEqualTo(i);
+    }
+
+    // Warm up.
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      client.parse(body);
+      parseWithDom(body);
+    }
+
+    // Benchmark the pull parser.
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocSize();
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      client.parse(body);
+    }
+    final long pullTime = (System.nanoTime() - start) / ITERATIONS;
+    final long pullAllocations = Debug.getThreadAllocSize() / ITERATIONS;
+
+    // Benchmark the DOM parser.
+    Debug.resetThreadAllocSize();
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      parseWithDom(body);
+    }
+    final long domTime = (System.nanoTime() - start) / ITERATIONS;
+    final long domAllocations = Debug.getThreadAllocSize() / ITERATIONS;
+    Debug.stopAllocCounting();
+
+    Log.i(TAG, String.format(Locale.US, "Pull parser: %.2f ms, %d bytes allocated per page.",
+        pullTime / 1e6, pullAllocations));
+    Log.i(TAG, String.format(Locale.US, "DOM parser: %.2f ms, %d bytes allocated per page.",
+        domTime / 1e6, domAllocations));
+  }
+
+  /**
+   * Create a response body with the structure used by E621's XML API.
+   *
+   * @param postCount Number of posts to include.
+   * @return XML response body.
+   */
+  private static String createResponseBody(int postCount) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    sb.append("<posts count=\"24816\" offset=\"0\" type=\"array\">\n");
+    for (int i = 0; i < postCount; i++) {
+      final int id = 1000000 - i;
+      final String md5 = String.format(Locale.US, "%032x", id);
+      sb.append("<post>")
+          .append("<id type=\"integer\">").append(id).append("</id>")
+          .append("<tags>blonde_hair blue_eyes canine clothed clothing digital_media_(artwork) ")
+          .append("female fur hair mammal solo smile standing tag_").append(i % 20).append("</tags>")
+          .append("<locked_tags nil=\"true\"/>")
+          .append("<description>Commissioned artwork.</description>")
+          .append("<created_at>2016-09-25T14:21:03-04:00</created_at>")
+          .append("<creator_id type=\"integer\">12345</creator_id>")
+          .append("<author>uploader</author>")
+          .append("<change type=\"integer\">").append(9000000 + i).append("</change>")
+          .append("<source>https://www.furaffinity.net/view/").append(id).append("/</source>")
+          .append("<score type=\"integer\">").append(i % 50).append("</score>")
+          .append("<fav_count type=\"integer\">").append(i * 3).append("</fav_count>")
+          .append("<md5>").append(md5).append("</md5>")
+          .append("<file_size type=\"integer\">1048576</file_size>")
+          .append("<file_url>https://static1.e926.net/data/").append(md5).append(".png</file_url>")
+          .append("<file_ext>png</file_ext>")
+          .append("<preview_url>https://static1.e926.net/data/preview/").append(md5).append(".jpg</preview_url>")
+          .append("<preview_width type=\"integer\">150</preview_width>")
+          .append("<preview_height type=\"integer\">120</preview_height>")
+          .append("<sample_url>https://static1.e926.net/data/sample/").append(md5).append(".jpg</sample_url>")
+          .append("<sample_width type=\"integer\">800</sample_width>")
+          .append("<sample_height type=\"integer\">640</sample_height>")
+          .append("<rating>s</rating>")
+          .append("<status>active</status>")
+          .append("<width type=\"integer\">2000</width>")
+          .append("<height type=\"integer\">1600</height>")
+          .append("<has_comments type=\"boolean\">false</has_comments>")
+          .append("<has_notes type=\"boolean\">false</has_notes>")
+          .append("<has_children type=\"boolean\">false</has_children>")
+          .append("<children></children>")
+          .append("<parent_id nil=\"true\"></parent_id>")
+          .append("<artist type=\"array\"><artist>some_artist</artist></artist>")
+          .append("<sources type=\"array\"><source>https://twitter.com/some_artist</source></sources>")
+          .append("</post>\n");
+    }
+    sb.append("</posts>\n");
+    return sb.toString();
+  }
+
+  /**
+   * DOM-based parser previously used by {@link E621}. Kept here as the benchmark baseline.
+   *
+   * @param body XML response body.
+   * @return ID, file URL and tag count extracted from each post.
+   */
+  private static List<String[]> parseWithDom(String body) throws Exception {
+    final List<String[]> posts = new ArrayList<>(POST_COUNT);
+    final Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new InputSource(new StringReader(body)));
+    final NodeList nodeList = doc.getElementsByTagName("post");
+
+    for (int i = 0; i < nodeList.getLength(); i++) {
+      final Element element = (Element) nodeList.item(i);
+      // Visit the same elements as the old parser did.
+      final String[] fields = {"file_url", "width", "height", "preview_url", "preview_width",
+          "preview_height", "sample_url", "sample_width", "sample_height", "tags", "id",
+          "parent_id", "rating", "score", "md5", "created_at"};
+      final String[] values = new String[fields.length];
+      for (int j = 0; j < fields.length; j++) {
+        values[j] = element.getElementsByTagName(fields[j]).item(0).getTextContent();
+      }
+      posts.add(new String[]{values[10], values[0], Integer.toString(values[9].split(" ").length)});
+    }
+    return posts;
+  }
+
+  /** {@link E621} client exposing its response parser to the benchmark. */
+  private static class BenchmarkE621 extends E621 {
+    /**
+     * Create a new client. No network requests are made.
+     *
+     * @param context Android {@link Context}.
+     */
+    public BenchmarkE621(Context context) {
+      super(context, "E926", "https://e926.net");
+    }
+
+    /**
+     * Parse given response body.
+     *
+     * @param body XML response body.
+     * @return Parsed SearchResult.
+     */
+    public SearchResult parse(String body) throws IOException {
+      return parseXMLResponse(body, "", 0);
+    }
+  }
+}
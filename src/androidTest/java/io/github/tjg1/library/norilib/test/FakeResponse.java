@@ -0,0 +1,67 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+
+/** {@link HttpResponse} with an empty body, used with {@link FakeTransport}. */
+public class FakeResponse extends HttpResponse {
+
+  //region Instance fields
+  /** HTTP status code. */
+  private final int code;
+  /** Value of the Retry-After header. */
+  private final String retryAfter;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new fake response.
+   *
+   * @param code HTTP status code.
+   */
+  public FakeResponse(int code) {
+    this(code, null);
+  }
+
+  /**
+   * Create a new fake response.
+   *
+   * @param code       HTTP status code.
+   * @param retryAfter Value of the Retry-After header. May be null.
+   */
+  public FakeResponse(int code, String retryAfter) {
+    this.code = code;
+    this.retryAfter = retryAfter;
+  }
+  //endregion
+
+  //region HttpResponse methods
+  @Override
+  public int getCode() {
+    return code;
+  }
+
+  @Override
+  public String getHeader(String name) {
+    return "Retry-After".equalsIgnoreCase(name) ? retryAfter : null;
+  }
+
+  @Override
+  public String getCharset() {
+    return null;
+  }
+
+  @Override
+  public InputStream getBody() {
+    return new ByteArrayInputStream(new byte[0]);
+  }
+  //endregion
+}
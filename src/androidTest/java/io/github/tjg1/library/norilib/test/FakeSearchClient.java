@@ -0,0 +1,248 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.util.SparseArray;
+
+import java.io.IOException;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * {@link SearchClient} returning pages of mock images, without making any network requests.
+ * Image IDs are consecutive numbers across full pages, after an optional prefix.
+ * <p/>
+ * Asynchronous requests are answered immediately, unless {@link #setImmediate(boolean)} is used to
+ * have the tests complete them manually instead.
+ */
+public class FakeSearchClient implements SearchClient {
+
+  //region Constants
+  /** Page count of clients whose results never end. */
+  public static final int UNLIMITED = Integer.MAX_VALUE;
+  //endregion
+
+  //region Instance fields
+  /** Client name. */
+  private final String name;
+  /** Prefix of the image IDs. */
+  private final String prefix;
+  /** API endpoint URL. */
+  private final String endpoint;
+  /** Number of images on each full page. */
+  private final int pageSize;
+  /** Number of pages before the results end. Requests fail if 0. */
+  private final int pageCount;
+  /** Callbacks of requests waiting to be completed, by page number. */
+  private final SparseArray<SearchCallback> callbacks = new SparseArray<>();
+  /** True to answer asynchronous requests immediately. */
+  private boolean immediate = true;
+  /** Query of the last request. */
+  private String tags;
+  /** Number of pages requested. */
+  private int requestCount;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new fake client, with results that never end.
+   *
+   * @param pageSize Number of images on each full page.
+   */
+  public FakeSearchClient(int pageSize) {
+    this("Fake", "", "https://example.com", pageSize, UNLIMITED);
+  }
+
+  /**
+   * Create a new fake client for a backend of its own.
+   *
+   * @param prefix    Prefix of the image IDs. Also used as the client name and the endpoint host.
+   * @param pageSize  Number of images on each full page.
+   * @param pageCount Number of pages before the results end. Requests fail if 0.
+   */
+  public FakeSearchClient(String prefix, int pageSize, int pageCount) {
+    this(prefix, prefix, "https://" + prefix + ".example.com", pageSize, pageCount);
+  }
+
+  /**
+   * Create a new fake client.
+   *
+   * @param name      Client name.
+   * @param prefix    Prefix of the image IDs.
+   * @param endpoint  API endpoint URL.
+   * @param pageSize  Number of images on each full page.
+   * @param pageCount Number of pages before the results end. Requests fail if 0.
+   */
+  private FakeSearchClient(String name, String prefix, String endpoint, int pageSize,
+                           int pageCount) {
+    this.name = name;
+    this.prefix = prefix;
+    this.endpoint = endpoint;
+    this.pageSize = pageSize;
+    this.pageCount = pageCount;
+  }
+  //endregion
+
+  //region Controlling requests
+  /**
+   * Set whether asynchronous requests are answered immediately.
+   *
+   * @param immediate False to wait for {@link #complete(int)} instead.
+   * @return This client. Allows chaining setters.
+   */
+  public FakeSearchClient setImmediate(boolean immediate) {
+    this.immediate = immediate;
+    return this;
+  }
+
+  /**
+   * Get the number of pages requested so far.
+   *
+   * @return Request count.
+   */
+  public int getRequestCount() {
+    return requestCount;
+  }
+
+  /**
+   * Get the number of asynchronous requests waiting to be completed.
+   *
+   * @return Pending request count.
+   */
+  public int getPendingCount() {
+    return callbacks.size();
+  }
+
+  /**
+   * Remove the callback of a request waiting to be completed, so that the test can call it.
+   *
+   * @param pid Page number.
+   * @return Callback. Null if no request for the page is waiting.
+   */
+  public SearchCallback takeCallback(int pid) {
+    final SearchCallback callback = callbacks.get(pid);
+    callbacks.remove(pid);
+    return callback;
+  }
+
+  /**
+   * Complete a request with a full page, or no images after the last page.
+   *
+   * @param pid Page number.
+   */
+  public void complete(int pid) {
+    final SearchCallback callback = takeCallback(pid);
+    try {
+      callback.onSuccess(createPage(tags, pid));
+    } catch (IOException e) {
+      callback.onFailure(e);
+    }
+  }
+
+  /**
+   * Complete a request with a page of given size.
+   *
+   * @param pid        Page number.
+   * @param imageCount Number of images on the page.
+   */
+  public void complete(int pid, int imageCount) {
+    takeCallback(pid).onSuccess(createPage(tags, pid, imageCount));
+  }
+  //endregion
+
+  //region Creating pages
+  /**
+   * Create a full page of results, or no images after the last page.
+   *
+   * @param tags Search query.
+   * @param pid  Page number.
+   * @return Page of results.
+   * @throws IOException If the client has no pages.
+   */
+  public SearchResult createPage(String tags, int pid) throws IOException {
+    if (pageCount == 0) {
+      throw new IOException("Connection refused.");
+    }
+    return createPage(tags, pid, (pid < pageCount) ? pageSize : 0);
+  }
+
+  /**
+   * Create a page of results.
+   *
+   * @param tags       Search query.
+   * @param pid        Page number.
+   * @param imageCount Number of images on the page.
+   * @return Page of results. Marked as the last page if empty, or if it is the client's last page.
+   */
+  public SearchResult createPage(String tags, int pid, int imageCount) {
+    final Image[] images = new Image[imageCount];
+    for (int i = 0; i < imageCount; i++) {
+      images[i] = ImageTests.getMockImage(Image.SafeSearchRating.S, Tag.arrayFromString(tags));
+      images[i].id = prefix + (pid * pageSize + i);
+      images[i].searchPage = pid;
+      images[i].searchPagePosition = i;
+    }
+    final SearchResult searchResult = new SearchResult(images, Tag.arrayFromString(tags), pid);
+    if (imageCount == 0 || pid >= pageCount - 1) {
+      searchResult.onLastPage();
+    }
+    return searchResult;
+  }
+  //endregion
+
+  //region SearchClient methods
+  @Override
+  public SearchResult search(String tags) throws IOException {
+    return search(tags, 0);
+  }
+
+  @Override
+  public SearchResult search(String tags, int pid) throws IOException {
+    this.tags = tags;
+    requestCount++;
+    return createPage(tags, pid);
+  }
+
+  @Override
+  public void search(String tags, SearchCallback callback) {
+    search(tags, 0, callback);
+  }
+
+  @Override
+  public void search(String tags, int pid, SearchCallback callback) {
+    if (!immediate) {
+      this.tags = tags;
+      requestCount++;
+      callbacks.put(pid, callback);
+      return;
+    }
+    try {
+      callback.onSuccess(search(tags, pid));
+    } catch (IOException e) {
+      callback.onFailure(e);
+    }
+  }
+
+  @Override
+  public String getDefaultQuery() {
+    return "";
+  }
+
+  @Override
+  public Settings getSettings() {
+    return new Settings(Settings.APIType.DANBOARD, name, endpoint);
+  }
+
+  @Override
+  public AuthenticationType requiresAuthentication() {
+    return AuthenticationType.NONE;
+  }
+  //endregion
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+import io.github.tjg1.library.norilib.transport.Transport;
+
+/** {@link Transport} completing requests with canned responses or exceptions. */
+public class FakeTransport implements Transport {
+
+  //region Instance fields
+  /** Outcomes of following requests: a response, an exception, or null to never complete. */
+  private final List<Object> outcomes;
+  /** Requests sent. Guarded by {@code this}. */
+  private final List<HttpRequest> requests = new ArrayList<>();
+  /** Futures returned for each request sent. Guarded by {@code this}. */
+  private final List<SimpleFuture<HttpResponse>> futures = new ArrayList<>();
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new fake transport.
+   *
+   * @param outcomes Outcomes of following requests: an {@link HttpResponse}, an {@link Exception},
+   *                 or null to never complete the request.
+   */
+  public FakeTransport(Object... outcomes) {
+    this.outcomes = Arrays.asList(outcomes);
+  }
+  //endregion
+
+  //region Getters
+  /**
+   * Get the number of requests sent.
+   *
+   * @return Request count.
+   */
+  public synchronized int getRequestCount() {
+    return futures.size();
+  }
+
+  /**
+   * Get a request that was sent.
+   *
+   * @param index Index of the request, in the order they were sent.
+   * @return Request.
+   */
+  public synchronized HttpRequest getRequest(int index) {
+    return requests.get(index);
+  }
+
+  /**
+   * Get the future returned for a request.
+   *
+   * @param index Index of the request, in the order they were sent.
+   * @return Future of the response.
+   */
+  public synchronized Future<HttpResponse> getFuture(int index) {
+    return futures.get(index);
+  }
+  //endregion
+
+  //region Transport methods
+  @Override
+  public synchronized Future<HttpResponse> execute(HttpRequest request) {
+    final SimpleFuture<HttpResponse> future = new SimpleFuture<>();
+    final Object outcome = outcomes.get(futures.size());
+    requests.add(request);
+    futures.add(future);
+    if (outcome instanceof HttpResponse) {
+      future.setComplete((HttpResponse) outcome);
+    } else if (outcome instanceof Exception) {
+      future.setComplete((Exception) outcome);
+    }
+    return future;
+  }
+  //endregion
+}
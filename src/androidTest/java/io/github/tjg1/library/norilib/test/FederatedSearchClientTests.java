@@ -0,0 +1,133 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.FederatedSearchClient;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link FederatedSearchClient} class. */
+public class FederatedSearchClientTests extends AndroidTestCase {
+
+  /** Make sure pages that miss the deadline are merged into the next page. */
+  public void testDeadline() throws Throwable {
+    final FakeSearchClient fast = new FakeSearchClient("a", 2, 3);
+    final FakeSearchClient slow = new FakeSearchClient("b", 2, 3).setImmediate(false);
+    final FederatedSearchClient client = new FederatedSearchClient("Federated", fast, slow)
+        .setDeadline(50);
+
+    final SearchResult first = client.search("duck", 0);
+    assertThat(getIds(first)).isEqualTo(new String[]{"a0", "a1"});
+    assertThat(first.hasNextPage()).isTrue();
+
+    // The slow backend's first page arrives late and is merged into the second page.
+    slow.complete(0);
+    final SearchResult second = client.search("duck", 1);
+    assertThat(getIds(second)).isEqualTo(new String[]{"a2", "b0", "a3", "b1"});
+    assertThat(second.getImage(1).searchPage).isEqualTo(1);
+    assertThat(second.getImage(1).searchPagePosition).isEqualTo(1);
+    // The slow backend is paged on its own: its next page is only requested after the last one
+    // has been merged.
+    assertThat(fast.getRequestCount()).isEqualTo(2);
+    assertThat(slow.getRequestCount()).isEqualTo(1);
+    client.search("duck", 2);
+    assertThat(slow.getRequestCount()).isEqualTo(2);
+  }
+
+  /** Make sure pages requested concurrently get the images of their own page number. */
+  public void testConcurrentPages() throws Throwable {
+    final FederatedSearchClient client = new FederatedSearchClient("Federated",
+        new FakeSearchClient("a", 2, 3), new FakeSearchClient("b", 2, 3));
+    client.search("duck", 0);
+
+    // Page 2 is requested first, and has to build page 1 before it.
+    final SearchResult[] pages = new SearchResult[3];
+    final CountDownLatch lock = new CountDownLatch(2);
+    for (final int pid : new int[]{2, 1}) {
+      client.search("duck", pid, new SearchClient.SearchCallback() {
+        @Override
+        public void onFailure(IOException e) {
+          lock.countDown();
+        }
+
+        @Override
+        public void onSuccess(SearchResult searchResult) {
+          pages[pid] = searchResult;
+          lock.countDown();
+        }
+      });
+    }
+    assertThat(lock.await(5, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(getIds(pages[1])).isEqualTo(new String[]{"a2", "b2", "a3", "b3"});
+    assertThat(getIds(pages[2])).isEqualTo(new String[]{"a4", "b4", "a5", "b5"});
+    assertThat(pages[1].getImage(0).searchPage).isEqualTo(1);
+    assertThat(pages[2].getImage(0).searchPage).isEqualTo(2);
+    assertThat(pages[2].hasNextPage()).isFalse();
+  }
+
+  /** Make sure the merged results end after the last page of every backend. */
+  public void testLastPage() throws Throwable {
+    final FederatedSearchClient client = new FederatedSearchClient("Federated",
+        new FakeSearchClient("a", 2, 1), new FakeSearchClient("b", 2, 2));
+
+    assertThat(client.search("duck", 0).hasNextPage()).isTrue();
+    final SearchResult second = client.search("duck", 1);
+    assertThat(getIds(second)).isEqualTo(new String[]{"b2", "b3"});
+    assertThat(second.hasNextPage()).isFalse();
+  }
+
+  /** Make sure an error is only reported if no backend returned a page. */
+  public void testFailure() throws Throwable {
+    final FakeSearchClient failing = new FakeSearchClient("a", 2, 0);
+    final FederatedSearchClient client = new FederatedSearchClient("Federated",
+        failing, new FakeSearchClient("b", 2, 1));
+    assertThat(client.search("duck", 0).getImageCount()).isEqualTo(2);
+
+    try {
+      new FederatedSearchClient("Federated", failing).search("duck", 0);
+      fail("IOException expected.");
+    } catch (IOException ignored) {
+      // Expected.
+    }
+  }
+
+  /** Make sure the settings identify all the backends. */
+  public void testSettings() throws Throwable {
+    final SearchClient.Settings settings = new FederatedSearchClient("Federated",
+        new FakeSearchClient("a", 2, 1), new FakeSearchClient("b", 2, 1)).getSettings();
+    assertThat(settings.getApiType()).isEqualTo(SearchClient.Settings.APIType.FEDERATED);
+    assertThat(settings.getEndpoint()).isEqualTo("https://a.example.com https://b.example.com");
+    // Like other types that can't be created, nested federated settings are skipped.
+    assertThat(settings.createSearchClient(getContext())).isNull();
+    assertThat(new FederatedSearchClient(getContext(), "Nested", Collections.singletonList(settings))
+        .getSettings().getEndpoint()).isEmpty();
+  }
+
+  /**
+   * Get the IDs of the images in a SearchResult.
+   *
+   * @param searchResult SearchResult.
+   * @return Image IDs, in order.
+   */
+  private static String[] getIds(SearchResult searchResult) {
+    final String[] ids = new String[searchResult.getImageCount()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = searchResult.getImage(i).id;
+    }
+    return ids;
+  }
+}
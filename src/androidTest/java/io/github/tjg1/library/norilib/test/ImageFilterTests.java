@@ -0,0 +1,70 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
+import io.github.tjg1.library.norilib.Tag;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.ImageFilter} class. */
+public class ImageFilterTests extends AndroidTestCase {
+
+  /** Verify that ImageFilters are read and written to Parcels correctly. */
+  public void testWriteToParcel() throws Throwable {
+    final ImageFilter original = new ImageFilter()
+        .setTagBlacklist(new Tag("duck"))
+        .setSafeSearchRatings(Image.SafeSearchRating.S)
+        .setMinScore(5)
+        .setMinSize(640, 480);
+    final Bundle bundle = new Bundle();
+
+    bundle.putParcelable("filter", original);
+    final ImageFilter unParceled = bundle.getParcelable("filter");
+
+    assertThat(unParceled.getTagBlacklist()).containsOnly(original.getTagBlacklist());
+    assertThat(unParceled.getSafeSearchRatings()).containsOnly(Image.SafeSearchRating.S);
+    assertThat(unParceled.getMinScore()).isEqualTo(5);
+    assertThat(unParceled.getMinWidth()).isEqualTo(640);
+    assertThat(unParceled.getMinHeight()).isEqualTo(480);
+  }
+
+  /** Tests the {@link ImageFilter#accepts(Image)} method. */
+  public void testAccepts() throws Throwable {
+    final Image image = ImageTests.getMockImage(Image.SafeSearchRating.Q, new Tag("duck"));
+    assertThat(new ImageFilter().isEmpty()).isTrue();
+    assertThat(new ImageFilter().accepts(image)).isTrue();
+    assertThat(new ImageFilter().setTagBlacklist(new Tag("duck")).accepts(image)).isFalse();
+    assertThat(new ImageFilter().setSafeSearchRatings(Image.SafeSearchRating.S).accepts(image))
+        .isFalse();
+    assertThat(new ImageFilter().setMinScore(image.score + 1).accepts(image)).isFalse();
+    assertThat(new ImageFilter().setMinSize(image.width, image.height).accepts(image)).isTrue();
+    assertThat(new ImageFilter().setMinSize(image.width + 1, 0).accepts(image)).isFalse();
+  }
+
+  /** Tests the {@link ImageFilter#and(ImageFilter)} method. */
+  public void testAnd() throws Throwable {
+    final ImageFilter filter = new ImageFilter()
+        .setTagBlacklist(new Tag("duck"))
+        .setSafeSearchRatings(Image.SafeSearchRating.S, Image.SafeSearchRating.Q)
+        .setMinSize(100, 0)
+        .and(new ImageFilter()
+            .setTagBlacklist(new Tag("bird"))
+            .setSafeSearchRatings(Image.SafeSearchRating.Q, Image.SafeSearchRating.E)
+            .setMinSize(0, 200));
+
+    assertThat(filter.getTagBlacklist()).containsOnly(new Tag("duck"), new Tag("bird"));
+    assertThat(filter.getSafeSearchRatings()).containsOnly(Image.SafeSearchRating.Q);
+    assertThat(filter.getMinScore()).isEqualTo(Integer.MIN_VALUE);
+    assertThat(filter.getMinWidth()).isEqualTo(100);
+    assertThat(filter.getMinHeight()).isEqualTo(200);
+  }
+}
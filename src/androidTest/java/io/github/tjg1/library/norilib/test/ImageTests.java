@@ -12,9 +12,12 @@ import android.util.Log;
 
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.TagDictionary;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static org.fest.assertions.api.Assertions.assertThat;
@@ -35,6 +38,8 @@ public class ImageTests extends AndroidTestCase {
   private static final Pattern urlPattern = Pattern.compile("(?i)\\b((?:https?://|www\\d{0,3}[.]|[a-z0-9.\\-]+[.][a-z]{2,4}/)(?:[^\\s()<>]+|\\(([^\\s()<>]+|(\\([^\\s()<>]+\\)))*\\))+(?:\\(([^\\s()<>]+|(\\([^\\s()<>]+\\)))*\\)|[^\\s`!()\\[\\]{};:'\".,<>?«»“”‘’]))");
   /** RegEx pattern for matching numerical Strings (used for IDs). */
   private static final Pattern integerPattern = Pattern.compile("^\\d+$");
+  /** Number of mock images created so far. Used to give each mock image a different MD5 hash. */
+  private static final AtomicInteger MOCK_IMAGE_COUNT = new AtomicInteger();
 
   /** Test the {@link Image#writeToParcel(android.os.Parcel, int)} method. */
   public void testWriteToParcel() throws Throwable {
@@ -61,7 +66,7 @@ public class ImageTests extends AndroidTestCase {
       assertThat(unParceled.sampleUrl).isEqualTo(original.sampleUrl);
       assertThat(unParceled.sampleWidth).isEqualTo(original.sampleWidth);
       assertThat(unParceled.sampleHeight).isEqualTo(original.sampleHeight);
-      assertThat(unParceled.tags).containsOnly(original.tags);
+      assertThat(unParceled.getTags()).containsOnly(original.getTags());
       assertThat(unParceled.id).isEqualTo(original.id);
       assertThat(unParceled.parentId).isEqualTo(original.parentId);
       assertThat(unParceled.webUrl).isEqualTo(original.webUrl);
@@ -106,6 +111,52 @@ public class ImageTests extends AndroidTestCase {
     assertThat(Image.SafeSearchRating.fromString("Undefined")).isEqualTo(Image.SafeSearchRating.U);
   }
 
+  /** Make sure {@link Image#getTags()} keeps the order the tags were set in. */
+  public void testTagOrder() throws Throwable {
+    // Add the tags to the dictionary in a different order first.
+    getMockImage(Image.SafeSearchRating.S, new Tag("order_mango"), new Tag("order_apple"),
+        new Tag("order_zebra"));
+    final Image image = getMockImage(Image.SafeSearchRating.S, new Tag("order_zebra"),
+        new Tag("order_apple"), new Tag("order_zebra"), new Tag("order_mango"));
+
+    assertThat(image.getTags()).containsExactly(new Tag("order_zebra"), new Tag("order_apple"),
+        new Tag("order_mango"));
+    assertThat(new Image(image).getTags()).isEqualTo(image.getTags());
+    // Lookups still work on the sorted IDs.
+    assertThat(image.hasTag(new Tag("order_mango"))).isTrue();
+  }
+
+  /** Make sure tags keep working once the {@link TagDictionary} fills up and is replaced. */
+  public void testTagsAcrossDictionaries() throws Throwable {
+    final Image oldImage = getMockImage(Image.SafeSearchRating.S, new Tag("duck"), new Tag("bird"));
+    final TagDictionary oldDictionary = TagDictionary.getCurrent();
+
+    // Fill up the current dictionary.
+    final Tag[] tags = new Tag[100];
+    int count = 0;
+    while (TagDictionary.getCurrent() == oldDictionary) {
+      for (int i = 0; i < tags.length; i++) {
+        tags[i] = new Tag("filler_" + count++);
+      }
+      getMockImage(Image.SafeSearchRating.S, tags);
+    }
+    // Images that got the dictionary before it filled up can still add their remaining tags.
+    assertThat(oldDictionary.size()).isGreaterThanOrEqualTo(TagDictionary.MAX_SIZE)
+        .isLessThan(TagDictionary.MAX_SIZE + tags.length);
+
+    final Image newImage = getMockImage(Image.SafeSearchRating.S, new Tag("duck"));
+    assertThat(newImage.getTagIds()).isNotEqualTo(oldImage.getTagIds());
+    assertThat(oldImage.getTags()).containsOnly(new Tag("duck"), new Tag("bird"));
+    assertThat(newImage.getTags()).containsOnly(new Tag("duck"));
+    assertThat(oldImage.hasTag(new Tag("duck"))).isTrue();
+    assertThat(newImage.hasTag(new Tag("bird"))).isFalse();
+
+    // Lookups return the IDs from every dictionary in use.
+    final int[] duck = TagDictionary.lookup(Collections.singletonList(new Tag("duck")));
+    assertThat(oldImage.hasAnyTag(duck)).isTrue();
+    assertThat(newImage.hasAnyTag(duck)).isTrue();
+  }
+
   /** Get an Image suitable for testing. */
   public static Image getMockImage(Image.SafeSearchRating safeSearchRating, Tag... tags) {
     final Image image = new Image();
@@ -118,7 +169,7 @@ public class ImageTests extends AndroidTestCase {
     image.sampleUrl = "http://awesomeboorusite.org/data/samples/image.png";
     image.sampleWidth = 850;
     image.sampleHeight = 800;
-    image.tags = tags.clone();
+    image.setTags(tags);
     image.id = "123456";
     image.parentId = "123455";
     image.webUrl = "http://awesomeboorusite.org/post/view/image";
@@ -126,7 +177,9 @@ public class ImageTests extends AndroidTestCase {
     image.safeSearchRating = safeSearchRating;
     image.score = 23;
     image.source = "http://pixiv.com/duck.png";
-    image.md5 = "cfaf278e8f522c72644cee2a753d2845";
+    // Every mock image is a different file, so SearchResults don't drop them as duplicates.
+    image.md5 = String.format(Locale.US, "%08x8f522c72644cee2a753d2845",
+        MOCK_IMAGE_COUNT.incrementAndGet());
     image.searchPage = 0;
     image.searchPagePosition = 1;
     image.createdAt = new Date(1398902400);
@@ -164,9 +217,9 @@ public class ImageTests extends AndroidTestCase {
     assertThat(image.sampleHeight).isGreaterThanOrEqualTo(0);
 
     // Verify tags.
-    if (image.tags.length == 0)
+    if (image.getTagIds().length == 0)
       Log.w(TAG, String.format(Locale.US, "No tags for image: %s", image.webUrl));
-    for (Tag tag : image.tags) {
+    for (Tag tag : image.getTags()) {
       assertThat(tag.getName()).isNotEmpty();
       assertThat(tag.getType()).isNotNull();
     }
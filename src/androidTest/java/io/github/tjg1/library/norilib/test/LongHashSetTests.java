@@ -0,0 +1,53 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import io.github.tjg1.library.norilib.util.LongHashSet;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link LongHashSet} class. */
+public class LongHashSetTests extends AndroidTestCase {
+
+  /** Make sure the set behaves like a {@link HashSet}, while growing past its initial capacity. */
+  public void testAddAndContains() throws Throwable {
+    final LongHashSet set = new LongHashSet();
+    final Set<Long> expected = new HashSet<>();
+    final Random random = new Random(42);
+
+    for (int i = 0; i < 10000; i++) {
+      // Small range, so some values are added twice.
+      final long value = (random.nextInt(5000) - 2500) * 0x100000000L;
+      assertThat(set.add(value)).isEqualTo(expected.add(value));
+    }
+    assertThat(set.size()).isEqualTo(expected.size());
+    for (long value : expected) {
+      assertThat(set.contains(value)).isTrue();
+    }
+    assertThat(set.contains(1)).isFalse();
+  }
+
+  /** Make sure zero, used to mark empty slots, can be stored too. */
+  public void testZero() throws Throwable {
+    final LongHashSet set = new LongHashSet(4);
+    assertThat(set.contains(0)).isFalse();
+    assertThat(set.add(0)).isTrue();
+    assertThat(set.add(0)).isFalse();
+    assertThat(set.contains(0)).isTrue();
+    assertThat(set.size()).isEqualTo(1);
+
+    set.clear();
+    assertThat(set.contains(0)).isFalse();
+    assertThat(set.size()).isEqualTo(0);
+  }
+}
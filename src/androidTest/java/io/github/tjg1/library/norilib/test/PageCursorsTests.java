@@ -0,0 +1,95 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.cache.RevalidationCache;
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.util.PageCursors;
+import io.github.tjg1.library.norilib.util.StreamingParser;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link PageCursors} class. */
+public class PageCursorsTests extends AndroidTestCase {
+
+  /** Make sure the cursor of a page is remembered for the page after it. */
+  public void testPutAndGet() throws Throwable {
+    final PageCursors pageCursors = new PageCursors();
+    pageCursors.put("duck", 0, createPage("duck", "120", "110"));
+
+    assertThat(pageCursors.get("duck", 1)).isEqualTo(110);
+    assertThat(pageCursors.get("duck", 0)).isEqualTo(SearchResult.NO_CURSOR);
+    assertThat(pageCursors.get("bird", 1)).isEqualTo(SearchResult.NO_CURSOR);
+
+    pageCursors.clear();
+    assertThat(pageCursors.get("duck", 1)).isEqualTo(SearchResult.NO_CURSOR);
+  }
+
+  /** Make sure cursors are remembered for revalidated pages, which aren't parsed again. */
+  public void testPutNotModified() throws Throwable {
+    final String url = "https://example.com/posts.xml?tags=duck&page=1";
+    final RevalidationCache cache = new RevalidationCache(RevalidationCache.DEFAULT_MAX_ENTRIES);
+    cache.put(url, "\"5a3f\"", null, createPage("duck", "120", "110"));
+    final PageCursors pageCursors = new PageCursors();
+
+    final SearchResult searchResult = RevalidationCache.get(pageCursors.put("duck", 0,
+        cache.load(new FakeTransport(new FakeResponse(304)), new HttpRequest(url), url,
+            new StreamingParser<SearchResult>() {
+              @Override
+              protected SearchResult parse(Reader reader) throws IOException {
+                throw new IOException("Unmodified pages should not be parsed.");
+              }
+            })));
+    assertThat(searchResult.getImageCount()).isEqualTo(2);
+    assertThat(pageCursors.get("duck", 1)).isEqualTo(110);
+
+    // Failed requests don't change the cursors.
+    try {
+      RevalidationCache.get(pageCursors.put("bird", 0,
+          cache.load(new FakeTransport(new FakeResponse(503)), new HttpRequest(url), url, null)));
+      fail("Error responses should fail the request.");
+    } catch (IOException ignored) {
+    }
+    assertThat(pageCursors.get("bird", 1)).isEqualTo(SearchResult.NO_CURSOR);
+  }
+
+  /** Make sure queries not sorted by descending ID are never paged by cursor. */
+  public void testSupportsCursor() throws Throwable {
+    assertThat(PageCursors.supportsCursor("")).isTrue();
+    assertThat(PageCursors.supportsCursor("duck -id:1")).isTrue();
+    assertThat(PageCursors.supportsCursor("duck order:score")).isFalse();
+    assertThat(PageCursors.supportsCursor("id:<100")).isFalse();
+
+    final PageCursors pageCursors = new PageCursors();
+    pageCursors.put("duck order:score", 0, createPage("duck", "120", "110"));
+    assertThat(pageCursors.get("duck order:score", 1)).isEqualTo(SearchResult.NO_CURSOR);
+  }
+
+  /**
+   * Create a page of search results.
+   *
+   * @param tags Search query.
+   * @param ids  IDs of the images on the page.
+   * @return Page of search results.
+   */
+  private static SearchResult createPage(String tags, String... ids) {
+    final Image[] images = new Image[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      images[i] = ImageTests.getMockImage(Image.SafeSearchRating.S, Tag.arrayFromString(tags));
+      images[i].id = ids[i];
+    }
+    return new SearchResult(images, Tag.arrayFromString(tags), 0);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+
+import io.github.tjg1.library.norilib.PageRangeFetcher;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link PageRangeFetcher} class. */
+public class PageRangeFetcherTests extends AndroidTestCase {
+
+  /** Number of images on each full page returned by the fake client. */
+  private static final int PAGE_SIZE = 4;
+
+  /** Make sure parallelism is bounded and pages are merged in order. */
+  public void testOrderedMerge() throws Throwable {
+    final FakeSearchClient client = new FakeSearchClient(PAGE_SIZE).setImmediate(false);
+    final FakeCallback callback = new FakeCallback();
+    new PageRangeFetcher(client).setParallelism(2).search("duck", 1, 4, callback);
+    assertThat(client.getPendingCount()).isEqualTo(2);
+
+    client.complete(2, PAGE_SIZE);
+    assertThat(client.getPendingCount()).isEqualTo(2);
+    client.complete(1, PAGE_SIZE);
+    client.complete(4, PAGE_SIZE);
+    assertThat(callback.searchResult).isNull();
+    client.complete(3, PAGE_SIZE);
+
+    final SearchResult searchResult = callback.searchResult;
+    assertThat(searchResult.getImageCount()).isEqualTo(4 * PAGE_SIZE);
+    for (int i = 0; i < searchResult.getImageCount(); i++) {
+      assertThat(searchResult.getImage(i).id).isEqualTo(Integer.toString(PAGE_SIZE + i));
+    }
+    assertThat(searchResult.getCurrentOffset()).isEqualTo(4);
+    assertThat(searchResult.hasNextPage()).isTrue();
+  }
+
+  /** Make sure fetching stops at the first short page. */
+  public void testShortPage() throws Throwable {
+    final FakeSearchClient client = new FakeSearchClient(PAGE_SIZE).setImmediate(false);
+    final FakeCallback callback = new FakeCallback();
+    new PageRangeFetcher(client).setParallelism(3).search("duck", 0, 10, callback);
+
+    client.complete(0, PAGE_SIZE);
+    client.complete(1, PAGE_SIZE - 1);
+    assertThat(callback.searchResult.getImageCount()).isEqualTo(2 * PAGE_SIZE - 1);
+    assertThat(callback.searchResult.hasNextPage()).isFalse();
+
+    // Pages already in flight are ignored, no more pages are requested.
+    client.complete(2, 0);
+    assertThat(client.getPendingCount()).isEqualTo(1);
+    assertThat(callback.callCount).isEqualTo(1);
+  }
+
+  /** Make sure the first error is reported once. */
+  public void testFailure() throws Throwable {
+    final FakeSearchClient client = new FakeSearchClient(PAGE_SIZE).setImmediate(false);
+    final FakeCallback callback = new FakeCallback();
+    new PageRangeFetcher(client).search("duck", 0, 3, callback);
+
+    client.takeCallback(1).onFailure(new IOException("Connection reset."));
+    client.takeCallback(2).onFailure(new IOException("Connection reset."));
+    client.complete(0, PAGE_SIZE);
+    assertThat(callback.error).isNotNull();
+    assertThat(callback.searchResult).isNull();
+    assertThat(callback.callCount).isEqualTo(1);
+  }
+
+  /** Callback remembering the result it received. */
+  private static class FakeCallback implements SearchClient.SearchCallback {
+    /** Merged SearchResult. */
+    private SearchResult searchResult;
+    /** Error. */
+    private IOException error;
+    /** Number of times the callback was called. */
+    private int callCount;
+
+    @Override
+    public void onFailure(IOException e) {
+      error = e;
+      callCount++;
+    }
+
+    @Override
+    public void onSuccess(SearchResult searchResult) {
+      this.searchResult = searchResult;
+      callCount++;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import io.github.tjg1.library.norilib.clients.PageSizePolicy;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link PageSizePolicy} class. */
+public class PageSizePolicyTests extends AndroidTestCase {
+
+  /** Make sure fixed page sizes are clamped to the maximum supported by the API. */
+  public void testFixedPageSize() throws Throwable {
+    final PageSizePolicy policy = new PageSizePolicy(100, 200);
+    assertThat(policy.getPageSize("duck", 0, false)).isEqualTo(100);
+
+    policy.setPageSize(500);
+    assertThat(policy.getPageSize()).isEqualTo(200);
+    // Latency is ignored unless the policy is adaptive.
+    policy.onPageFetched(100, 10000);
+    assertThat(policy.getPageSize("bird", 0, false)).isEqualTo(200);
+  }
+
+  /** Make sure the page size follows the observed time needed to fetch each image. */
+  public void testAdaptivePageSize() throws Throwable {
+    final PageSizePolicy policy = new PageSizePolicy(100, 200)
+        .setAdaptive(true)
+        .setTargetLatency(2000);
+    // Nothing has been fetched yet.
+    assertThat(policy.getPageSize("duck", 0, false)).isEqualTo(100);
+
+    // Slow connection: 50ms per image.
+    policy.onPageFetched(100, 5000);
+    assertThat(policy.getPageSize("duck", 0, false)).isEqualTo(40);
+
+    // Fast connection: 1ms per image. The maximum page size is never exceeded.
+    for (int i = 0; i < 20; i++) {
+      policy.onPageFetched(100, 100);
+    }
+    assertThat(policy.getPageSize("bird", 0, false)).isEqualTo(200);
+  }
+
+  /** Make sure pages requested by number keep the size of the first page of the query. */
+  public void testNumberedPagesKeepPageSize() throws Throwable {
+    final PageSizePolicy policy = new PageSizePolicy(100, 200)
+        .setAdaptive(true)
+        .setTargetLatency(2000);
+    policy.onPageFetched(100, 5000);
+    assertThat(policy.getPageSize("duck", 0, false)).isEqualTo(40);
+
+    for (int i = 0; i < 20; i++) {
+      policy.onPageFetched(100, 100);
+    }
+    assertThat(policy.getPageSize("duck", 1, false)).isEqualTo(40);
+    // Pages requested by image ID can grow.
+    assertThat(policy.getPageSize("duck", 1, true)).isEqualTo(200);
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.koushikdutta.async.future.Future;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.cache.RevalidationCache;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+import io.github.tjg1.library.norilib.transport.HttpStatusException;
+import io.github.tjg1.library.norilib.transport.RateLimitedTransport;
+import io.github.tjg1.library.norilib.transport.RateLimiter;
+import io.github.tjg1.library.norilib.transport.Transport;
+import io.github.tjg1.library.norilib.util.StreamingParser;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link RateLimiter} and {@link RateLimitedTransport} classes. */
+public class RateLimiterTests extends AndroidTestCase {
+
+  /** Settings of the client used in tests. */
+  private static final SearchClient.Settings SETTINGS =
+      new SearchClient.Settings(SearchClient.Settings.APIType.E621, "E621", "https://e621.net");
+
+  /** Make sure requests are allowed in bursts, and then at the sustained rate. */
+  public void testTokenBucket() throws Throwable {
+    final RateLimiter rateLimiter = new RateLimiter()
+        .setLimit(SearchClient.Settings.APIType.E621, 1, 2);
+
+    assertThat(rateLimiter.acquire(SETTINGS)).isEqualTo(0);
+    assertThat(rateLimiter.acquire(SETTINGS)).isEqualTo(0);
+    assertThat(rateLimiter.acquire(SETTINGS)).isGreaterThan(500).isLessThanOrEqualTo(1000);
+    assertThat(rateLimiter.acquire(SETTINGS)).isGreaterThan(1500).isLessThanOrEqualTo(2000);
+
+    // Other endpoints have buckets of their own.
+    assertThat(rateLimiter.acquire(new SearchClient.Settings(SearchClient.Settings.APIType.E621,
+        "E926", "https://e926.net"))).isEqualTo(0);
+  }
+
+  /** Make sure no requests are sent to an endpoint while it is blocked. */
+  public void testBackOff() throws Throwable {
+    final RateLimiter rateLimiter = new RateLimiter();
+    rateLimiter.backOff(SETTINGS.getEndpoint(), 5000);
+
+    assertThat(rateLimiter.getBlockedFor(SETTINGS.getEndpoint())).isGreaterThan(4000);
+    assertThat(rateLimiter.acquire(SETTINGS)).isGreaterThan(4000);
+    assertThat(rateLimiter.getBlockedFor("https://e926.net")).isEqualTo(0);
+  }
+
+  /** Make sure throttled requests are retried. */
+  public void testRetryThrottledRequest() throws Throwable {
+    final FakeTransport transport = new FakeTransport(
+        new FakeResponse(429, "0"), new FakeResponse(200));
+    final HttpResponse response = new RateLimiter().wrap(transport, SETTINGS)
+        .execute(new HttpRequest("https://e621.net/posts.xml"))
+        .get();
+
+    assertThat(response.getCode()).isEqualTo(200);
+    assertThat(transport.getRequestCount()).isEqualTo(2);
+  }
+
+  /** Make sure throttling is reported with the Retry-After delay once retries run out. */
+  public void testThrottlingError() throws Throwable {
+    final Transport transport = new RateLimitedTransport(
+        new FakeTransport(new FakeResponse(429, "120")), new RateLimiter(), SETTINGS)
+        .setMaxRetries(0);
+    final Future<SearchResult> future = new RevalidationCache(1).load(transport,
+        new HttpRequest("https://e621.net/posts.xml"), "key", new StreamingParser<SearchResult>() {
+          @Override
+          protected SearchResult parse(Reader reader) throws IOException {
+            throw new IOException("Error pages should not be parsed.");
+          }
+        });
+
+    try {
+      RevalidationCache.get(future);
+      fail("Expected HttpStatusException.");
+    } catch (HttpStatusException e) {
+      assertThat(e.getCode()).isEqualTo(429);
+      assertThat(e.getRetryAfter()).isEqualTo(120000);
+    }
+  }
+
+  /** Make sure the time a request spends waiting for a token isn't counted as its latency. */
+  public void testSentTime() throws Throwable {
+    final Transport transport = new RateLimiter()
+        .setLimit(SearchClient.Settings.APIType.E621, 10, 1)
+        .wrap(new FakeTransport(new FakeResponse(200), new FakeResponse(200)), SETTINGS);
+    final long startTime = SystemClock.elapsedRealtime();
+
+    final HttpResponse first = transport.execute(new HttpRequest("https://e621.net/posts.xml")).get();
+    final HttpResponse second = transport.execute(new HttpRequest("https://e621.net/posts.xml")).get();
+    assertThat(first.getSentTime(0)).isLessThan(startTime + 50);
+    assertThat(second.getSentTime(0)).isGreaterThanOrEqualTo(startTime + 50);
+  }
+
+  /** Make sure both forms of the Retry-After header are understood. */
+  public void testRetryAfter() throws Throwable {
+    assertThat(new FakeResponse(503, "30").getRetryAfter()).isEqualTo(30000);
+    assertThat(new FakeResponse(503, "Sun, 25 Sep 2016 18:21:03 GMT").getRetryAfter()).isEqualTo(0);
+    assertThat(new FakeResponse(503, "soon").getRetryAfter())
+        .isEqualTo(HttpStatusException.NO_RETRY_AFTER);
+    assertThat(new FakeResponse(503, null).getRetryAfter())
+        .isEqualTo(HttpStatusException.NO_RETRY_AFTER);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.cache.RequestCoalescer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link RequestCoalescer} class. */
+public class RequestCoalescerTests extends AndroidTestCase {
+
+  /** API endpoint used by the tests. */
+  private static final String ENDPOINT = "https://example.com";
+
+  /** Make sure concurrent identical requests are only sent once and get their own results. */
+  public void testCoalescesConcurrentRequests() throws Throwable {
+    final RequestCoalescer coalescer = new RequestCoalescer();
+    final FakeRequest request = new FakeRequest();
+
+    final Future<SearchResult> first =
+        coalescer.execute(createKey(null, "duck bird", 1), request);
+    final Future<SearchResult> second =
+        coalescer.execute(createKey(null, "bird  duck", 1), request);
+
+    assertThat(request.executeCount).isEqualTo(1);
+    assertThat(coalescer.getRequestCount()).isEqualTo(1);
+    assertThat(coalescer.getCoalescedCount()).isEqualTo(1);
+    assertThat(first.isDone()).isFalse();
+
+    request.future.setComplete(createSearchResult());
+    assertThat(first.get().getImage(0).id).isEqualTo("1");
+    assertThat(second.get().getImage(0).id).isEqualTo("1");
+    assertThat(second.get()).isNotSameAs(first.get());
+
+    // Completed requests are sent again, requests made by other users are never coalesced.
+    coalescer.execute(createKey(null, "duck bird", 1), request);
+    coalescer.execute(createKey("user", "duck bird", 1), request);
+    assertThat(request.executeCount).isEqualTo(3);
+    assertThat(coalescer.getCoalescedCount()).isEqualTo(1);
+  }
+
+  /** Make sure the request is only cancelled once every caller waiting for it has cancelled. */
+  public void testCancellation() throws Throwable {
+    final RequestCoalescer coalescer = new RequestCoalescer();
+    final FakeRequest request = new FakeRequest();
+    final String key = createKey(null, "duck", 0);
+
+    final Future<SearchResult> first = coalescer.execute(key, request);
+    final Future<SearchResult> second = coalescer.execute(key, request);
+    final SimpleFuture<SearchResult> response = request.future;
+
+    assertThat(first.cancel()).isTrue();
+    assertThat(response.isCancelled()).isFalse();
+    assertThat(second.cancel()).isTrue();
+    assertThat(response.isCancelled()).isTrue();
+
+    // The cancelled request is not reused.
+    final Future<SearchResult> third = coalescer.execute(key, request);
+    assertThat(request.executeCount).isEqualTo(2);
+    request.future.setComplete(createSearchResult());
+    assertThat(third.get().getImage(0).id).isEqualTo("1");
+  }
+
+  /** Make sure requests for a different page size or cursor are not coalesced. */
+  public void testKeyIncludesPageSizeAndCursor() throws Throwable {
+    final String key = createKey(null, "duck", 1);
+    assertThat(RequestCoalescer.createKey(ENDPOINT, null, "duck", 1, 50, SearchResult.NO_CURSOR))
+        .isNotEqualTo(key);
+    assertThat(RequestCoalescer.createKey(ENDPOINT, null, "duck", 1, 100, 12345))
+        .isNotEqualTo(key);
+  }
+
+  /** Make sure errors are delivered to every caller. */
+  public void testFailure() throws Throwable {
+    final RequestCoalescer coalescer = new RequestCoalescer();
+    final FakeRequest request = new FakeRequest();
+    final String key = createKey(null, "duck", 0);
+
+    final Future<SearchResult> first = coalescer.execute(key, request);
+    final Future<SearchResult> second = coalescer.execute(key, request);
+    request.future.setComplete(new IOException("Connection reset."));
+
+    final List<Future<SearchResult>> futures = Arrays.asList(first, second);
+    for (Future<SearchResult> future : futures) {
+      try {
+        future.get();
+        fail("ExecutionException expected.");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(IOException.class);
+      }
+    }
+  }
+
+  /**
+   * Create the key of a request for a page of 100 images, requested by page number.
+   *
+   * @param username Username used to authenticate the request. Null for anonymous requests.
+   * @param tags     Search query.
+   * @param pid      Page number.
+   * @return Request key.
+   */
+  private static String createKey(String username, String tags, int pid) {
+    return RequestCoalescer.createKey(ENDPOINT, username, tags, pid, 100, SearchResult.NO_CURSOR);
+  }
+
+  /**
+   * Create a single-image SearchResult.
+   *
+   * @return SearchResult returned by the fake request.
+   */
+  private static SearchResult createSearchResult() {
+    final Image image = new Image();
+    image.id = "1";
+    image.setTags(Tag.arrayFromString("duck bird"));
+    return new SearchResult(new Image[]{image}, Tag.arrayFromString("duck bird"), 1);
+  }
+
+  /** Request completed manually by the tests. */
+  private static class FakeRequest implements RequestCoalescer.Request {
+    /** Future returned by the last call to {@link #execute()}. */
+    private SimpleFuture<SearchResult> future;
+    /** Number of times the request was sent. */
+    private int executeCount;
+
+    @Override
+    public Future<SearchResult> execute() {
+      executeCount++;
+      future = new SimpleFuture<>();
+      return future;
+    }
+  }
+}
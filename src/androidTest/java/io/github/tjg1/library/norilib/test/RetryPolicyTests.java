@@ -0,0 +1,133 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.transport.HedgingTransport;
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+import io.github.tjg1.library.norilib.transport.RateLimiter;
+import io.github.tjg1.library.norilib.transport.RetryPolicy;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link RetryPolicy} and {@link HedgingTransport} classes. */
+public class RetryPolicyTests extends AndroidTestCase {
+
+  /** API endpoint used in tests. */
+  private static final String ENDPOINT = "https://gelbooru.com";
+  /** Request used in tests. */
+  private static final String URL = ENDPOINT + "/index.php?page=dapi&s=post&q=index";
+
+  /** Make sure requests are hedged after the 95th percentile of recent latencies. */
+  public void testGetHedgeDelay() throws Throwable {
+    final RetryPolicy retryPolicy = new RetryPolicy();
+    for (int i = 1; i < 20; i++) {
+      retryPolicy.recordLatency(ENDPOINT, i);
+    }
+    // Not enough samples yet.
+    assertThat(retryPolicy.getHedgeDelay(ENDPOINT)).isEqualTo(RetryPolicy.NO_HEDGE);
+
+    for (int i = 20; i <= 100; i++) {
+      retryPolicy.recordLatency(ENDPOINT, i);
+    }
+    assertThat(retryPolicy.getHedgeDelay(ENDPOINT)).isEqualTo(95);
+    assertThat(retryPolicy.getHedgeDelay("https://safebooru.org")).isEqualTo(RetryPolicy.NO_HEDGE);
+    assertThat(retryPolicy.setHedging(false).getHedgeDelay(ENDPOINT)).isEqualTo(RetryPolicy.NO_HEDGE);
+  }
+
+  /** Make sure hedges and retries are limited by the retry budget. */
+  public void testRetryBudget() throws Throwable {
+    final RetryPolicy retryPolicy = new RetryPolicy().setBudgetRatio(0.5);
+    for (int i = 0; i < 10; i++) {
+      assertThat(retryPolicy.tryAcquireRetry(ENDPOINT)).isTrue();
+    }
+    assertThat(retryPolicy.tryAcquireRetry(ENDPOINT)).isFalse();
+
+    // Two requests earn a retry.
+    retryPolicy.onRequest(ENDPOINT);
+    assertThat(retryPolicy.tryAcquireRetry(ENDPOINT)).isFalse();
+    retryPolicy.onRequest(ENDPOINT);
+    assertThat(retryPolicy.tryAcquireRetry(ENDPOINT)).isTrue();
+  }
+
+  /** Make sure a second request is sent if the first one is slow, and the first is cancelled. */
+  public void testHedgeSlowRequest() throws Throwable {
+    final RetryPolicy retryPolicy = new RetryPolicy();
+    for (int i = 0; i < 20; i++) {
+      retryPolicy.recordLatency(ENDPOINT, 10);
+    }
+    // The first request never completes.
+    final FakeTransport transport = new FakeTransport(null, new FakeResponse(200));
+
+    final HttpResponse response = new HedgingTransport(transport, retryPolicy, ENDPOINT)
+        .execute(new HttpRequest(URL))
+        .get();
+    assertThat(response.getCode()).isEqualTo(200);
+    assertThat(transport.getRequestCount()).isEqualTo(2);
+    assertThat(transport.getFuture(0).isCancelled()).isTrue();
+  }
+
+  /** Make sure network errors and transient server errors are retried. */
+  public void testRetryFailures() throws Throwable {
+    final FakeTransport transport = new FakeTransport(
+        new IOException("Connection reset"), new FakeResponse(502), new FakeResponse(200));
+
+    final HttpResponse response = new HedgingTransport(transport, new RetryPolicy(), ENDPOINT)
+        .execute(new HttpRequest(URL))
+        .get();
+    assertThat(response.getCode()).isEqualTo(200);
+    assertThat(transport.getRequestCount()).isEqualTo(3);
+  }
+
+  /** Make sure every request sent for a search, including retries, is rate limited. */
+  public void testRetriesRateLimited() throws Throwable {
+    final SearchClient.Settings settings =
+        new SearchClient.Settings(SearchClient.Settings.APIType.GELBOARD, "Gelbooru", ENDPOINT);
+    final RateLimiter rateLimiter = new RateLimiter()
+        .setLimit(SearchClient.Settings.APIType.GELBOARD, 1, 3);
+    final FakeTransport transport = new FakeTransport(
+        new IOException("Connection reset"), new FakeResponse(502), new FakeResponse(200));
+
+    final HttpResponse response = new RetryPolicy()
+        .wrap(rateLimiter.wrap(transport, settings), settings)
+        .execute(new HttpRequest(URL))
+        .get();
+    assertThat(response.getCode()).isEqualTo(200);
+    assertThat(transport.getRequestCount()).isEqualTo(3);
+    // All three tokens have been used up.
+    assertThat(rateLimiter.acquire(settings)).isGreaterThan(0);
+  }
+
+  /** Make sure the last failure is returned once there are no attempts left. */
+  public void testRetriesExhausted() throws Throwable {
+    final FakeTransport transport = new FakeTransport(
+        new FakeResponse(500), new FakeResponse(500), new FakeResponse(200));
+
+    final HttpResponse response =
+        new HedgingTransport(transport, new RetryPolicy().setMaxAttempts(2), ENDPOINT)
+            .execute(new HttpRequest(URL))
+            .get();
+    assertThat(response.getCode()).isEqualTo(500);
+    assertThat(transport.getRequestCount()).isEqualTo(2);
+  }
+
+  /** Make sure client errors are never retried. */
+  public void testNoRetryClientError() throws Throwable {
+    final FakeTransport transport = new FakeTransport(new FakeResponse(404), new FakeResponse(200));
+
+    final HttpResponse response = new HedgingTransport(transport, new RetryPolicy(), ENDPOINT)
+        .execute(new HttpRequest(URL))
+        .get();
+    assertThat(response.getCode()).isEqualTo(404);
+    assertThat(transport.getRequestCount()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.cache.RevalidationCache;
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.util.StreamingParser;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link RevalidationCache} class. */
+public class RevalidationCacheTests extends AndroidTestCase {
+
+  /** Request key used by the tests. */
+  private static final String KEY = "https://example.com/post/index.xml?tags=duck&limit=100&pid=0";
+
+  /** Make sure pages are only remembered if the server sent at least one validator. */
+  public void testPutRequiresValidators() throws Throwable {
+    final RevalidationCache cache = new RevalidationCache(RevalidationCache.DEFAULT_MAX_ENTRIES);
+
+    cache.put(KEY, null, "", createSearchResult());
+    assertThat(cache.contains(KEY)).isFalse();
+
+    cache.put(KEY, "\"5a3f\"", null, createSearchResult());
+    assertThat(cache.contains(KEY)).isTrue();
+    cache.put(KEY, null, "Sat, 15 Oct 2016 12:34:56 GMT", createSearchResult());
+    assertThat(cache.contains(KEY)).isTrue();
+
+    // A later response without validators replaces the stale entry.
+    cache.put(KEY, null, null, createSearchResult());
+    assertThat(cache.contains(KEY)).isFalse();
+  }
+
+  /** Make sure the least recently used pages are forgotten first. */
+  public void testEviction() throws Throwable {
+    final RevalidationCache cache = new RevalidationCache(2);
+
+    cache.put(KEY + 1, "\"1\"", null, createSearchResult());
+    cache.put(KEY + 2, "\"2\"", null, createSearchResult());
+    assertThat(cache.contains(KEY + 1)).isTrue();
+    cache.put(KEY + 3, "\"3\"", null, createSearchResult());
+
+    assertThat(cache.contains(KEY + 1)).isTrue();
+    assertThat(cache.contains(KEY + 2)).isFalse();
+    assertThat(cache.contains(KEY + 3)).isTrue();
+
+    cache.evictAll();
+    assertThat(cache.contains(KEY + 1)).isFalse();
+  }
+
+  /** Make sure known pages are revalidated with the server, bypassing the transport's cache. */
+  public void testConditionalRequest() throws Throwable {
+    final RevalidationCache cache = new RevalidationCache(RevalidationCache.DEFAULT_MAX_ENTRIES);
+    cache.put(KEY, "\"5a3f\"", null, createSearchResult());
+    final FakeTransport transport = new FakeTransport(new FakeResponse(304));
+
+    final SearchResult searchResult = RevalidationCache.get(cache.load(transport,
+        new HttpRequest(KEY), KEY, new StreamingParser<SearchResult>() {
+          @Override
+          protected SearchResult parse(Reader reader) throws IOException {
+            throw new IOException("Unmodified pages should not be parsed.");
+          }
+        }));
+    assertThat(searchResult.getImageCount()).isEqualTo(1);
+    assertThat(transport.getRequest(0).isUseCaches()).isFalse();
+    assertThat(transport.getRequest(0).getHeaders().get("If-None-Match")).isEqualTo("\"5a3f\"");
+    assertThat(cache.getNotModifiedCount()).isEqualTo(1);
+  }
+
+  /**
+   * Create a single-image SearchResult.
+   *
+   * @return SearchResult to cache.
+   */
+  private static SearchResult createSearchResult() {
+    final Image image = new Image();
+    image.id = "1";
+    image.setTags(Tag.arrayFromString("duck"));
+    return new SearchResult(new Image[]{image}, Tag.arrayFromString("duck"), 0);
+  }
+}
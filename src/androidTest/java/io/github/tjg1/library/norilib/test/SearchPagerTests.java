@@ -0,0 +1,120 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+
+import io.github.tjg1.library.norilib.SearchPager;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link SearchPager} class. */
+public class SearchPagerTests extends AndroidTestCase {
+
+  /** Number of images on each page returned by the fake client. */
+  private static final int PAGE_SIZE = 4;
+
+  /** Make sure pages are fetched ahead and merged in order, even if they arrive out of order. */
+  public void testOrderedMerge() throws Throwable {
+    final FakeSearchClient client = new FakeSearchClient(PAGE_SIZE).setImmediate(false);
+    final FakeListener listener = new FakeListener();
+    final SearchPager pager = new SearchPager(client, listener)
+        .setLookahead(2)
+        .setPrefetchDistance(1000);
+
+    pager.search("duck");
+    client.complete(0, PAGE_SIZE);
+    assertThat(listener.searchResult.getImageCount()).isEqualTo(PAGE_SIZE);
+    // Pages 1 and 2 are fetched ahead.
+    assertThat(client.getPendingCount()).isEqualTo(2);
+
+    client.complete(2, PAGE_SIZE);
+    assertThat(pager.getSearchResult().getImageCount()).isEqualTo(PAGE_SIZE);
+    client.complete(1, PAGE_SIZE);
+    assertThat(pager.getSearchResult().getImageCount()).isEqualTo(3 * PAGE_SIZE);
+    for (int i = 0; i < 3 * PAGE_SIZE; i++) {
+      assertThat(pager.getSearchResult().getImage(i).id).isEqualTo(Integer.toString(i));
+    }
+    assertThat(pager.getSearchResult().getCurrentOffset()).isEqualTo(2);
+  }
+
+  /** Make sure only up to the lookahead pages are fetched ahead, and only when needed. */
+  public void testLookahead() throws Throwable {
+    final FakeSearchClient client = new FakeSearchClient(PAGE_SIZE).setImmediate(false);
+    final SearchPager pager = new SearchPager(client, new FakeListener())
+        .setLookahead(1)
+        .setPrefetchDistance(2);
+
+    pager.search("duck");
+    client.complete(0, 100);
+    assertThat(client.getPendingCount()).isEqualTo(0);
+
+    pager.onImageVisible(96);
+    assertThat(client.getPendingCount()).isEqualTo(0);
+    pager.onImageVisible(97);
+    assertThat(client.getPendingCount()).isEqualTo(1);
+    pager.onImageVisible(99);
+    assertThat(client.getPendingCount()).isEqualTo(1);
+    assertThat(pager.isLoading()).isTrue();
+  }
+
+  /** Make sure responses to the previous query are discarded after the query changes. */
+  public void testQueryChange() throws Throwable {
+    final FakeSearchClient client = new FakeSearchClient(PAGE_SIZE).setImmediate(false);
+    final FakeListener listener = new FakeListener();
+    final SearchPager pager = new SearchPager(client, listener);
+
+    pager.search("duck");
+    final SearchClient.SearchCallback staleCallback = client.takeCallback(0);
+    pager.search("bird");
+
+    staleCallback.onSuccess(client.createPage("duck", 0, PAGE_SIZE));
+    assertThat(pager.getSearchResult()).isNull();
+    assertThat(listener.searchResult).isNull();
+
+    client.complete(0, PAGE_SIZE);
+    assertThat(pager.getSearchResult().getQuery()[0].getName()).isEqualTo("bird");
+  }
+
+  /** Make sure paging stops at the first empty page. */
+  public void testLastPage() throws Throwable {
+    final FakeSearchClient client = new FakeSearchClient(PAGE_SIZE).setImmediate(false);
+    final SearchPager pager = new SearchPager(client, new FakeListener())
+        .setPrefetchDistance(1000);
+
+    pager.search("duck");
+    client.complete(0, PAGE_SIZE);
+    client.complete(1, 0);
+    assertThat(pager.getSearchResult().hasNextPage()).isFalse();
+
+    // Page 2 was already in flight, but is discarded.
+    client.complete(2, PAGE_SIZE);
+    pager.onImageVisible(PAGE_SIZE - 1);
+    assertThat(pager.getSearchResult().getImageCount()).isEqualTo(PAGE_SIZE);
+    assertThat(client.getPendingCount()).isEqualTo(0);
+  }
+
+  /** {@link SearchPager.Listener} remembering the last SearchResult it received. */
+  private static class FakeListener implements SearchPager.Listener {
+    /** Last SearchResult received. */
+    private SearchResult searchResult;
+
+    @Override
+    public void onSearchResult(SearchResult searchResult) {
+      this.searchResult = searchResult;
+    }
+
+    @Override
+    public void onFailure(IOException e) {
+      fail(e.toString());
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.cache.CachingSearchClient;
+import io.github.tjg1.library.norilib.cache.SearchResultCache;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link SearchResultCache} and {@link CachingSearchClient} classes. */
+public class SearchResultCacheTests extends AndroidTestCase {
+
+  /** API endpoint used by the fake client. */
+  private static final String ENDPOINT = "https://example.com";
+
+  /** Make sure equivalent queries get the same cache key. */
+  public void testCreateKey() throws Throwable {
+    assertThat(SearchResultCache.createKey(ENDPOINT, null, "duck  bird", 1))
+        .isEqualTo(SearchResultCache.createKey(ENDPOINT + "/", null, " bird duck duck", 1));
+    assertThat(SearchResultCache.createKey(ENDPOINT, null, "duck bird", 1))
+        .isNotEqualTo(SearchResultCache.createKey(ENDPOINT, null, "duck bird", 2));
+    assertThat(SearchResultCache.createKey(ENDPOINT, "", "duck bird", 1))
+        .isEqualTo(SearchResultCache.createKey(ENDPOINT, null, "duck bird", 1));
+  }
+
+  /** Make sure pages fetched by one user aren't returned to another. */
+  public void testUsername() throws Throwable {
+    final SearchResultCache cache = new SearchResultCache();
+    cache.put(ENDPOINT, "user", "duck", 0, new FakeSearchClient(2).search("duck", 0));
+    assertThat(cache.get(ENDPOINT, null, "duck", 0)).isNull();
+    assertThat(cache.get(ENDPOINT, "other", "duck", 0)).isNull();
+    assertThat(cache.get(ENDPOINT, "user", "duck", 0)).isNotNull();
+  }
+
+  /** Make sure cached pages are returned by the sync search methods and counted. */
+  public void testCachingSearchClient() throws Throwable {
+    final FakeSearchClient client = new FakeSearchClient(2);
+    final SearchResultCache cache = new SearchResultCache();
+    final CachingSearchClient cachingClient = new CachingSearchClient(client, cache);
+
+    final SearchResult first = cachingClient.search("duck bird", 1);
+    final SearchResult second = cachingClient.search("bird duck", 1);
+    cachingClient.search("duck", 1);
+
+    assertThat(client.getRequestCount()).isEqualTo(2);
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getMissCount()).isEqualTo(2);
+    assertThat(second.getImages()).hasSize(first.getImages().length);
+    assertThat(second.getImage(0).id).isEqualTo(first.getImage(0).id);
+  }
+
+  /** Make sure changes to returned pages don't affect the cache. */
+  public void testReturnsCopies() throws Throwable {
+    final SearchResultCache cache = new SearchResultCache();
+    final SearchResult searchResult = new FakeSearchClient(2).search("duck", 0);
+    cache.put(ENDPOINT, null, "duck", 0, searchResult);
+    searchResult.filter(Image.SafeSearchRating.E);
+
+    final SearchResult cachedResult = cache.get(ENDPOINT, null, "duck", 0);
+    assertThat(cachedResult.getImageCount()).isEqualTo(2);
+    cachedResult.getImage(0).id = "changed";
+    assertThat(cache.get(ENDPOINT, null, "duck", 0).getImage(0).id).isNotEqualTo("changed");
+  }
+
+  /** Make sure pages expire after their endpoint's time to live. */
+  public void testTimeToLive() throws Throwable {
+    final SearchResultCache cache = new SearchResultCache();
+    cache.setTimeToLive(ENDPOINT + "/", 0);
+    assertThat(cache.getTimeToLive(ENDPOINT)).isEqualTo(0);
+    assertThat(cache.getTimeToLive("https://example.org"))
+        .isEqualTo(SearchResultCache.DEFAULT_TIME_TO_LIVE);
+
+    cache.put(ENDPOINT, null, "duck", 0, new FakeSearchClient(2).search("duck", 0));
+    cache.put("https://example.org", null, "duck", 0, new FakeSearchClient(2).search("duck", 0));
+    assertThat(cache.get(ENDPOINT, null, "duck", 0)).isNull();
+    assertThat(cache.get("https://example.org", null, "duck", 0)).isNotNull();
+  }
+
+  /** Make sure least recently used pages are evicted when the cache exceeds its size budget. */
+  public void testSizeBudget() throws Throwable {
+    final SearchResultCache cache = new SearchResultCache(2048,
+        SearchResultCache.DEFAULT_TIME_TO_LIVE);
+    final FakeSearchClient client = new FakeSearchClient(2);
+    for (int i = 0; i < 10; i++) {
+      cache.put(ENDPOINT, null, "duck", i, client.search("duck", i));
+    }
+    assertThat(cache.getSize()).isLessThanOrEqualTo(2048);
+    assertThat(cache.get(ENDPOINT, null, "duck", 9)).isNotNull();
+    assertThat(cache.get(ENDPOINT, null, "duck", 0)).isNull();
+  }
+}
@@ -10,9 +10,12 @@ import android.os.Bundle;
 import android.test.AndroidTestCase;
 
 import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.ImageFilter;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
 
+import java.util.List;
+
 import static org.fest.assertions.api.Assertions.assertThat;
 
 /** Tests the {@link io.github.tjg1.library.norilib.SearchResult} test. */
@@ -42,10 +45,27 @@ public class SearchResultTests extends AndroidTestCase {
     final SearchResult searchResult = getMockSearchResult();
     searchResult.filter(new Tag("duck"));
     assertThat(searchResult.getImages()).hasSize(1);
-    assertThat(searchResult.getImages()[0].tags[0].getName()).isEqualTo("bird");
+    assertThat(searchResult.getImages()[0].getTags()[0].getName()).isEqualTo("bird");
     assertThat(searchResult.getImages()[0].searchPagePosition).isEqualTo(0);
   }
 
+  /** Make sure images added after the SearchResult was created and filtered can be filtered. */
+  public void testFilterWithTagsAfterAddImages() throws Throwable {
+    final SearchResult searchResult = getMockSearchResult();
+    searchResult.filter(Image.SafeSearchRating.Q);
+    // Added images are rated Q, so they pass the rating filter that remains active.
+    searchResult.addImages(new Image[]{
+        ImageTests.getMockImage(Image.SafeSearchRating.Q, new Tag("duck")),
+        ImageTests.getMockImage(Image.SafeSearchRating.Q, new Tag("bird"), new Tag("Tag"))}, 1);
+    searchResult.filter(new Tag("duck"), new Tag("Tag"), new Tag("unknown_tag"));
+    // Images tagged with the search query should not be filtered.
+    assertThat(searchResult.getImages()).hasSize(2);
+    assertThat(searchResult.getImages()[0].getTags()).containsOnly(new Tag("bird"));
+    assertThat(searchResult.getImages()[1].getTags()).containsOnly(new Tag("bird"), new Tag("Tag"));
+    searchResult.filter(new Tag("bird"));
+    assertThat(searchResult.getImages()).isEmpty();
+  }
+
   /** Tests the {@link io.github.tjg1.library.norilib.SearchResult#addImages(io.github.tjg1.library.norilib.Image[], int)} method. */
   public void testAddImages() throws Throwable {
     final SearchResult searchResult = getMockSearchResult();
@@ -70,6 +90,95 @@ public class SearchResultTests extends AndroidTestCase {
     assertThat(searchResult.getImages()[0].searchPagePosition).isEqualTo(0);
   }
 
+  /** Tests the {@link SearchResult#filter(ImageFilter)} method. */
+  public void testFilterWithImageFilter() throws Throwable {
+    final SearchResult searchResult = getMockSearchResult();
+    final Image[] page1 = new Image[4];
+    for (int i = 0; i < page1.length; i++) {
+      page1[i] = ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("bird"));
+      page1[i].searchPage = 1;
+      page1[i].searchPagePosition = i;
+      page1[i].score = i * 10;
+    }
+    page1[3].width = 10;
+    searchResult.addImages(page1, 1);
+
+    searchResult.filter(new ImageFilter()
+        .setTagBlacklist(new Tag("duck"))
+        .setSafeSearchRatings(Image.SafeSearchRating.S, Image.SafeSearchRating.Q)
+        .setMinScore(10)
+        .setMinSize(100, 100));
+    // Removes the mock image tagged "duck", the image with score 0 and the image that is too small.
+    final Image[] images = searchResult.getImages();
+    assertThat(images).hasSize(3);
+    assertThat(images[0].searchPage).isEqualTo(0);
+    assertThat(images[0].searchPagePosition).isEqualTo(0);
+    assertThat(images[1]).isSameAs(page1[1]);
+    assertThat(images[1].searchPagePosition).isEqualTo(0);
+    assertThat(images[2]).isSameAs(page1[2]);
+    assertThat(images[2].searchPagePosition).isEqualTo(1);
+  }
+
+  /** Make sure filters are applied to images added after filtering. */
+  public void testFiltersAppliedOnAddImages() throws Throwable {
+    final ImageFilter filter = new ImageFilter()
+        .setTagBlacklist(new Tag("duck"))
+        .setSafeSearchRatings(Image.SafeSearchRating.S, Image.SafeSearchRating.Q);
+    final SearchResult sticky = getMockSearchResult();
+    final SearchResult refiltered = getMockSearchResult();
+    sticky.filter(filter);
+
+    // Add the same page to both results, only re-filter one of them.
+    for (SearchResult searchResult : new SearchResult[]{sticky, refiltered}) {
+      final Image[] page = new Image[]{
+          ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("duck")),
+          ImageTests.getMockImage(Image.SafeSearchRating.E, new Tag("bird")),
+          ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("bird"))};
+      for (int i = 0; i < page.length; i++) {
+        page[i].searchPage = 1;
+        page[i].searchPagePosition = i;
+      }
+      searchResult.addImages(page, 1);
+    }
+    refiltered.filter(filter);
+
+    assertThat(sticky.getImages()).hasSize(2);
+    assertThat(sticky.getImages()).hasSize(refiltered.getImages().length);
+    for (int i = 0; i < sticky.getImages().length; i++) {
+      assertThat(sticky.getImages()[i].getTagIds()).isEqualTo(refiltered.getImages()[i].getTagIds());
+      assertThat(sticky.getImages()[i].searchPage).isEqualTo(refiltered.getImages()[i].searchPage);
+      assertThat(sticky.getImages()[i].searchPagePosition)
+          .isEqualTo(refiltered.getImages()[i].searchPagePosition);
+    }
+    assertThat(sticky.getActiveFilter().getTagBlacklist()).containsOnly(new Tag("duck"));
+  }
+
+  /** Tests reading images without copying them. */
+  public void testReadOnlyViews() throws Throwable {
+    final SearchResult searchResult = getMockSearchResult();
+    final Image image = ImageTests.getMockImage(Image.SafeSearchRating.E, new Tag("quack"));
+    image.searchPage = 1;
+    image.searchPagePosition = 0;
+    final List<Image> imageList = searchResult.getImageList();
+    searchResult.addImages(new Image[]{image}, 1);
+
+    assertThat(searchResult.getImageCount()).isEqualTo(3);
+    assertThat(searchResult.getImage(2)).isSameAs(image);
+    // Views reflect images added after they were created.
+    assertThat(imageList).hasSize(3).containsExactly(searchResult.getImages());
+    assertThat(searchResult).containsExactly(searchResult.getImages());
+    assertThat(searchResult.getPageImages(0)).hasSize(2);
+    assertThat(searchResult.getPageImages(1)).containsExactly(image);
+    assertThat(searchResult.getPageImages(2)).isEmpty();
+
+    try {
+      imageList.remove(0);
+      fail("UnsupportedOperationException expected.");
+    } catch (UnsupportedOperationException ignored) {
+      // Expected.
+    }
+  }
+
   /** Tests the {@link io.github.tjg1.library.norilib.SearchResult#getCurrentOffset()} method. */
   public void testGetCurrentOffset() throws Throwable {
     final SearchResult searchResult = getMockSearchResult();
@@ -78,6 +187,44 @@ public class SearchResultTests extends AndroidTestCase {
     assertThat(searchResult.getCurrentOffset()).isEqualTo(30);
   }
 
+  /** Make sure images without a SafeSearch rating are only removed by SafeSearch rating filters. */
+  public void testImagesWithoutRating() throws Throwable {
+    final Image image = ImageTests.getMockImage(null, new Tag("duck"));
+    final SearchResult searchResult =
+        new SearchResult(new Image[]{image}, new Tag[]{new Tag("duck")}, 0);
+    assertThat(searchResult.getImageCount()).isEqualTo(1);
+    assertThat(new SearchResult(searchResult).getImageCount()).isEqualTo(1);
+
+    // Tag filters stay active for added images, and don't remove unrated ones.
+    searchResult.filter(new Tag("x"));
+    assertThat(searchResult.getImageCount()).isEqualTo(1);
+    searchResult.addImages(new Image[]{ImageTests.getMockImage(null, new Tag("duck"))}, 1);
+    assertThat(searchResult.getImageCount()).isEqualTo(2);
+
+    // Filtering by rating removes unrated images.
+    searchResult.filter(Image.SafeSearchRating.S);
+    assertThat(searchResult.getImageCount()).isEqualTo(0);
+  }
+
+  /** Make sure the next page cursor is the lowest image ID added, even if the image was filtered. */
+  public void testGetNextPageCursor() throws Throwable {
+    final SearchResult searchResult = new SearchResult(new Image[0], new Tag[]{new Tag("duck")}, 0);
+    assertThat(searchResult.getNextPageCursor()).isEqualTo(SearchResult.NO_CURSOR);
+
+    final Image[] images = new Image[]{
+        ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("duck")),
+        ImageTests.getMockImage(Image.SafeSearchRating.E, new Tag("duck")),
+        ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("duck"))};
+    images[0].id = "300";
+    images[1].id = "200";
+    images[2].id = "not-a-number";
+    searchResult.filter(Image.SafeSearchRating.S);
+    searchResult.addImages(images, 1);
+    assertThat(searchResult.getImageCount()).isEqualTo(2);
+    assertThat(searchResult.getNextPageCursor()).isEqualTo(200);
+    assertThat(new SearchResult(searchResult).getNextPageCursor()).isEqualTo(200);
+  }
+
   /** Tests the {@link io.github.tjg1.library.norilib.SearchResult#onLastPage()} method. */
   public void testOnLastPage() throws Throwable {
     final SearchResult searchResult = getMockSearchResult();
@@ -98,6 +245,77 @@ public class SearchResultTests extends AndroidTestCase {
     assertThat(filteredSearchResult.getImages()[0].searchPage).isEqualTo(1);
   }
 
+  /** Make sure page ranges are updated when images are added and filtered. */
+  public void testPageRanges() throws Throwable {
+    final SearchResult searchResult = getMockSearchResult();
+    final Image[] page = new Image[3];
+    for (int i = 0; i < page.length; i++) {
+      page[i] = ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag(i == 0 ? "duck" : "bird"));
+      page[i].searchPage = 1;
+      page[i].searchPagePosition = i;
+    }
+    searchResult.addImages(page, 1);
+    assertThat(searchResult.getPageStart(0)).isEqualTo(0);
+    assertThat(searchResult.getPageEnd(0)).isEqualTo(2);
+    assertThat(searchResult.getPageStart(1)).isEqualTo(2);
+    assertThat(searchResult.getPageEnd(1)).isEqualTo(5);
+    assertThat(searchResult.getPageStart(2)).isEqualTo(-1);
+
+    // Removes the first image of both pages.
+    searchResult.filter(new Tag("duck"));
+    assertThat(searchResult.getPageStart(0)).isEqualTo(0);
+    assertThat(searchResult.getPageEnd(0)).isEqualTo(1);
+    assertThat(searchResult.getPageStart(1)).isEqualTo(1);
+    assertThat(searchResult.getPageEnd(1)).isEqualTo(3);
+
+    final SearchResult pageResult = searchResult.getSearchResultForPage(1);
+    assertThat(pageResult.getImages()).containsExactly(page[1], page[2]);
+    assertThat(pageResult.getCurrentOffset()).isEqualTo(1);
+    assertThat(pageResult.getQuery()).isEqualTo(searchResult.getQuery());
+  }
+
+  /** Make sure images already in the SearchResult are dropped when pages are added. */
+  public void testDeduplication() throws Throwable {
+    final SearchResult searchResult = getMockSearchResult();
+    final Image[] firstPage = searchResult.getImages();
+
+    // An image shifted onto the next page by new uploads, a copy of the same file from another
+    // service and a new image.
+    final Image shifted = new Image(firstPage[1]);
+    final Image mirrored = ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("duck"));
+    mirrored.md5 = firstPage[0].md5;
+    mirrored.webUrl = "https://mirror.example.com/post/view/1";
+    final Image[] page = new Image[]{shifted, mirrored,
+        ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("bird"))};
+    for (int i = 0; i < page.length; i++) {
+      page[i].searchPage = 1;
+      page[i].searchPagePosition = i;
+    }
+    searchResult.addImages(page, 1);
+
+    assertThat(searchResult.getImageCount()).isEqualTo(3);
+    assertThat(searchResult.getImage(2)).isSameAs(page[2]);
+    assertThat(searchResult.getImage(2).searchPagePosition).isEqualTo(0);
+  }
+
+  /** Make sure images without a real MD5 hash are identified by service and ID. */
+  public void testFingerprintWithoutMd5() throws Throwable {
+    final Image image = ImageTests.getMockImage(Image.SafeSearchRating.S, new Tag("duck"));
+    image.md5 = Image.PLACEHOLDER_MD5;
+    final Image sameId = new Image(image);
+    sameId.webUrl = image.webUrl + "?page=2";
+    final Image otherService = new Image(image);
+    otherService.webUrl = "https://mirror.example.com/post/view/image";
+
+    assertThat(sameId.getFingerprint()).isEqualTo(image.getFingerprint());
+    assertThat(otherService.getFingerprint()).isNotEqualTo(image.getFingerprint());
+    assertThat(new SearchResult(new Image[]{image, sameId, otherService}, new Tag[0], 0)
+        .getImageCount()).isEqualTo(2);
+
+    image.id = null;
+    assertThat(image.getFingerprint()).isEqualTo(Image.NO_FINGERPRINT);
+  }
+
   /** Create a SearchResult with fake data suitable for testing. */
   public static SearchResult getMockSearchResult() {
     final Image[] images = new Image[]{
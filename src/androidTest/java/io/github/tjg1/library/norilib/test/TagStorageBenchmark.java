@@ -0,0 +1,153 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Locale;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.Tag;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Compares the heap retained by the tags of 10,000 parsed {@link Image}s when stored as:
+ * <ul>
+ * <li>One new {@link Tag} per tag name, as the API clients used to do.</li>
+ * <li>Shared {@link Tag} instances returned by {@link Tag#arrayFromString(String)}.</li>
+ * <li>{@link io.github.tjg1.library.norilib.TagDictionary} IDs, as stored by {@link Image#setTags(Tag...)}.</li>
+ * </ul>
+ * Results are written to LogCat.
+ */
+public class TagStorageBenchmark extends AndroidTestCase {
+
+  /** LogCat tag. */
+  private static final String TAG = "norilib.test.TagStorageBenchmark";
+  /** Number of images retained. */
+  private static final int IMAGE_COUNT = 10000;
+  /** Number of tags on each image. */
+  private static final int TAGS_PER_IMAGE = 25;
+  /** Number of distinct tag names used across all images. */
+  private static final int VOCABULARY_SIZE = 2000;
+  /** Store a new {@link Tag} for each tag name. */
+  private static final int STORAGE_NEW_TAGS = 0;
+  /** Store shared {@link Tag} instances. */
+  private static final int STORAGE_SHARED_TAGS = 1;
+  /** Store tag IDs in the {@link Image}. */
+  private static final int STORAGE_TAG_IDS = 2;
+
+  /**
+   * Verify that shared tags and tag IDs use less memory than new tag instances and log the retained
+   * heap size. Tag IDs are mostly faster to compare, object references are 4 bytes wide on Android
+   * so they use about as much memory as shared tag instances.
+   */
+  public void testRetainedHeap() throws Throwable {
+    final long newTagsSize = measureRetainedHeap(STORAGE_NEW_TAGS);
+    final long sharedTagsSize = measureRetainedHeap(STORAGE_SHARED_TAGS);
+    final long tagIdsSize = measureRetainedHeap(STORAGE_TAG_IDS);
+
+    Log.i(TAG, String.format(Locale.US, "New tag instances: %d KiB retained by %d images.",
+        newTagsSize / 1024, IMAGE_COUNT));
+    Log.i(TAG, String.format(Locale.US, "Shared tag instances: %d KiB retained by %d images.",
+        sharedTagsSize / 1024, IMAGE_COUNT));
+    Log.i(TAG, String.format(Locale.US, "Tag IDs: %d KiB retained by %d images.",
+        tagIdsSize / 1024, IMAGE_COUNT));
+    assertThat(sharedTagsSize).isLessThan(newTagsSize);
+    assertThat(tagIdsSize).isLessThan(newTagsSize);
+  }
+
+  /** Make sure tags stored as IDs are the same as the tags they were created from. */
+  public void testTagIdsRoundTrip() throws Throwable {
+    final Image image = new Image();
+    image.setTags(Tag.arrayFromString(createTagString(0)));
+    assertThat(image.getTags()).hasSize(TAGS_PER_IMAGE);
+    assertThat(image.getTags()).containsOnly(Tag.arrayFromString(createTagString(0)));
+    assertThat(image.hasTag(new Tag("tag_80"))).isTrue();
+    assertThat(image.hasTag(new Tag("tag_1"))).isFalse();
+
+    final Image other = new Image();
+    other.setTags(Tag.arrayFromString(createTagString(VOCABULARY_SIZE)));
+    assertThat(other.getTagIds()).isEqualTo(image.getTagIds());
+  }
+
+  /**
+   * Measure the heap retained by the tags of {@link #IMAGE_COUNT} images.
+   *
+   * @param storage One of {@link #STORAGE_NEW_TAGS}, {@link #STORAGE_SHARED_TAGS} or
+   *                {@link #STORAGE_TAG_IDS}.
+   * @return Retained heap size, in bytes.
+   */
+  private static long measureRetainedHeap(int storage) throws InterruptedException {
+    final long baseline = usedMemory();
+    final Object[] images = createImages(storage);
+    final long size = usedMemory() - baseline;
+    assertThat(images).hasSize(IMAGE_COUNT);
+    return size;
+  }
+
+  /**
+   * Create the tags of each image from space-separated strings, the way API clients do.
+   *
+   * @param storage One of {@link #STORAGE_NEW_TAGS}, {@link #STORAGE_SHARED_TAGS} or
+   *                {@link #STORAGE_TAG_IDS}.
+   * @return {@link Tag} arrays or {@link Image#getTagIds()} arrays, depending on the storage used.
+   */
+  private static Object[] createImages(int storage) {
+    final Object[] images = new Object[IMAGE_COUNT];
+
+    for (int i = 0; i < IMAGE_COUNT; i++) {
+      // Build a new tag string for each image, as if read from a response body.
+      final String tagString = createTagString(i);
+
+      if (storage == STORAGE_NEW_TAGS) {
+        final String[] names = tagString.split(" ");
+        final Tag[] tags = new Tag[names.length];
+        for (int j = 0; j < names.length; j++) {
+          tags[j] = new Tag(names[j]);
+        }
+        images[i] = tags;
+      } else if (storage == STORAGE_SHARED_TAGS) {
+        images[i] = Tag.arrayFromString(tagString);
+      } else {
+        final Image image = new Image();
+        image.setTags(Tag.arrayFromString(tagString));
+        images[i] = image.getTagIds();
+      }
+    }
+    return images;
+  }
+
+  /**
+   * Create the space-separated tag string of an image.
+   *
+   * @param i Image index.
+   * @return Tag string.
+   */
+  private static String createTagString(int i) {
+    final StringBuilder sb = new StringBuilder();
+    for (int j = 0; j < TAGS_PER_IMAGE; j++) {
+      sb.append("tag_").append((i + j * 80) % VOCABULARY_SIZE).append(' ');
+    }
+    return sb.toString().trim();
+  }
+
+  /**
+   * Get the size of the used heap, after collecting garbage.
+   *
+   * @return Used heap size, in bytes.
+   */
+  private static long usedMemory() throws InterruptedException {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      runtime.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -76,4 +76,19 @@ public class TagTests extends AndroidTestCase {
     assertThat(tags[0]).isEqualTo(new Tag("duck", Tag.Type.CHARACTER));
     assertThat(tags[1]).isEqualTo(new Tag("quack", Tag.Type.CHARACTER));
   }
+
+  /** Make sure {@link Tag#valueOf(String, Tag.Type)} returns shared instances. */
+  public void testValueOf() throws Throwable {
+    final Tag tag = Tag.valueOf("duck", Tag.Type.CHARACTER);
+    assertThat(Tag.valueOf("duck", Tag.Type.CHARACTER)).isSameAs(tag);
+    assertThat(Tag.valueOf("duck", Tag.Type.ARTIST)).isNotSameAs(tag);
+    assertThat(Tag.arrayFromString("quack duck", Tag.Type.CHARACTER)[1]).isSameAs(tag);
+    assertThat(tag).isEqualTo(new Tag("duck", Tag.Type.CHARACTER));
+  }
+
+  /** Make sure repeated spaces in queries do not create empty tags. */
+  public void testArrayFromStringWithRepeatedSpaces() throws Throwable {
+    final Tag[] tags = Tag.arrayFromString("  duck   quack ");
+    assertThat(tags).containsExactly(new Tag("duck"), new Tag("quack"));
+  }
 }
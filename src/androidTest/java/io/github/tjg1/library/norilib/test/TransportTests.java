@@ -0,0 +1,137 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.test;
+
+import android.test.AndroidTestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+import io.github.tjg1.library.norilib.transport.UrlConnectionTransport;
+import io.github.tjg1.library.norilib.util.StreamingParser;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests for the {@link io.github.tjg1.library.norilib.transport.Transport} implementations. */
+public class TransportTests extends AndroidTestCase {
+
+  /** Make sure Basic authentication credentials are encoded correctly. */
+  public void testBasicAuthentication() throws Throwable {
+    // Example from RFC 7617.
+    final HttpRequest request = new HttpRequest("http://example.com")
+        .setBasicAuthentication("Aladdin", "open sesame");
+    assertThat(request.getHeader("Authorization")).isEqualTo("Basic QWxhZGRpbjpvcGVuIHNlc2FtZQ==");
+  }
+
+  /** Make sure responses are received and parsed using {@link UrlConnectionTransport}. */
+  public void testUrlConnectionTransport() throws Throwable {
+    final FakeServer server = new FakeServer("HTTP/1.1 200 OK\r\n" +
+        "Content-Type: application/xml; charset=utf-8\r\n" +
+        "ETag: \"duck\"\r\n" +
+        "Content-Length: 6\r\n" +
+        "Connection: close\r\n" +
+        "\r\n" +
+        "<duck>");
+    server.start();
+
+    final HttpResponse response = new UrlConnectionTransport()
+        .execute(new HttpRequest(server.getUrl()).setUserAgent("norilib-test"))
+        .get();
+    assertThat(response.getCode()).isEqualTo(200);
+    assertThat(response.getHeader("etag")).isEqualTo("\"duck\"");
+    assertThat(response.getCharset()).isEqualTo("utf-8");
+
+    final String body = new StreamingParser<String>() {
+      @Override
+      protected String parse(Reader reader) throws IOException {
+        return new BufferedReader(reader).readLine();
+      }
+    }.parse(response).get();
+    assertThat(body).isEqualTo("<duck>");
+
+    server.join();
+    assertThat(server.requestHeaders).contains("User-Agent: norilib-test");
+  }
+
+  /** Make sure error responses are returned with their status code. */
+  public void testErrorResponse() throws Throwable {
+    final FakeServer server = new FakeServer("HTTP/1.1 429 Too Many Requests\r\n" +
+        "Retry-After: 5\r\n" +
+        "Content-Length: 0\r\n" +
+        "Connection: close\r\n" +
+        "\r\n");
+    server.start();
+
+    final HttpResponse response = new UrlConnectionTransport()
+        .execute(new HttpRequest(server.getUrl()))
+        .get();
+    assertThat(response.getCode()).isEqualTo(429);
+    assertThat(response.getHeader("Retry-After")).isEqualTo("5");
+    response.close();
+    server.join();
+  }
+
+  /** HTTP server answering a single request with a canned response. */
+  private static class FakeServer extends Thread {
+    /** Socket accepting the connection. */
+    private final ServerSocket serverSocket;
+    /** Raw HTTP response. */
+    private final String response;
+    /** Header lines of the received request. */
+    private final List<String> requestHeaders = new ArrayList<>();
+
+    /**
+     * Create a new server listening on a free local port.
+     *
+     * @param response Raw HTTP response.
+     * @throws IOException Error opening the socket.
+     */
+    private FakeServer(String response) throws IOException {
+      this.serverSocket = new ServerSocket(0);
+      this.response = response;
+      setDaemon(true);
+    }
+
+    /**
+     * Get the URL of the server.
+     *
+     * @return Server URL.
+     */
+    private String getUrl() {
+      return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/posts.xml";
+    }
+
+    @Override
+    public void run() {
+      try {
+        final Socket socket = serverSocket.accept();
+        final BufferedReader reader =
+            new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+          requestHeaders.add(line);
+        }
+        final OutputStream outputStream = socket.getOutputStream();
+        outputStream.write(response.getBytes("UTF-8"));
+        outputStream.flush();
+        socket.close();
+        serverSocket.close();
+      } catch (IOException ignored) {
+        // The test fails when the response doesn't arrive.
+      }
+    }
+  }
+}
@@ -13,6 +13,7 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -56,7 +57,7 @@ public class Image implements Parcelable {
     sampleUrl = in.readString();
     sampleWidth = in.readInt();
     sampleHeight = in.readInt();
-    tags = in.createTypedArray(Tag.CREATOR);
+    setTags(in.createTypedArray(Tag.CREATOR));
     id = in.readString();
     parentId = in.readString();
     webUrl = in.readString();
@@ -90,7 +91,8 @@ public class Image implements Parcelable {
     dest.writeString(sampleUrl); //
     dest.writeInt(sampleWidth); //
     dest.writeInt(sampleHeight); //
-    dest.writeTypedArray(tags, 0); //
+    // Tag IDs are only valid in this process, so write the tags themselves.
+    dest.writeTypedArray(getTags(), 0); //
     dest.writeString(id); //
     dest.writeString(parentId); //
     dest.writeString(webUrl); //
@@ -105,6 +107,20 @@ public class Image implements Parcelable {
   }
   //endregion
 
+  //region Constants
+  /**
+   * MD5 hash set by clients for APIs that don't provide one. Not a real hash of the image, so it
+   * is ignored by {@link #getFingerprint()}.
+   */
+  public static final String PLACEHOLDER_MD5 = "2d57d21f35e060a4c5e81c03aea3efa8";
+  /** Returned by {@link #getFingerprint()} for images that can't be identified. */
+  public static final long NO_FINGERPRINT = 0;
+  /** FNV-1a 64-bit offset basis. */
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  /** FNV-1a 64-bit prime. */
+  private static final long FNV_PRIME = 0x100000001b3L;
+  //endregion
+
   //region Regular expressions
   /** Regular expression for matching Pixiv image ID from Pixiv URLs */
   private static final Pattern PIXIV_ID_FROM_URL_PATTERN = Pattern.compile("http://(?:www|i\\d)\\.pixiv\\.net/.+?(?:illust_id=|img/.+?/)(\\d+)");
@@ -133,8 +149,12 @@ public class Image implements Parcelable {
   public int sampleWidth = 0;
   /** Sample height. */
   public int sampleHeight = 0;
-  /** Image tags. */
-  public Tag[] tags;
+  /** Sorted {@link TagDictionary} IDs of the image's tags. */
+  private int[] tagIds = TagDictionary.EMPTY;
+  /** IDs of the image's tags, in the order they were set in. Shares {@link #tagIds} if sorted. */
+  private int[] tagOrder = TagDictionary.EMPTY;
+  /** Dictionary the tag IDs belong to. Keeps it from being released. Null if there are no tags. */
+  private TagDictionary tagDictionary;
   /** Image ID */
   public String id;
   /** Image parent ID. Used when there are multiple similar images. */
@@ -165,6 +185,158 @@ public class Image implements Parcelable {
   /** Default constructor */
   public Image() {
   }
+
+  /**
+   * Create a copy of another Image.
+   * The copy can be modified without affecting the original image.
+   *
+   * @param image Image to copy.
+   */
+  public Image(Image image) {
+    fileUrl = image.fileUrl;
+    width = image.width;
+    height = image.height;
+    previewUrl = image.previewUrl;
+    previewWidth = image.previewWidth;
+    previewHeight = image.previewHeight;
+    sampleUrl = image.sampleUrl;
+    sampleWidth = image.sampleWidth;
+    sampleHeight = image.sampleHeight;
+    // Tag ID arrays are never modified, so they can be shared.
+    tagIds = image.tagIds;
+    tagOrder = image.tagOrder;
+    tagDictionary = image.tagDictionary;
+    id = image.id;
+    parentId = image.parentId;
+    webUrl = image.webUrl;
+    pixivId = image.pixivId;
+    safeSearchRating = image.safeSearchRating;
+    score = image.score;
+    source = image.source;
+    md5 = image.md5;
+    searchPage = image.searchPage;
+    searchPagePosition = image.searchPagePosition;
+    createdAt = (image.createdAt != null) ? new Date(image.createdAt.getTime()) : null;
+  }
+  //endregion
+
+  //region Tags
+  /**
+   * Get the image's tags.
+   * New {@link Tag} arrays are created on each call, use {@link #getTagIds()} where possible.
+   *
+   * @return Image tags, in the order they were set in. (usually the order used by the API)
+   */
+  public Tag[] getTags() {
+    return (tagDictionary != null) ? tagDictionary.decode(tagOrder) : new Tag[0];
+  }
+
+  /**
+   * Set the image's tags. Duplicate tags are ignored, the order of the other tags is kept.
+   *
+   * @param tags Image tags.
+   */
+  public void setTags(Tag... tags) {
+    final TagDictionary dictionary = TagDictionary.getCurrent();
+    this.tagOrder = dictionary.encodeInOrder(tags);
+    this.tagIds = TagDictionary.sort(tagOrder);
+    this.tagDictionary = (tagIds.length > 0) ? dictionary : null;
+  }
+
+  /**
+   * Get the {@link TagDictionary} IDs of the image's tags.
+   * The returned array is shared and must not be modified.
+   *
+   * @return Sorted array of distinct tag IDs.
+   */
+  public int[] getTagIds() {
+    return tagIds;
+  }
+
+  /**
+   * Get the {@link TagDictionary} IDs of the image's tags, in the order the tags were set in.
+   * The returned array is shared and must not be modified.
+   *
+   * @return Array of distinct tag IDs.
+   */
+  public int[] getTagIdsInOrder() {
+    return tagOrder;
+  }
+
+  /**
+   * Check if the image has given tag.
+   *
+   * @param tag Tag.
+   * @return True if the image is tagged with given tag.
+   */
+  public boolean hasTag(Tag tag) {
+    if (tagDictionary == null) {
+      return false;
+    }
+    final int id = tagDictionary.getId(tag);
+    return id != TagDictionary.NO_ID && Arrays.binarySearch(tagIds, id) >= 0;
+  }
+
+  /**
+   * Check if the image has any of the given tags.
+   *
+   * @param tagIds Sorted array of distinct {@link TagDictionary} IDs, from
+   *               {@link TagDictionary#lookup(java.util.Collection)}.
+   * @return True if the image is tagged with any of the given tags.
+   */
+  public boolean hasAnyTag(int[] tagIds) {
+    return TagDictionary.intersects(this.tagIds, tagIds);
+  }
+  //endregion
+
+  //region Fingerprint
+  /**
+   * Get a 64-bit fingerprint identifying the image file, used to remove duplicate images.
+   * <p/>
+   * Images with a (real) MD5 hash are identified by their hash, so the same file is recognised
+   * even if it was posted to different services. Other images are identified by the host of their
+   * web URL (i.e. the service they are from) and their ID.
+   *
+   * @return Fingerprint. {@link #NO_FINGERPRINT} if the image has neither an MD5 hash nor an ID.
+   */
+  public long getFingerprint() {
+    if (md5 != null && md5.length() == 32 && !PLACEHOLDER_MD5.equalsIgnoreCase(md5)) {
+      // MD5 hashes are uniformly distributed, so their first 64 bits are a good fingerprint.
+      long fingerprint = 0;
+      int i = 0;
+      for (; i < 16; i++) {
+        final int digit = Character.digit(md5.charAt(i), 16);
+        if (digit < 0) {
+          break;
+        }
+        fingerprint = (fingerprint << 4) | digit;
+      }
+      if (i == 16 && fingerprint != NO_FINGERPRINT) {
+        return fingerprint;
+      }
+    }
+    if (id == null) {
+      return NO_FINGERPRINT;
+    }
+
+    // FNV-1a hash of the host and the image ID.
+    long hash = FNV_OFFSET_BASIS;
+    final String url = (webUrl != null) ? webUrl : fileUrl;
+    if (url != null) {
+      final int schemeEnd = url.indexOf("://");
+      final int hostStart = (schemeEnd >= 0) ? schemeEnd + 3 : 0;
+      final int pathStart = url.indexOf('/', hostStart);
+      final int hostEnd = (pathStart >= 0) ? pathStart : url.length();
+      for (int i = hostStart; i < hostEnd; i++) {
+        hash = (hash ^ url.charAt(i)) * FNV_PRIME;
+      }
+    }
+    hash = (hash ^ '\n') * FNV_PRIME;
+    for (int i = 0; i < id.length(); i++) {
+      hash = (hash ^ id.charAt(i)) * FNV_PRIME;
+    }
+    return (hash != NO_FINGERPRINT) ? hash : 1;
+  }
   //endregion
 
   //region Static method: Pixiv URLs from IDs
@@ -0,0 +1,258 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Criteria used to remove unwanted {@link Image}s from a {@link SearchResult}.
+ * All criteria are evaluated together by {@link SearchResult#filter(ImageFilter)}, in a single
+ * pass over the images. Filters can be combined using {@link #and(ImageFilter)}.
+ */
+public class ImageFilter implements Parcelable {
+
+  //region Parcelable
+  /** Class loader used when deserializing from a {@link Parcel}. */
+  public static final Parcelable.Creator<ImageFilter> CREATOR = new Parcelable.Creator<ImageFilter>() {
+    @Override
+    public ImageFilter createFromParcel(Parcel source) {
+      return new ImageFilter(source);
+    }
+
+    @Override
+    public ImageFilter[] newArray(int size) {
+      return new ImageFilter[size];
+    }
+  };
+
+  /**
+   * Re-create an ImageFilter by deserializing data from a {@link android.os.Parcel}.
+   *
+   * @param in {@link android.os.Parcel} used to deserialize the ImageFilter.
+   */
+  protected ImageFilter(Parcel in) {
+    this.tagBlacklist = in.createTypedArray(Tag.CREATOR);
+    final int ratings = in.readInt();
+    this.safeSearchRatings.clear();
+    for (Image.SafeSearchRating rating : Image.SafeSearchRating.values()) {
+      if ((ratings & (1 << rating.ordinal())) != 0) {
+        this.safeSearchRatings.add(rating);
+      }
+    }
+    this.minScore = in.readInt();
+    this.minWidth = in.readInt();
+    this.minHeight = in.readInt();
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeTypedArray(tagBlacklist, 0);
+    int ratings = 0;
+    for (Image.SafeSearchRating rating : safeSearchRatings) {
+      ratings |= 1 << rating.ordinal();
+    }
+    dest.writeInt(ratings);
+    dest.writeInt(minScore);
+    dest.writeInt(minWidth);
+    dest.writeInt(minHeight);
+  }
+  //endregion
+
+  //region Instance fields
+  /** Images with any of these tags are removed. */
+  private Tag[] tagBlacklist = new Tag[0];
+  /** Images with SafeSearch ratings not in this set are removed. */
+  private final EnumSet<Image.SafeSearchRating> safeSearchRatings =
+      EnumSet.allOf(Image.SafeSearchRating.class);
+  /** Images with a lower popularity score are removed. Images without a score count as 0. */
+  private int minScore = Integer.MIN_VALUE;
+  /** Images with a lower full-resolution width are removed. */
+  private int minWidth = 0;
+  /** Images with a lower full-resolution height are removed. */
+  private int minHeight = 0;
+  //endregion
+
+  //region Constructors
+  /** Create a new ImageFilter that doesn't remove any images. */
+  public ImageFilter() {
+  }
+  //endregion
+
+  //region Setting criteria
+  /**
+   * Remove images with any of the given tags.
+   * Tags searched for by the user are never filtered by {@link SearchResult}s.
+   *
+   * @param tags Blacklisted tags.
+   * @return This ImageFilter.
+   */
+  public ImageFilter setTagBlacklist(Tag... tags) {
+    this.tagBlacklist = tags != null ? tags.clone() : new Tag[0];
+    return this;
+  }
+
+  /**
+   * Remove images not in the given set of {@link Image.SafeSearchRating}s.
+   *
+   * @param safeSearchRatings SafeSearch ratings to keep. All ratings are kept if empty.
+   * @return This ImageFilter.
+   */
+  public ImageFilter setSafeSearchRatings(Image.SafeSearchRating... safeSearchRatings) {
+    if (safeSearchRatings == null || safeSearchRatings.length == 0) {
+      this.safeSearchRatings.addAll(EnumSet.allOf(Image.SafeSearchRating.class));
+    } else {
+      this.safeSearchRatings.clear();
+      this.safeSearchRatings.addAll(Arrays.asList(safeSearchRatings));
+    }
+    return this;
+  }
+
+  /**
+   * Remove images with a popularity score lower than given value.
+   *
+   * @param minScore Minimum score.
+   * @return This ImageFilter.
+   */
+  public ImageFilter setMinScore(int minScore) {
+    this.minScore = minScore;
+    return this;
+  }
+
+  /**
+   * Remove images with full-resolution dimensions smaller than given values.
+   *
+   * @param minWidth  Minimum width, in pixels.
+   * @param minHeight Minimum height, in pixels.
+   * @return This ImageFilter.
+   */
+  public ImageFilter setMinSize(int minWidth, int minHeight) {
+    this.minWidth = minWidth;
+    this.minHeight = minHeight;
+    return this;
+  }
+
+  /**
+   * Combine this filter with another filter.
+   *
+   * @param other Filter to combine with.
+   * @return New ImageFilter removing all images removed by either of the filters.
+   */
+  public ImageFilter and(ImageFilter other) {
+    final Set<Tag> tags = new LinkedHashSet<>(Arrays.asList(tagBlacklist));
+    tags.addAll(Arrays.asList(other.tagBlacklist));
+
+    final ImageFilter filter = new ImageFilter();
+    filter.tagBlacklist = tags.toArray(new Tag[tags.size()]);
+    filter.safeSearchRatings.retainAll(safeSearchRatings);
+    filter.safeSearchRatings.retainAll(other.safeSearchRatings);
+    filter.minScore = Math.max(minScore, other.minScore);
+    filter.minWidth = Math.max(minWidth, other.minWidth);
+    filter.minHeight = Math.max(minHeight, other.minHeight);
+    return filter;
+  }
+  //endregion
+
+  //region Evaluating criteria
+  /**
+   * Check if an image passes this filter.
+   *
+   * @param image Image to check.
+   * @return True if the image should be kept.
+   */
+  public boolean accepts(Image image) {
+    return !image.hasAnyTag(TagDictionary.lookup(Arrays.asList(tagBlacklist)))
+        && acceptsMetadata(image);
+  }
+
+  /**
+   * Check if an image passes all criteria other than the tag blacklist.
+   * Used by {@link SearchResult}, which finds blacklisted images using its inverted tag index.
+   *
+   * @param image Image to check.
+   * @return True if the image should be kept.
+   */
+  boolean acceptsMetadata(Image image) {
+    // Unrated images are only removed once the set of allowed ratings has been narrowed down.
+    return (safeSearchRatings.size() == Image.SafeSearchRating.values().length
+        || safeSearchRatings.contains(image.safeSearchRating))
+        && (image.score != null ? image.score : 0) >= minScore
+        && image.width >= minWidth
+        && image.height >= minHeight;
+  }
+
+  /**
+   * Check if this filter would keep every image.
+   *
+   * @return True if no criteria have been set.
+   */
+  public boolean isEmpty() {
+    return tagBlacklist.length == 0
+        && safeSearchRatings.size() == Image.SafeSearchRating.values().length
+        && minScore == Integer.MIN_VALUE
+        && minWidth <= 0
+        && minHeight <= 0;
+  }
+  //endregion
+
+  //region Getters
+  /**
+   * Get the blacklisted tags.
+   *
+   * @return Images with any of these tags are removed.
+   */
+  public Tag[] getTagBlacklist() {
+    return tagBlacklist.clone();
+  }
+
+  /**
+   * Get the SafeSearch ratings kept by this filter.
+   *
+   * @return SafeSearch ratings to keep.
+   */
+  public Image.SafeSearchRating[] getSafeSearchRatings() {
+    return safeSearchRatings.toArray(new Image.SafeSearchRating[safeSearchRatings.size()]);
+  }
+
+  /**
+   * Get the minimum popularity score.
+   *
+   * @return Minimum score. {@link Integer#MIN_VALUE} if not set.
+   */
+  public int getMinScore() {
+    return minScore;
+  }
+
+  /**
+   * Get the minimum full-resolution width.
+   *
+   * @return Minimum width, in pixels.
+   */
+  public int getMinWidth() {
+    return minWidth;
+  }
+
+  /**
+   * Get the minimum full-resolution height.
+   *
+   * @return Minimum height, in pixels.
+   */
+  public int getMinHeight() {
+    return minHeight;
+  }
+  //endregion
+}
@@ -0,0 +1,239 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib;
+
+import android.support.annotation.WorkerThread;
+import android.util.SparseArray;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * Fetches a range of pages in parallel and merges them into a single {@link SearchResult}.
+ * <p/>
+ * Useful to fill a large screen or to export search results, instead of requesting one page after
+ * another. Up to {@link #getParallelism()} requests are in flight at a time. Responses can arrive
+ * in any order, but pages are always merged in page order. Fetching stops at the first empty page,
+ * or the first page with fewer images than the first page of the range, which is then marked using
+ * {@link SearchResult#onLastPage()}.
+ */
+public class PageRangeFetcher {
+
+  //region Constants
+  /** Default maximum number of requests in flight. */
+  public static final int DEFAULT_PARALLELISM = 3;
+  //endregion
+
+  //region Instance fields
+  /** Client used to fetch pages. */
+  private final SearchClient client;
+  /** Maximum number of requests in flight. */
+  private int parallelism = DEFAULT_PARALLELISM;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new fetcher.
+   *
+   * @param client Client used to fetch pages.
+   */
+  public PageRangeFetcher(SearchClient client) {
+    this.client = client;
+  }
+  //endregion
+
+  //region Configuration
+  /**
+   * Set the maximum number of requests in flight.
+   *
+   * @param parallelism Number of requests. At least 1.
+   * @return This fetcher. Allows chaining setters.
+   */
+  public PageRangeFetcher setParallelism(int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+    return this;
+  }
+
+  /**
+   * Get the maximum number of requests in flight.
+   *
+   * @return Number of requests.
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+  //endregion
+
+  //region Fetching pages
+  /**
+   * Fetch a range of pages and wait for the merged result.
+   * Must not be called on the main thread, as {@link SearchClient}s deliver results there.
+   *
+   * @param tags      Search query. A space-separated list of tags.
+   * @param firstPage Number of the first page to fetch. (zero-indexed)
+   * @param pageCount Number of pages to fetch. At least 1.
+   * @return Pages merged into a single SearchResult, in page order.
+   * @throws IOException Network error.
+   */
+  @WorkerThread
+  public SearchResult search(String tags, int firstPage, int pageCount) throws IOException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final SearchResult[] result = new SearchResult[1];
+    final IOException[] error = new IOException[1];
+
+    search(tags, firstPage, pageCount, new SearchClient.SearchCallback() {
+      @Override
+      public void onFailure(IOException e) {
+        error[0] = e;
+        latch.countDown();
+      }
+
+      @Override
+      public void onSuccess(SearchResult searchResult) {
+        result[0] = searchResult;
+        latch.countDown();
+      }
+    });
+
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    if (error[0] != null) {
+      throw error[0];
+    }
+    return result[0];
+  }
+
+  /**
+   * Asynchronously fetch a range of pages.
+   * The callback is called once, after all pages have been merged or the first request failed.
+   *
+   * @param tags      Search query. A space-separated list of tags.
+   * @param firstPage Number of the first page to fetch. (zero-indexed)
+   * @param pageCount Number of pages to fetch. At least 1.
+   * @param callback  Callback listening for the merged SearchResult.
+   */
+  public void search(String tags, int firstPage, int pageCount,
+                     SearchClient.SearchCallback callback) {
+    new Fetch(tags, firstPage, Math.max(1, pageCount), callback).start();
+  }
+  //endregion
+
+  //region Fetch state
+  /** State of a single {@link #search(String, int, int, SearchClient.SearchCallback)} call. */
+  private class Fetch {
+    /** Search query. A space-separated list of tags. */
+    private final String tags;
+    /** Number of the page after the last page to fetch. Lowered when a last page is found. */
+    private int endPage;
+    /** Callback listening for the merged SearchResult. */
+    private final SearchClient.SearchCallback callback;
+    /** Pages that arrived before the pages preceding them, by page number. */
+    private final SparseArray<SearchResult> pendingPages = new SparseArray<>();
+    /** Number of the next page to request. */
+    private int nextPage;
+    /** Number of the next page to merge. */
+    private int nextPageToMerge;
+    /** Number of requests in flight. */
+    private int requestsInFlight;
+    /** Merged pages. Null until the first page is merged. */
+    private SearchResult searchResult;
+    /** Number of images on the first page. Shorter pages are the last page. */
+    private int pageSize;
+    /** Set when the callback has been called. Responses arriving after that are ignored. */
+    private boolean done;
+
+    /**
+     * Create a new fetch.
+     *
+     * @param tags      Search query. A space-separated list of tags.
+     * @param firstPage Number of the first page to fetch.
+     * @param pageCount Number of pages to fetch.
+     * @param callback  Callback listening for the merged SearchResult.
+     */
+    private Fetch(String tags, int firstPage, int pageCount, SearchClient.SearchCallback callback) {
+      this.tags = tags;
+      this.endPage = firstPage + pageCount;
+      this.callback = callback;
+      this.nextPage = firstPage;
+      this.nextPageToMerge = firstPage;
+    }
+
+    /** Send requests, until {@link #getParallelism()} requests are in flight. */
+    private synchronized void start() {
+      while (!done && requestsInFlight < parallelism && nextPage < endPage) {
+        fetchPage(nextPage++);
+      }
+    }
+
+    /**
+     * Fetch a single page.
+     *
+     * @param page Page number.
+     */
+    private void fetchPage(final int page) {
+      requestsInFlight++;
+      client.search(tags, page, new SearchClient.SearchCallback() {
+        @Override
+        public void onFailure(IOException e) {
+          synchronized (Fetch.this) {
+            if (!done) {
+              done = true;
+              callback.onFailure(e);
+            }
+          }
+        }
+
+        @Override
+        public void onSuccess(SearchResult result) {
+          synchronized (Fetch.this) {
+            requestsInFlight--;
+            if (!done) {
+              pendingPages.put(page, result);
+              mergePages();
+              start();
+            }
+          }
+        }
+      });
+    }
+
+    /** Merge pages that arrived, in page order. Calls the callback after the last page. */
+    private void mergePages() {
+      SearchResult page;
+      while (nextPageToMerge < endPage && (page = pendingPages.get(nextPageToMerge)) != null) {
+        pendingPages.remove(nextPageToMerge);
+
+        final int imageCount = page.getImageCount();
+        if (searchResult == null) {
+          searchResult = page;
+          pageSize = imageCount;
+        } else if (imageCount > 0) {
+          searchResult.addImages(page.getImages(), nextPageToMerge);
+        }
+        nextPageToMerge++;
+
+        if (imageCount == 0 || imageCount < pageSize || !page.hasNextPage()) {
+          // Pages after a short page are empty, don't fetch them.
+          searchResult.onLastPage();
+          endPage = nextPageToMerge;
+        }
+      }
+
+      if (nextPageToMerge == endPage) {
+        done = true;
+        pendingPages.clear();
+        callback.onSuccess(searchResult);
+      }
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,330 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib;
+
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.util.SparseArray;
+
+import java.io.IOException;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * Endless scrolling helper that fetches the next pages of a {@link SearchResult} in the
+ * background, before the user reaches the end of the results.
+ * <p/>
+ * The UI reports the positions of the images shown using {@link #onImageVisible(int)}. The pager
+ * estimates how fast images are being consumed and how long a page takes to load, and starts
+ * fetching the next page when the images left would run out before it arrives. Up to
+ * {@link #getLookahead()} pages are fetched ahead. Pages are merged into the SearchResult in order
+ * using {@link SearchResult#addImages(Image[], int)}, even if they arrive out of order.
+ * <p/>
+ * All methods must be called on the main thread. {@link SearchClient}s deliver results on the main
+ * thread too, so no synchronisation is needed.
+ */
+public class SearchPager {
+
+  //region Constants
+  /** Default maximum number of pages fetched ahead of the page being viewed. */
+  public static final int DEFAULT_LOOKAHEAD = 2;
+  /** Default number of images left below which the next page is always fetched. */
+  public static final int DEFAULT_PREFETCH_DISTANCE = 20;
+  /** Page load time assumed before the first page is loaded, in milliseconds. */
+  private static final long INITIAL_LATENCY = 1000;
+  /** Page size assumed before the first page is loaded. */
+  private static final int INITIAL_PAGE_SIZE = 100;
+  /** Weight of new samples in the moving averages of latency and consumption rate. */
+  private static final float SMOOTHING_FACTOR = 0.3f;
+  /**
+   * Safety margin applied to the estimated number of images consumed while a page loads.
+   * Latency varies a lot on mobile networks, so start fetching earlier than strictly necessary.
+   */
+  private static final float SAFETY_MARGIN = 2f;
+  //endregion
+
+  //region Instance fields
+  /** Client used to fetch pages. */
+  private final SearchClient client;
+  /** Listener notified when pages are loaded. */
+  private final Listener listener;
+  /** Maximum number of pages fetched ahead. */
+  private int lookahead = DEFAULT_LOOKAHEAD;
+  /** Number of images left below which the next page is always fetched. */
+  private int prefetchDistance = DEFAULT_PREFETCH_DISTANCE;
+  /** Search query. A space-separated list of tags. Null before {@link #search(String)}. */
+  private String tags;
+  /**
+   * Incremented whenever the query changes or pending requests are cancelled.
+   * Responses to requests sent before that are ignored.
+   */
+  private int generation;
+  /** Pages fetched so far, merged into one SearchResult. Null until the first page is loaded. */
+  private SearchResult searchResult;
+  /** Pages that arrived before the pages preceding them, by page number. */
+  private final SparseArray<SearchResult> pendingPages = new SparseArray<>();
+  /** Number of the next page to request. */
+  private int nextPage;
+  /** Number of the next page to merge into {@link #searchResult}. */
+  private int nextPageToMerge;
+  /** Number of requests in flight. */
+  private int requestsInFlight;
+  /** Position of the last image reported by {@link #onImageVisible(int)}. */
+  private int lastVisiblePosition = -1;
+  /** Time {@link #lastVisiblePosition} was reported at, in milliseconds. */
+  private long lastVisibleTime;
+  /** Moving average of the number of images consumed per millisecond. */
+  private float consumptionRate;
+  /** Moving average of the time it takes to load a page, in milliseconds. */
+  private float latency = INITIAL_LATENCY;
+  /** Moving average of the number of images per page. */
+  private float pageSize = INITIAL_PAGE_SIZE;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new pager.
+   *
+   * @param client   Client used to fetch pages.
+   * @param listener Listener notified when pages are loaded.
+   */
+  public SearchPager(SearchClient client, Listener listener) {
+    this.client = client;
+    this.listener = listener;
+  }
+  //endregion
+
+  //region Configuration
+  /**
+   * Set the maximum number of pages fetched ahead of the page being viewed.
+   *
+   * @param lookahead Number of pages. At least 1.
+   * @return This pager. Allows chaining setters.
+   */
+  public SearchPager setLookahead(int lookahead) {
+    this.lookahead = Math.max(1, lookahead);
+    return this;
+  }
+
+  /**
+   * Get the maximum number of pages fetched ahead of the page being viewed.
+   *
+   * @return Number of pages.
+   */
+  public int getLookahead() {
+    return lookahead;
+  }
+
+  /**
+   * Set the number of images left below which the next page is always fetched, regardless of the
+   * estimated consumption rate.
+   *
+   * @param prefetchDistance Number of images.
+   * @return This pager. Allows chaining setters.
+   */
+  public SearchPager setPrefetchDistance(int prefetchDistance) {
+    this.prefetchDistance = Math.max(0, prefetchDistance);
+    return this;
+  }
+
+  /**
+   * Get the number of images left below which the next page is always fetched.
+   *
+   * @return Number of images.
+   */
+  public int getPrefetchDistance() {
+    return prefetchDistance;
+  }
+  //endregion
+
+  //region Paging
+  /**
+   * Start a new search. Pages being fetched for the previous query are discarded.
+   *
+   * @param tags Search query. A space-separated list of tags.
+   */
+  @MainThread
+  public void search(String tags) {
+    cancel();
+    this.tags = tags;
+    this.searchResult = null;
+    this.nextPage = 0;
+    this.nextPageToMerge = 0;
+    this.lastVisiblePosition = -1;
+    this.consumptionRate = 0;
+    fetchPage(nextPage++);
+  }
+
+  /**
+   * Report an image being shown to the user. Fetches the next pages if the user would reach the
+   * end of the results before they load.
+   *
+   * @param position Position of the image in {@link #getSearchResult()}.
+   */
+  @MainThread
+  public void onImageVisible(int position) {
+    final long now = SystemClock.elapsedRealtime();
+
+    // Only scrolling forward consumes images.
+    if (position > lastVisiblePosition) {
+      if (lastVisiblePosition >= 0 && now > lastVisibleTime) {
+        final float rate = (float) (position - lastVisiblePosition) / (now - lastVisibleTime);
+        consumptionRate = SMOOTHING_FACTOR * rate + (1 - SMOOTHING_FACTOR) * consumptionRate;
+      }
+      lastVisiblePosition = position;
+      lastVisibleTime = now;
+    }
+    prefetch();
+  }
+
+  /**
+   * Cancel pending requests. Their results will be discarded when they arrive.
+   * Pages already fetched are kept.
+   */
+  @MainThread
+  public void cancel() {
+    generation++;
+    requestsInFlight = 0;
+    pendingPages.clear();
+    nextPage = nextPageToMerge;
+  }
+
+  /**
+   * Get the pages fetched so far, merged into one SearchResult.
+   *
+   * @return Fetched pages. Null until the first page is loaded.
+   */
+  public SearchResult getSearchResult() {
+    return searchResult;
+  }
+
+  /**
+   * Check if any pages are being fetched.
+   *
+   * @return True if requests are in flight.
+   */
+  public boolean isLoading() {
+    return requestsInFlight > 0;
+  }
+
+  /** Fetch the next pages, if the images left are expected to run out before they load. */
+  private void prefetch() {
+    if (searchResult == null || !searchResult.hasNextPage()) {
+      return;
+    }
+
+    // Images consumed while a page loads, if the user keeps scrolling at the same pace.
+    final int threshold = Math.max(prefetchDistance,
+        (int) Math.ceil(consumptionRate * latency * SAFETY_MARGIN));
+
+    while (nextPage - nextPageToMerge < lookahead) {
+      // Count pages being fetched as if they were already loaded.
+      final int imagesLeft = searchResult.getImageCount() - 1 - lastVisiblePosition
+          + Math.round((nextPage - nextPageToMerge) * pageSize);
+      if (imagesLeft > threshold) {
+        return;
+      }
+      fetchPage(nextPage++);
+    }
+  }
+
+  /**
+   * Fetch a page in the background.
+   *
+   * @param page Page number.
+   */
+  private void fetchPage(final int page) {
+    final int requestGeneration = generation;
+    final long startTime = SystemClock.elapsedRealtime();
+    requestsInFlight++;
+
+    client.search(tags, page, new SearchClient.SearchCallback() {
+      @Override
+      public void onFailure(IOException e) {
+        if (requestGeneration != generation) {
+          return;
+        }
+        // Discard pages fetched after the failed page, they can't be merged without it. The page
+        // will be fetched again next time an image is shown.
+        cancel();
+        listener.onFailure(e);
+      }
+
+      @Override
+      public void onSuccess(SearchResult result) {
+        if (requestGeneration != generation) {
+          return;
+        }
+        requestsInFlight--;
+        latency = SMOOTHING_FACTOR * (SystemClock.elapsedRealtime() - startTime)
+            + (1 - SMOOTHING_FACTOR) * latency;
+        pendingPages.put(page, result);
+        mergePages();
+      }
+    });
+  }
+
+  /** Merge pages that arrived into {@link #searchResult}, in page order. */
+  private void mergePages() {
+    boolean merged = false;
+
+    SearchResult page;
+    while ((page = pendingPages.get(nextPageToMerge)) != null) {
+      pendingPages.remove(nextPageToMerge);
+      if (page.getImageCount() > 0) {
+        pageSize = SMOOTHING_FACTOR * page.getImageCount() + (1 - SMOOTHING_FACTOR) * pageSize;
+      }
+
+      if (searchResult == null) {
+        searchResult = page;
+      } else if (page.getImageCount() == 0) {
+        searchResult.onLastPage();
+      } else {
+        searchResult.addImages(page.getImages(), nextPageToMerge);
+        if (!page.hasNextPage()) {
+          searchResult.onLastPage();
+        }
+      }
+      nextPageToMerge++;
+      merged = true;
+
+      if (!searchResult.hasNextPage()) {
+        // Pages after the last page are empty or out of range.
+        cancel();
+        break;
+      }
+    }
+
+    if (merged) {
+      listener.onSearchResult(searchResult);
+      prefetch();
+    }
+  }
+  //endregion
+
+  //region Listener interface
+  /** Listener notified when pages are loaded. Called on the main thread. */
+  public interface Listener {
+    /**
+     * Called when the first page has been loaded, or more pages have been merged into the
+     * SearchResult.
+     *
+     * @param searchResult Pages fetched so far. The same instance is passed each time.
+     */
+    void onSearchResult(SearchResult searchResult);
+
+    /**
+     * Called when a page could not be fetched.
+     * Later pages are fetched again next time {@link SearchPager#onImageVisible(int)} is called.
+     * If the first page failed, {@link SearchPager#search(String)} has to be called again.
+     *
+     * @param e Network error.
+     */
+    void onFailure(IOException e);
+  }
+  //endregion
+}
@@ -8,19 +8,29 @@ package io.github.tjg1.library.norilib;
 
 import android.os.Parcel;
 import android.os.Parcelable;
-
-import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.Predicate;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
+import io.github.tjg1.library.norilib.util.LongHashSet;
+
 /**
  * Search result received from the API.
  */
-public class SearchResult implements Parcelable {
+public class SearchResult implements Parcelable, Iterable<Image> {
+
+  //region Constants
+  /** Filter accepting all images. Used to only remove duplicates. */
+  private static final ImageFilter NO_FILTER = new ImageFilter();
+  /** Returned by {@link #getNextPageCursor()} if no image with a numeric ID has been added. */
+  public static final long NO_CURSOR = -1;
+  //endregion
 
   //region Parcelable
   // Parcelables are the standard Android serialization API used to retain data between sessions.
@@ -44,9 +54,14 @@ public class SearchResult implements Parcelable {
    */
   protected SearchResult(Parcel parcel) {
     this.images = parcel.createTypedArrayList(Image.CREATOR);
+    this.imagesView = Collections.unmodifiableList(this.images);
     this.offset = parcel.readInt();
     this.query = parcel.createTypedArray(Tag.CREATOR);
     this.hasNextPage = (parcel.readByte() == 0x01);
+    this.activeFilter = ImageFilter.CREATOR.createFromParcel(parcel);
+    this.nextPageCursor = parcel.readLong();
+    filterImages(0, NO_FILTER, null, true);
+    indexImages(0);
   }
 
   @Override
@@ -60,15 +75,24 @@ public class SearchResult implements Parcelable {
     dest.writeInt(offset);
     dest.writeTypedArray(query, 0);
     dest.writeByte((byte) (hasNextPage ? 0x01 : 0x00));
+    activeFilter.writeToParcel(dest, flags);
+    dest.writeLong(nextPageCursor);
   }
   //endregion
 
   //region Instance fields
   /** List of {@link Image}s included in this SearchResult. */
   private final List<Image> images;
+  /** Read-only view of {@link #images}, returned by {@link #getImageList()}. */
+  private final List<Image> imagesView;
 
   /** Current offset. Used for paging. */
   private int offset = 0;
+  /**
+   * Lowest numeric image ID added so far, including images removed by filters since.
+   * Used for cursor-based paging. {@link #NO_CURSOR} if no image with a numeric ID was added.
+   */
+  private long nextPageCursor = NO_CURSOR;
 
   /** List of tags originally used to retrieve this SearchResult. */
   private final Tag[] query;
@@ -77,6 +101,22 @@ public class SearchResult implements Parcelable {
    * Set to false when the last page of results has been retrieved and included in {@link #images}.
    */
   private boolean hasNextPage = true;
+  /**
+   * Inverted index of {@link #images}. Positions of the images tagged with each tag, by
+   * {@link TagDictionary} ID. Used to filter images without comparing the tags of each image.
+   */
+  private final SparseArray<BitSet> tagIndex = new SparseArray<>();
+  /** Position of the first image of each page, by paging offset. */
+  private final SparseIntArray pageStarts = new SparseIntArray();
+  /** Position after the last image of each page, by paging offset. */
+  private final SparseIntArray pageEnds = new SparseIntArray();
+  /**
+   * Fingerprints of the images added so far, including images removed by filters since.
+   * Used to drop duplicate images as pages are added, without comparing them with every image.
+   */
+  private final LongHashSet fingerprints = new LongHashSet();
+  /** Filters applied so far. Also applied to images added later by {@link #addImages(Image[], int)}. */
+  private ImageFilter activeFilter = new ImageFilter();
   //endregion
 
   //region Constructors
@@ -90,8 +130,52 @@ public class SearchResult implements Parcelable {
   public SearchResult(Image[] images, Tag[] query, int offset) {
     // Have to use the ArrayList constructor because the Lists returned by Arrays.asList are not resizable which is a bummer for filtering.
     this.images = new ArrayList<>(Arrays.asList(images));
+    this.imagesView = Collections.unmodifiableList(this.images);
     this.query = query.clone();
     this.offset = offset;
+    updateNextPageCursor(0);
+    filterImages(0, NO_FILTER, null, true);
+    indexImages(0);
+  }
+
+  /**
+   * Create a copy of another SearchResult.
+   * Images are copied too, so the copy can be filtered or modified without affecting the original.
+   *
+   * @param searchResult SearchResult to copy.
+   */
+  public SearchResult(SearchResult searchResult) {
+    this.images = new ArrayList<>(searchResult.images.size());
+    for (Image image : searchResult.images) {
+      this.images.add(new Image(image));
+    }
+    this.imagesView = Collections.unmodifiableList(this.images);
+    this.query = searchResult.query.clone();
+    this.offset = searchResult.offset;
+    this.nextPageCursor = searchResult.nextPageCursor;
+    this.hasNextPage = searchResult.hasNextPage;
+    this.activeFilter = searchResult.activeFilter;
+    filterImages(0, NO_FILTER, null, true);
+    indexImages(0);
+  }
+
+  /**
+   * Create a SearchResult containing a single page of another SearchResult.
+   *
+   * @param images Images from the page.
+   * @param parent SearchResult containing the page.
+   * @param page   Paging offset of the page.
+   */
+  private SearchResult(List<Image> images, SearchResult parent, int page) {
+    this.images = new ArrayList<>(images);
+    this.imagesView = Collections.unmodifiableList(this.images);
+    // The query array is never modified, so it can be shared.
+    this.query = parent.query;
+    this.offset = page;
+    this.activeFilter = parent.activeFilter;
+    updateNextPageCursor(0);
+    filterImages(0, NO_FILTER, null, true);
+    indexImages(0);
   }
   //endregion
 
@@ -99,18 +183,46 @@ public class SearchResult implements Parcelable {
   /**
    * Add more images to this SearchResult.
    * Usually called when new page of results has been fetched from the API.
-   * Don't forget to call {@link #filter(Tag[])} and {@link #filter(Image.SafeSearchRating[])}
-   * after adding more images.
+   * Filters previously applied to this SearchResult are applied to the new images only, so there is
+   * no need to filter the whole SearchResult again. Images that have already been added (e.g. when
+   * new uploads shift images onto the next page) are dropped.
    *
    * @param images Images to add.
    * @param offset Current paging offset. (ie. page number)
    */
   public void addImages(Image[] images, int offset) {
-    // Add images to list.
+    // Add images to list, apply active filters and index the remaining images.
+    final int start = this.images.size();
     this.images.addAll(Arrays.asList(images));
+    updateNextPageCursor(start);
+    filterImages(start, activeFilter, null, true);
+    indexImages(start);
     // Set new offset.
     this.offset = offset;
   }
+
+  /**
+   * Lower the next page cursor to the lowest numeric ID of the added images.
+   * Called before the images are filtered, so removed images still move the cursor.
+   *
+   * @param start Position of the first added image.
+   */
+  private void updateNextPageCursor(int start) {
+    for (int i = start; i < images.size(); i++) {
+      final String id = images.get(i).id;
+      if (id == null) {
+        continue;
+      }
+      try {
+        final long imageId = Long.parseLong(id);
+        if (imageId >= 0 && (nextPageCursor == NO_CURSOR || imageId < nextPageCursor)) {
+          nextPageCursor = imageId;
+        }
+      } catch (NumberFormatException ignored) {
+        // Not a numeric ID, can't be used as a cursor.
+      }
+    }
+  }
   //endregion
 
   //region Filtering results
@@ -118,64 +230,187 @@ public class SearchResult implements Parcelable {
    * Remove images with the given set of {@link Tag}s from this SearchResult.
    *
    * @param tags Tags to remove.
+   * @see #filter(ImageFilter)
    */
   public void filter(final Tag... tags) {
     // Don't waste time filtering against an empty array.
     if (tags == null || tags.length == 0) {
       return;
     }
-
-    // Don't filter tags searched for by the user.
-    final Collection<Tag> tagList = CollectionUtils.removeAll(Arrays.asList(tags), Arrays.asList(query));
-
-    // Remove images containing filtered tags.
-    CollectionUtils.filter(images, new Predicate<Image>() {
-      @Override
-      public boolean evaluate(Image image) {
-        return !CollectionUtils.containsAny(Arrays.asList(image.tags), tagList);
-      }
-    });
-
-    reorderImagePageOffsets();
+    filter(new ImageFilter().setTagBlacklist(tags));
   }
 
   /**
    * Remove images not in the given set of {@link Image.SafeSearchRating} from this SearchResult.
    *
    * @param safeSearchRatings SafeSearch ratings to remove.
+   * @see #filter(ImageFilter)
    */
   public void filter(final Image.SafeSearchRating... safeSearchRatings) {
     // Don't waste time filtering against an empty array.
     if (safeSearchRatings == null || safeSearchRatings.length == 0) {
       return;
     }
+    filter(new ImageFilter().setSafeSearchRatings(safeSearchRatings));
+  }
+
+  /**
+   * Remove images that don't pass the given {@link ImageFilter} from this SearchResult.
+   * All criteria are evaluated in a single pass over the images. Image page offsets are only
+   * re-calculated for pages that had images removed.
+   * <p/>
+   * The filter remains active and is also applied to images added later using
+   * {@link #addImages(Image[], int)}.
+   *
+   * @param filter Filter to apply.
+   */
+  public void filter(ImageFilter filter) {
+    // Don't waste time filtering with an empty filter.
+    if (filter == null || filter.isEmpty()) {
+      return;
+    }
+    activeFilter = activeFilter.and(filter);
 
-    // Concert filtered rating array to List
-    final List<Image.SafeSearchRating> ratingList = Arrays.asList(safeSearchRatings);
-    // Remove images containing filtered ratings.
-    CollectionUtils.filter(images, new Predicate<Image>() {
-      @Override
-      public boolean evaluate(Image image) {
-        return ratingList.contains(image.safeSearchRating);
+    // Find images with blacklisted tags using the inverted index.
+    final BitSet blacklistedImages = new BitSet(images.size());
+    for (int tagId : getBlacklistedTagIds(filter)) {
+      final BitSet positions = tagIndex.get(tagId);
+      if (positions != null) {
+        blacklistedImages.or(positions);
       }
-    });
+    }
 
-    reorderImagePageOffsets();
+    if (filterImages(0, filter, blacklistedImages, false)) {
+      // Image positions have changed, so re-build the indexes.
+      tagIndex.clear();
+      pageStarts.clear();
+      pageEnds.clear();
+      indexImages(0);
+    }
   }
 
-  /** Re-calculate image page offsets after filtering. */
-  private void reorderImagePageOffsets() {
-    int page = 0;
-    int offset = 0;
+  /**
+   * Remove images that don't pass the given {@link ImageFilter}, in a single pass.
+   * Retained images are moved to the front of the list and their page offsets are updated.
+   *
+   * @param start             Position of the first image to filter.
+   * @param filter            Filter to apply.
+   * @param blacklistedImages Positions of the images with blacklisted tags.
+   *                          Null to compare the tags of each image with the tag blacklist instead.
+   * @param deduplicate       True to also remove images already in this SearchResult, or added to
+   *                          it before. Fingerprints of the retained images are remembered.
+   * @return True if any images were removed.
+   */
+  private boolean filterImages(int start, ImageFilter filter, BitSet blacklistedImages,
+                               boolean deduplicate) {
+    if (start == images.size() || (filter.isEmpty() && !deduplicate)) {
+      return false;
+    }
+    final int[] blacklistedTagIds = (blacklistedImages == null) ?
+        getBlacklistedTagIds(filter) : null;
+    // Empty filters keep every image, including images without a SafeSearch rating.
+    final boolean checkMetadata = !filter.isEmpty();
+
+    // Continue counting positions from the last image of the page before the filtered images.
+    Integer page = null;
+    int pagePosition = 0;
+    if (start > 0) {
+      final Image previousImage = images.get(start - 1);
+      if (previousImage.searchPage != null && previousImage.searchPagePosition != null) {
+        page = previousImage.searchPage;
+        pagePosition = previousImage.searchPagePosition + 1;
+      }
+    }
+    boolean pageChanged = false;
+
+    int size = start;
+    for (int i = start; i < images.size(); i++) {
+      final Image image = images.get(i);
+
+      // Images are ordered by page. Reset the position counter at the start of each page.
+      if (image.searchPage != null && !image.searchPage.equals(page)) {
+        page = image.searchPage;
+        pagePosition = 0;
+        pageChanged = false;
+      }
+
+      final boolean blacklisted = (blacklistedImages != null) ?
+          blacklistedImages.get(i) : image.hasAnyTag(blacklistedTagIds);
+      if (blacklisted || (checkMetadata && !filter.acceptsMetadata(image))
+          || (deduplicate && !addFingerprint(image))) {
+        pageChanged = true;
+      } else {
+        // Positions only change after the first image removed from the page.
+        if (image.searchPage != null) {
+          if (pageChanged) {
+            image.searchPagePosition = pagePosition;
+          }
+          pagePosition++;
+        }
+        images.set(size++, image);
+      }
+    }
+
+    if (size == images.size()) {
+      return false;
+    }
+    images.subList(size, images.size()).clear();
+    return true;
+  }
 
-    for (Image image : images) {
+  /**
+   * Remember the fingerprint of an image.
+   *
+   * @param image Image.
+   * @return False if an image with the same fingerprint has been added before.
+   * @see Image#getFingerprint()
+   */
+  private boolean addFingerprint(Image image) {
+    final long fingerprint = image.getFingerprint();
+    return fingerprint == Image.NO_FINGERPRINT || fingerprints.add(fingerprint);
+  }
+
+  /**
+   * Get the {@link TagDictionary} IDs of the tags blacklisted by a filter.
+   * Tags searched for by the user are never filtered. Tags without an ID can't be on any image and
+   * are ignored.
+   *
+   * @param filter Image filter.
+   * @return Sorted array of distinct tag IDs.
+   */
+  private int[] getBlacklistedTagIds(ImageFilter filter) {
+    final Tag[] tags = filter.getTagBlacklist();
+    if (tags.length == 0) {
+      return TagDictionary.EMPTY;
+    }
+    return TagDictionary.difference(TagDictionary.lookup(Arrays.asList(tags)),
+        TagDictionary.lookup(Arrays.asList(query)));
+  }
+
+  /**
+   * Add images to the inverted tag index and the page index.
+   *
+   * @param start Position of the first image to index.
+   */
+  private void indexImages(int start) {
+    for (int i = start; i < images.size(); i++) {
+      final Image image = images.get(i);
+
+      // Images are ordered by page, so each page is a single range of positions.
       if (image.searchPage != null) {
-        if (image.searchPage != page) {
-          page = image.searchPage;
-          offset = 0;
+        if (pageStarts.indexOfKey(image.searchPage) < 0) {
+          pageStarts.put(image.searchPage, i);
+        }
+        pageEnds.put(image.searchPage, i + 1);
+      }
+
+      for (int tagId : image.getTagIds()) {
+        BitSet positions = tagIndex.get(tagId);
+        if (positions == null) {
+          positions = new BitSet();
+          tagIndex.put(tagId, positions);
         }
-        image.searchPagePosition = offset;
-        offset += 1;
+        positions.set(i);
       }
     }
   }
@@ -189,20 +424,15 @@ public class SearchResult implements Parcelable {
    * @return A {@link SearchResult} containing only {@link Image}s for the given search paging offset.
    */
   public SearchResult getSearchResultForPage(final int page) {
-    Collection<Image> selectedImages = CollectionUtils.select(images, new Predicate<Image>() {
-      @Override
-      public boolean evaluate(Image image) {
-        return (image.searchPage != null && image.searchPage == page);
-      }
-    });
-
-    return new SearchResult(selectedImages.toArray(new Image[selectedImages.size()]), this.query, page);
+    return new SearchResult(getPageImages(page), this, page);
   }
   //endregion
 
   //region Getters & Setters
   /**
    * Get {@link Image}s contained in this SearchResult.
+   * A new array is created on each call. Use {@link #getImage(int)} and {@link #getImageCount()},
+   * {@link #getImageList()} or {@link #getPageImages(int)} to read images without copying them.
    *
    * @return {@link Image}s returned by this SearchResult.
    */
@@ -210,6 +440,94 @@ public class SearchResult implements Parcelable {
     return images.toArray(new Image[images.size()]);
   }
 
+  /**
+   * Get the {@link Image} at given position, without copying the image list.
+   *
+   * @param position Image position, from 0 to {@link #getImageCount()} - 1.
+   * @return Image at given position.
+   * @throws IndexOutOfBoundsException Position is out of range.
+   */
+  public Image getImage(int position) {
+    return images.get(position);
+  }
+
+  /**
+   * Get the number of {@link Image}s contained in this SearchResult.
+   *
+   * @return Number of images.
+   */
+  public int getImageCount() {
+    return images.size();
+  }
+
+  /**
+   * Get a read-only view of the {@link Image}s contained in this SearchResult.
+   * The view is not a copy: it reflects images added or removed later by
+   * {@link #addImages(Image[], int)} and {@link #filter(ImageFilter)}.
+   *
+   * @return Unmodifiable list of images.
+   */
+  public List<Image> getImageList() {
+    return imagesView;
+  }
+
+  /**
+   * Get a read-only view of the {@link Image}s from given search result page.
+   * The view is not a copy, and must not be used after images are added or removed by
+   * {@link #addImages(Image[], int)} or {@link #filter(ImageFilter)}.
+   *
+   * @param page Paging offset of the images.
+   * @return Unmodifiable list of images from given page. Empty if the page isn't in this result.
+   */
+  public List<Image> getPageImages(int page) {
+    final int start = getPageStart(page);
+    if (start == -1) {
+      return Collections.emptyList();
+    }
+    return imagesView.subList(start, getPageEnd(page));
+  }
+
+  /**
+   * Get the position of the first {@link Image} from given search result page.
+   *
+   * @param page Paging offset of the images.
+   * @return Position of the first image from given page. -1 if the page isn't in this result.
+   */
+  public int getPageStart(int page) {
+    return pageStarts.get(page, -1);
+  }
+
+  /**
+   * Get the position after the last {@link Image} from given search result page.
+   *
+   * @param page Paging offset of the images.
+   * @return Position after the last image from given page. -1 if the page isn't in this result.
+   */
+  public int getPageEnd(int page) {
+    return pageEnds.get(page, -1);
+  }
+
+  /**
+   * Iterate over the {@link Image}s contained in this SearchResult, without copying them.
+   * The iterator doesn't support {@link Iterator#remove()}.
+   *
+   * @return Iterator over the images.
+   */
+  @Override
+  public Iterator<Image> iterator() {
+    return imagesView.iterator();
+  }
+
+  /**
+   * Get the filters applied to this SearchResult.
+   * They are also applied to images added using {@link #addImages(Image[], int)}.
+   *
+   * @return Copy of the combination of all filters applied so far.
+   */
+  public ImageFilter getActiveFilter() {
+    return new ImageFilter().and(activeFilter);
+  }
+
   /**
    * Get the current paging offset.
    * The way this value works varies greatly between APIs.
@@ -223,6 +541,19 @@ public class SearchResult implements Parcelable {
     return offset;
   }
 
+  /**
+   * Get the cursor used to fetch the page after the images added so far.
+   * For APIs returning the newest images first (e.g. Danbooru and Moebooru by default), the next
+   * page starts right below the lowest image ID seen so far. Fetching pages by ID instead of by
+   * page number keeps deep pages fast, and doesn't skip or repeat images when new images are
+   * uploaded while paging. Meaningless for APIs and queries that aren't sorted by ID.
+   *
+   * @return Lowest numeric image ID added so far. {@link #NO_CURSOR} if there isn't one.
+   */
+  public long getNextPageCursor() {
+    return nextPageCursor;
+  }
+
   /**
    * Get array of {@link Tag}s used to retrieve this SearchResult.
    *
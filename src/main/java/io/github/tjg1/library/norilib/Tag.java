@@ -9,6 +9,9 @@ package io.github.tjg1.library.norilib;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /** Image tag */
 public class Tag implements Comparable<Tag>, Parcelable {
 
@@ -18,8 +21,9 @@ public class Tag implements Comparable<Tag>, Parcelable {
 
     @Override
     public Tag createFromParcel(Parcel source) {
-      // Use the Parcel constructor.
-      return new Tag(source);
+      // Share instances with tags already in the pool.
+      final String name = source.readString();
+      return Tag.valueOf(name, TYPES[source.readInt()]);
     }
 
     @Override
@@ -35,7 +39,8 @@ public class Tag implements Comparable<Tag>, Parcelable {
    */
   protected Tag(Parcel in) {
     this.name = in.readString();
-    this.type = Type.values()[in.readInt()];
+    this.type = TYPES[in.readInt()];
+    this.hashCode = computeHashCode(name, type);
   }
 
   @Override
@@ -50,11 +55,31 @@ public class Tag implements Comparable<Tag>, Parcelable {
   }
   //endregion
 
+  //region Tag pool
+  /** Tag types, cached to avoid copying the array returned by {@link Type#values()}. */
+  private static final Type[] TYPES = Type.values();
+  /**
+   * Maximum number of tags of each type kept in the pool.
+   * The pool for a type is emptied when full, so it only keeps recently seen tags.
+   */
+  private static final int MAX_POOL_SIZE = 16384;
+  /** Pools of shared Tag instances, indexed by {@link Type#ordinal()}. */
+  private static final Pool[] POOLS = new Pool[TYPES.length];
+
+  static {
+    for (int i = 0; i < POOLS.length; i++) {
+      POOLS[i] = new Pool();
+    }
+  }
+  //endregion
+
   //region Instance fields
   /** Tag name */
   private final String name;
   /** Tag type */
   private final Type type;
+  /** Cached hash code. Tags are immutable and hashed often when filtering. */
+  private final int hashCode;
   //endregion
 
   //region Constructors
@@ -64,8 +89,7 @@ public class Tag implements Comparable<Tag>, Parcelable {
    * @param name Tag name.
    */
   public Tag(String name) {
-    this.name = name;
-    this.type = Type.GENERAL;
+    this(name, Type.GENERAL);
   }
 
   /**
@@ -77,6 +101,38 @@ public class Tag implements Comparable<Tag>, Parcelable {
   public Tag(String name, Type type) {
     this.name = name;
     this.type = type;
+    this.hashCode = computeHashCode(name, type);
+  }
+  //endregion
+
+  //region Shared instances
+  /**
+   * Get a shared Tag instance with given name and type.
+   * API clients create thousands of identical tags (such as "1girl" or "solo") for each page of
+   * results, so using shared instances greatly reduces the memory used by large
+   * {@link SearchResult}s.
+   *
+   * @param name Tag name.
+   * @param type Tag type.
+   * @return Tag with given name and type.
+   */
+  public static Tag valueOf(String name, Type type) {
+    final Pool pool = POOLS[type.ordinal()];
+
+    Tag tag = pool.tags.get(name);
+    if (tag == null) {
+      // Empty the pool when full, to keep its size bounded.
+      if (pool.size.incrementAndGet() > MAX_POOL_SIZE) {
+        pool.tags.clear();
+        pool.size.set(1);
+      }
+      final Tag newTag = new Tag(name, type);
+      tag = pool.tags.putIfAbsent(name, newTag);
+      if (tag == null) {
+        tag = newTag;
+      }
+    }
+    return tag;
   }
   //endregion
 
@@ -88,11 +144,23 @@ public class Tag implements Comparable<Tag>, Parcelable {
 
     Tag tag = (Tag) o;
 
+    if (hashCode != tag.hashCode) return false;
     return !(name != null ? !name.equals(tag.name) : tag.name != null) && type == tag.type;
   }
 
   @Override
   public int hashCode() {
+    return hashCode;
+  }
+
+  /**
+   * Compute the hash code of a tag.
+   *
+   * @param name Tag name.
+   * @param type Tag type.
+   * @return Hash code.
+   */
+  private static int computeHashCode(String name, Type type) {
     int result = name != null ? name.hashCode() : 0;
     result = 31 * result + (type != null ? type.hashCode() : 0);
     return result;
@@ -186,13 +254,29 @@ public class Tag implements Comparable<Tag>, Parcelable {
     if (query == null || query.isEmpty()) {
       return new Tag[0];
     }
-    // Split the space-separated string into a String array.
-    final String[] strings = query.trim().split(" ");
 
-    // Convert each String into a Tag object.
-    final Tag[] tags = new Tag[strings.length];
-    for (int i = 0; i < strings.length; i++) {
-      tags[i] = new Tag(strings[i], type);
+    // Count the tags first, so that only the result array is allocated.
+    final int length = query.length();
+    int count = 0;
+    for (int i = 0; i < length; i++) {
+      if (query.charAt(i) != ' ' && (i == 0 || query.charAt(i - 1) == ' ')) {
+        count++;
+      }
+    }
+
+    // Convert each space-separated substring into a shared Tag instance.
+    final Tag[] tags = new Tag[count];
+    int start = 0;
+    for (int i = 0; i < count; i++) {
+      while (query.charAt(start) == ' ') {
+        start++;
+      }
+      int end = query.indexOf(' ', start);
+      if (end == -1) {
+        end = length;
+      }
+      tags[i] = valueOf(query.substring(start, end), type);
+      start = end;
     }
     return tags;
   }
@@ -214,4 +298,14 @@ public class Tag implements Comparable<Tag>, Parcelable {
     COPYRIGHT
   }
   //endregion
+
+  //region Tag pool inner class
+  /** Pool of shared Tag instances of a single {@link Type}. */
+  private static class Pool {
+    /** Shared tags, by name. */
+    private final ConcurrentHashMap<String, Tag> tags = new ConcurrentHashMap<>();
+    /** Approximate number of tags in {@link #tags}. Cheaper than {@link ConcurrentHashMap#size()}. */
+    private final AtomicInteger size = new AtomicInteger();
+  }
+  //endregion
 }
@@ -0,0 +1,402 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary assigning a compact integer ID to each distinct {@link Tag}.
+ * <p/>
+ * {@link Image}s store their tags as sorted arrays of these IDs, so that tag set operations
+ * (filtering, intersection, counting) are plain integer work and each image only retains 4 bytes
+ * per tag. To keep memory use bounded, a dictionary only takes {@link #MAX_SIZE} tags. New tags are
+ * then added to a new {@link #getCurrent() current} dictionary. Each image keeps a reference to
+ * the dictionary its IDs belong to, so a full dictionary is released once no image uses it anymore.
+ * <p/>
+ * Each dictionary hands out IDs from its own range, so IDs from different dictionaries never
+ * collide and can be mixed in the same set. The same tag may have a different ID in each
+ * dictionary: use {@link #lookup(Collection)} to get all of them. IDs are not stable between
+ * processes and must not be persisted.
+ */
+public final class TagDictionary {
+
+  //region Constants
+  /** Returned by {@link #getId(Tag)} for tags that have not been assigned an ID. */
+  public static final int NO_ID = -1;
+  /** Empty ID array. */
+  public static final int[] EMPTY = new int[0];
+  /** Number of tags after which new tags are added to a new dictionary. */
+  public static final int MAX_SIZE = 16384;
+  /**
+   * Number of IDs reserved for each dictionary. Larger than {@link #MAX_SIZE}, as images that got
+   * a dictionary just before it filled up can still add their tags to it.
+   */
+  private static final int ID_RANGE = 1 << 20;
+  /** Number of ID ranges. Ranges of released dictionaries are re-used. */
+  private static final int RANGE_COUNT = Integer.MAX_VALUE / ID_RANGE;
+  /** Initial capacity of the {@link #tags} array. */
+  private static final int INITIAL_CAPACITY = 1024;
+  //endregion
+
+  //region Static fields
+  /** Dictionary new images add their tags to. */
+  private static volatile TagDictionary current = new TagDictionary(0);
+  /** Dictionaries that may still be used by images. Guarded by the class lock. */
+  private static final List<WeakReference<TagDictionary>> DICTIONARIES = new ArrayList<>();
+
+  static {
+    DICTIONARIES.add(new WeakReference<>(current));
+  }
+  //endregion
+
+  //region Instance fields
+  /** Index of the ID range used by this dictionary. */
+  private final int range;
+  /** First ID in this dictionary's range. */
+  private final int base;
+  /** Tag IDs, by tag. */
+  private final ConcurrentHashMap<Tag, Integer> ids = new ConcurrentHashMap<>();
+  /** Tags, by ID minus {@link #base}. Replaced with a larger copy when full. */
+  private volatile Tag[] tags = new Tag[INITIAL_CAPACITY];
+  /** Number of tags in the dictionary. Only modified while holding the instance lock. */
+  private volatile int size = 0;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new, empty dictionary.
+   *
+   * @param range Index of the ID range to use.
+   */
+  private TagDictionary(int range) {
+    this.range = range;
+    this.base = range * ID_RANGE;
+  }
+
+  /**
+   * Get the dictionary new tags should be added to.
+   * Callers must keep a reference to the dictionary for as long as they use IDs returned by it.
+   *
+   * @return Current dictionary.
+   */
+  public static TagDictionary getCurrent() {
+    return current;
+  }
+  //endregion
+
+  //region Assigning IDs
+  /**
+   * Get the sorted set of IDs of given tags, adding them to this dictionary if needed.
+   *
+   * @param tags Tags.
+   * @return Sorted array of distinct tag IDs.
+   */
+  public int[] encode(Tag... tags) {
+    return sort(encodeInOrder(tags));
+  }
+
+  /**
+   * Get the IDs of given tags in the order they are given, adding them to this dictionary if needed.
+   *
+   * @param tags Tags.
+   * @return Distinct tag IDs, in the order the tags first appear in.
+   */
+  public int[] encodeInOrder(Tag... tags) {
+    if (tags == null || tags.length == 0) {
+      return EMPTY;
+    }
+
+    final int[] ids = new int[tags.length];
+    for (int i = 0; i < tags.length; i++) {
+      final Integer id = this.ids.get(tags[i]);
+      ids[i] = id != null ? id : add(tags[i]);
+    }
+    final int[] sortedIds = sortedSet(ids.clone(), ids.length);
+    if (sortedIds.length == ids.length) {
+      return ids;
+    }
+
+    // Remove duplicates, keeping the first occurrence of each tag.
+    final boolean[] seen = new boolean[sortedIds.length];
+    final int[] distinctIds = new int[sortedIds.length];
+    int count = 0;
+    for (int id : ids) {
+      final int index = Arrays.binarySearch(sortedIds, id);
+      if (!seen[index]) {
+        seen[index] = true;
+        distinctIds[count++] = id;
+      }
+    }
+    return distinctIds;
+  }
+
+  /**
+   * Add a tag to the dictionary.
+   *
+   * @param tag Tag not in the dictionary yet.
+   * @return ID assigned to the tag.
+   */
+  private synchronized int add(Tag tag) {
+    // Another thread could have added the tag while waiting for the lock.
+    final Integer existingId = ids.get(tag);
+    if (existingId != null) {
+      return existingId;
+    }
+    if (size == ID_RANGE) {
+      throw new IllegalStateException("Tag ID range exhausted.");
+    }
+
+    Tag[] tags = this.tags;
+    if (size == tags.length) {
+      tags = Arrays.copyOf(tags, tags.length * 2);
+    }
+    final int id = base + size;
+    tags[size] = tag;
+    // Publish the array before the ID, so threads that see the ID also see the tag.
+    this.tags = tags;
+    size++;
+    ids.put(tag, id);
+
+    if (size == MAX_SIZE) {
+      startNewDictionary(this);
+    }
+    return id;
+  }
+
+  /**
+   * Replace a full dictionary with a new, empty one.
+   *
+   * @param full Dictionary that has reached {@link #MAX_SIZE} tags.
+   */
+  private static synchronized void startNewDictionary(TagDictionary full) {
+    if (current != full) {
+      return;
+    }
+
+    // Find an ID range not used by any dictionary still referenced by images.
+    final boolean[] used = new boolean[RANGE_COUNT];
+    for (TagDictionary dictionary : getDictionaries()) {
+      used[dictionary.range] = true;
+    }
+    for (int i = 1; i < RANGE_COUNT; i++) {
+      final int range = (full.range + i) % RANGE_COUNT;
+      if (!used[range]) {
+        current = new TagDictionary(range);
+        DICTIONARIES.add(new WeakReference<>(current));
+        return;
+      }
+    }
+    throw new IllegalStateException("Too many tag dictionaries in use.");
+  }
+  //endregion
+
+  //region Looking up IDs
+  /**
+   * Get the ID of a tag in this dictionary, without adding it.
+   *
+   * @param tag Tag.
+   * @return Tag ID or {@link #NO_ID} if the tag has not been assigned an ID by this dictionary.
+   */
+  public int getId(Tag tag) {
+    final Integer id = ids.get(tag);
+    return id != null ? id : NO_ID;
+  }
+
+  /**
+   * Get the tags with given IDs.
+   *
+   * @param ids Tag IDs assigned by this dictionary.
+   * @return Tags, in the same order as their IDs.
+   * @throws IndexOutOfBoundsException Tag ID was not assigned by this dictionary.
+   */
+  public Tag[] decode(int[] ids) {
+    final Tag[] tags = new Tag[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      tags[i] = get(ids[i]);
+    }
+    return tags;
+  }
+
+  /**
+   * Get the number of tags in this dictionary.
+   *
+   * @return Number of distinct tags assigned an ID.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the tag with given ID.
+   *
+   * @param id Tag ID.
+   * @return Tag.
+   * @throws IndexOutOfBoundsException Tag ID was not assigned by this dictionary.
+   */
+  private Tag get(int id) {
+    final Tag[] tags = this.tags;
+    final int index = id - base;
+    if (index < 0 || index >= tags.length || tags[index] == null) {
+      throw new IndexOutOfBoundsException("Unknown tag ID: " + id);
+    }
+    return tags[index];
+  }
+
+  /**
+   * Get the IDs of given tags in all dictionaries still in use, without adding them.
+   * Tags that have not been assigned an ID can't be on any {@link Image} and are skipped.
+   *
+   * @param tags Tags.
+   * @return Sorted array of distinct tag IDs.
+   */
+  public static synchronized int[] lookup(Collection<Tag> tags) {
+    final List<TagDictionary> dictionaries = getDictionaries();
+    int[] ids = new int[tags.size() * dictionaries.size()];
+    int count = 0;
+    for (TagDictionary dictionary : dictionaries) {
+      for (Tag tag : tags) {
+        final int id = dictionary.getId(tag);
+        if (id != NO_ID) {
+          ids[count++] = id;
+        }
+      }
+    }
+    return sortedSet(ids, count);
+  }
+
+  /**
+   * Get the tag with given ID, from any dictionary still in use.
+   *
+   * @param id Tag ID.
+   * @return Tag.
+   * @throws IndexOutOfBoundsException Tag ID was not assigned by a dictionary still in use.
+   */
+  public static synchronized Tag getTag(int id) {
+    for (TagDictionary dictionary : getDictionaries()) {
+      if (dictionary.range == id / ID_RANGE) {
+        return dictionary.get(id);
+      }
+    }
+    throw new IndexOutOfBoundsException("Unknown tag ID: " + id);
+  }
+
+  /**
+   * Get the dictionaries that are still in use, forgetting those that have been released.
+   * Must be called while holding the class lock.
+   *
+   * @return Dictionaries in use.
+   */
+  private static List<TagDictionary> getDictionaries() {
+    final List<TagDictionary> dictionaries = new ArrayList<>(DICTIONARIES.size());
+    final Iterator<WeakReference<TagDictionary>> iterator = DICTIONARIES.iterator();
+    while (iterator.hasNext()) {
+      final TagDictionary dictionary = iterator.next().get();
+      if (dictionary == null) {
+        iterator.remove();
+      } else {
+        dictionaries.add(dictionary);
+      }
+    }
+    return dictionaries;
+  }
+  //endregion
+
+  //region Set operations
+  /**
+   * Check if two sorted sets of tag IDs have any IDs in common.
+   *
+   * @param a Sorted array of distinct tag IDs.
+   * @param b Sorted array of distinct tag IDs.
+   * @return True if the sets intersect.
+   */
+  public static boolean intersects(int[] a, int[] b) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] == b[j]) {
+        return true;
+      } else if (a[i] < b[j]) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the tag IDs in the first set that are not in the second set.
+   *
+   * @param a Sorted array of distinct tag IDs.
+   * @param b Sorted array of distinct tag IDs to remove from the first array.
+   * @return Sorted array of distinct tag IDs.
+   */
+  public static int[] difference(int[] a, int[] b) {
+    if (a.length == 0 || b.length == 0) {
+      return a;
+    }
+
+    final int[] ids = new int[a.length];
+    int count = 0;
+    int j = 0;
+    for (int id : a) {
+      while (j < b.length && b[j] < id) {
+        j++;
+      }
+      if (j == b.length || b[j] != id) {
+        ids[count++] = id;
+      }
+    }
+    return count == a.length ? a : Arrays.copyOf(ids, count);
+  }
+
+  /**
+   * Get a sorted set of distinct tag IDs.
+   *
+   * @param ids Distinct tag IDs, in any order.
+   * @return Sorted array of the IDs. The array passed in, if it is already sorted.
+   */
+  public static int[] sort(int[] ids) {
+    for (int i = 1; i < ids.length; i++) {
+      if (ids[i] < ids[i - 1]) {
+        final int[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        return sortedIds;
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Sort the first elements of given array and remove duplicates.
+   *
+   * @param ids   Tag IDs. Modified in place.
+   * @param count Number of IDs to use.
+   * @return Sorted array of distinct tag IDs. May be the array passed in.
+   */
+  private static int[] sortedSet(int[] ids, int count) {
+    if (count == 0) {
+      return EMPTY;
+    }
+
+    Arrays.sort(ids, 0, count);
+    int length = 1;
+    for (int i = 1; i < count; i++) {
+      if (ids[i] != ids[length - 1]) {
+        ids[length++] = ids[i];
+      }
+    }
+    return length == ids.length ? ids : Arrays.copyOf(ids, length);
+  }
+  //endregion
+}
@@ -0,0 +1,231 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.cache;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * {@link SearchClient} decorator serving recently fetched pages from a {@link SearchResultCache}.
+ * <p/>
+ * Useful when the same page is requested again shortly after it was fetched, for example after
+ * back navigation or a configuration change. Pages not found in the cache are fetched using the
+ * wrapped client and added to the cache.
+ * <p/>
+ * Fetched pages can also be written to a {@link DiskSearchResultCache}, so the last page of the
+ * default query can be shown on cold start using {@link #getLastDefaultQueryResult()}.
+ */
+public class CachingSearchClient implements SearchClient {
+
+  //region Constants
+  /** Thread used to write pages to disk caches, off the main thread. */
+  private static final Executor DISK_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      final Thread thread = new Thread(runnable, "norilib-disk-cache");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  //endregion
+
+  //region Instance fields
+  /** Client used to fetch pages not found in the cache. */
+  private final SearchClient client;
+  /** Cache of parsed pages. May be shared with other clients. */
+  private final SearchResultCache cache;
+  /** Persistent cache of parsed pages. May be null. */
+  private final DiskSearchResultCache diskCache;
+  /** API endpoint URL of the wrapped client. Part of each cache key. */
+  private final String endpoint;
+  /** Username used by the wrapped client. Part of each cache key. Null for anonymous clients. */
+  private final String username;
+  /** Handler used to deliver cached pages to asynchronous callbacks on the main thread. */
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new client serving pages from given cache.
+   *
+   * @param client Client used to fetch pages not found in the cache.
+   * @param cache  Cache of parsed pages.
+   */
+  public CachingSearchClient(SearchClient client, SearchResultCache cache) {
+    this(client, cache, null);
+  }
+
+  /**
+   * Create a new client serving pages from given cache and writing them to a disk cache.
+   *
+   * @param client    Client used to fetch pages not found in the cache.
+   * @param cache     Cache of parsed pages.
+   * @param diskCache Persistent cache fetched pages are written to. (optional)
+   */
+  public CachingSearchClient(SearchClient client, SearchResultCache cache,
+                             DiskSearchResultCache diskCache) {
+    this.client = client;
+    this.cache = cache;
+    this.diskCache = diskCache;
+    this.endpoint = client.getSettings().getEndpoint();
+    this.username = client.getSettings().getUsername();
+  }
+  //endregion
+
+  //region SearchClient methods
+  @Override
+  public SearchResult search(String tags) throws IOException {
+    // Return results for page 0.
+    return search(tags, 0);
+  }
+
+  @Override
+  public SearchResult search(String tags, int pid) throws IOException {
+    final SearchResult cachedResult = cache.get(endpoint, username, tags, pid);
+    if (cachedResult != null) {
+      return cachedResult;
+    }
+
+    final SearchResult searchResult = client.search(tags, pid);
+    cache.put(endpoint, username, tags, pid, searchResult);
+    writeToDiskCache(tags, pid, searchResult);
+    return searchResult;
+  }
+
+  @Override
+  public void search(String tags, SearchCallback callback) {
+    // Return results for page 0.
+    search(tags, 0, callback);
+  }
+
+  @Override
+  public void search(final String tags, final int pid, final SearchCallback callback) {
+    final SearchResult cachedResult = cache.get(endpoint, username, tags, pid);
+    if (cachedResult != null) {
+      // Deliver on the main thread, like callbacks of network requests.
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          callback.onSuccess(cachedResult);
+        }
+      });
+      return;
+    }
+
+    client.search(tags, pid, new SearchCallback() {
+      @Override
+      public void onFailure(IOException e) {
+        callback.onFailure(e);
+      }
+
+      @Override
+      public void onSuccess(SearchResult searchResult) {
+        cache.put(endpoint, username, tags, pid, searchResult);
+        writeToDiskCache(tags, pid, searchResult);
+        callback.onSuccess(searchResult);
+      }
+    });
+  }
+
+  @Override
+  public String getDefaultQuery() {
+    return client.getDefaultQuery();
+  }
+
+  @Override
+  public Settings getSettings() {
+    return client.getSettings();
+  }
+
+  @Override
+  public AuthenticationType requiresAuthentication() {
+    return client.requiresAuthentication();
+  }
+  //endregion
+
+  //region Disk cache
+  /**
+   * Get the last fetched page of the {@link #getDefaultQuery()} search results from the disk cache,
+   * without making any network requests. Used to show results immediately on cold start.
+   *
+   * @return Last fetched first page of the default query. Null if not cached.
+   * @throws IOException Error reading the disk cache.
+   */
+  @WorkerThread
+  public SearchResult getLastDefaultQueryResult() throws IOException {
+    return getLastResult(getDefaultQuery(), 0);
+  }
+
+  /**
+   * Get the last fetched version of a page from the disk cache, without making any network requests.
+   *
+   * @param tags Search query. A space-separated list of tags.
+   * @param pid  Page number.
+   * @return Last fetched version of the page. Null if not cached.
+   * @throws IOException Error reading the disk cache.
+   */
+  @WorkerThread
+  public SearchResult getLastResult(String tags, int pid) throws IOException {
+    return diskCache != null ? diskCache.get(endpoint, username, tags, pid) : null;
+  }
+
+  /**
+   * Write a page to the disk cache in the background, if one is used.
+   *
+   * @param tags         Search query. A space-separated list of tags.
+   * @param pid          Page number.
+   * @param searchResult Page to write.
+   */
+  private void writeToDiskCache(final String tags, final int pid, SearchResult searchResult) {
+    if (diskCache == null) {
+      return;
+    }
+
+    // Copy the page, the caller could modify it before it is written.
+    final SearchResult copy = new SearchResult(searchResult);
+    DISK_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          diskCache.put(endpoint, username, tags, pid, copy);
+        } catch (IOException ignored) {
+          // The disk cache is only an optimisation. The page will be written again next time.
+        }
+      }
+    });
+  }
+  //endregion
+
+  //region Getters
+  /**
+   * Get the client used to fetch pages not found in the cache.
+   *
+   * @return Wrapped client.
+   */
+  public SearchClient getClient() {
+    return client;
+  }
+
+  /**
+   * Get the cache used by this client.
+   *
+   * @return Cache of parsed pages.
+   */
+  public SearchResultCache getCache() {
+    return cache;
+  }
+  //endregion
+}
@@ -0,0 +1,333 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.cache;
+
+import android.content.Context;
+import android.support.annotation.WorkerThread;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import io.github.tjg1.library.norilib.SearchResult;
+
+/**
+ * Persistent cache of parsed {@link SearchResult} pages, used to show results on cold start without
+ * waiting for the network.
+ * <p/>
+ * Pages are appended to a single segment file using the compact binary format of
+ * {@link SearchResultCodec}. The segment is memory-mapped and cached pages are decoded straight
+ * from the mapped buffer. Each record is checksummed, so records left incomplete by a crash are
+ * detected and discarded when the cache is opened. When the segment exceeds its size budget, the
+ * most recent pages are copied to a new segment which atomically replaces the old one.
+ * <p/>
+ * All methods perform disk I/O and should not be called on the main thread.
+ */
+public class DiskSearchResultCache {
+
+  //region Constants
+  /** Default size budget of the segment file, in bytes. */
+  public static final long DEFAULT_MAX_SIZE = 2 * 1024 * 1024;
+  /** Name of the segment file. */
+  private static final String SEGMENT_FILE_NAME = "search-results.seg";
+  /** Name of the temporary file used when compacting the segment. */
+  private static final String COMPACTED_FILE_NAME = "search-results.seg.tmp";
+  /** Value at the start of each record. ("NORI") */
+  private static final int MAGIC = 0x4e4f5249;
+  /** Size of the record header: magic, format version, payload length and CRC32 of the payload. */
+  private static final int HEADER_SIZE = 16;
+  //endregion
+
+  //region Instance fields
+  /** Directory containing the segment file. */
+  private final File directory;
+  /** Size budget of the segment file, in bytes. */
+  private final long maxSize;
+  /** Offset of the most recent record of each page, by cache key. */
+  private final Map<String, Long> index = new HashMap<>();
+  /** Segment file. */
+  private RandomAccessFile file;
+  /** Channel used to read, write and map the segment file. */
+  private FileChannel channel;
+  /** Read-only mapping of the segment file. Re-mapped when records are appended. */
+  private MappedByteBuffer buffer;
+  /** Size of the valid part of the segment file. */
+  private long size;
+  //endregion
+
+  //region Constructors
+  /**
+   * Open the cache in the app's cache directory, using {@link #DEFAULT_MAX_SIZE}.
+   *
+   * @param context Android context.
+   * @throws IOException Error opening the segment file.
+   */
+  @WorkerThread
+  public DiskSearchResultCache(Context context) throws IOException {
+    this(new File(context.getCacheDir(), "norilib"), DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Open the cache in given directory.
+   *
+   * @param directory Directory used to store the segment file. Created if needed.
+   * @param maxSize   Size budget, in bytes.
+   * @throws IOException Error opening the segment file.
+   */
+  @WorkerThread
+  public DiskSearchResultCache(File directory, long maxSize) throws IOException {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create cache directory: " + directory);
+    }
+    open();
+  }
+  //endregion
+
+  //region Cache operations
+  /**
+   * Get a cached page.
+   *
+   * @param endpoint API endpoint URL.
+   * @param username Username used to authenticate the requests. Null for anonymous requests.
+   * @param tags     Search query. A space-separated list of tags.
+   * @param pid      Page number.
+   * @return Cached page. Null if the page isn't cached.
+   * @throws IOException Error reading the segment file.
+   */
+  @WorkerThread
+  public synchronized SearchResult get(String endpoint, String username, String tags, int pid)
+      throws IOException {
+    final String key = SearchResultCache.createKey(endpoint, username, tags, pid);
+    final Long offset = index.get(key);
+    if (offset == null) {
+      return null;
+    }
+
+    // Decode straight from the mapped segment, skipping the header, cache key and timestamp.
+    final ByteBuffer in = map().duplicate();
+    in.position((int) (offset + HEADER_SIZE));
+    SearchResultCodec.readString(in);
+    in.getLong();
+    try {
+      return SearchResultCodec.decode(in);
+    } catch (IOException e) {
+      // Don't try to read the corrupt record again.
+      index.remove(key);
+      return null;
+    }
+  }
+
+  /**
+   * Add a page to the cache, replacing any page cached with the same key.
+   * The page is written to disk before this method returns.
+   *
+   * @param endpoint     API endpoint URL.
+   * @param username     Username used to authenticate the requests. Null for anonymous requests.
+   * @param tags         Search query. A space-separated list of tags.
+   * @param pid          Page number.
+   * @param searchResult Page to cache.
+   * @throws IOException Error writing to the segment file.
+   */
+  @WorkerThread
+  public synchronized void put(String endpoint, String username, String tags, int pid,
+                               SearchResult searchResult) throws IOException {
+    final String key = SearchResultCache.createKey(endpoint, username, tags, pid);
+
+    // Encode the record payload.
+    final ByteArrayOutputStream payload = new ByteArrayOutputStream(16 * 1024);
+    final DataOutputStream out = new DataOutputStream(payload);
+    SearchResultCodec.writeString(out, key);
+    out.writeLong(System.currentTimeMillis());
+    SearchResultCodec.encode(searchResult, out);
+    out.flush();
+    final byte[] payloadBytes = payload.toByteArray();
+    final CRC32 crc = new CRC32();
+    crc.update(payloadBytes);
+
+    // Append the record and flush it to disk.
+    final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payloadBytes.length);
+    record.putInt(MAGIC)
+        .putInt(SearchResultCodec.VERSION)
+        .putInt(payloadBytes.length)
+        .putInt((int) crc.getValue())
+        .put(payloadBytes)
+        .flip();
+    long position = size;
+    while (record.hasRemaining()) {
+      position += channel.write(record, position);
+    }
+    channel.force(false);
+
+    index.put(key, size);
+    size = position;
+
+    if (size > maxSize) {
+      compact();
+    }
+  }
+
+  /**
+   * Remove all pages from the cache.
+   *
+   * @throws IOException Error truncating the segment file.
+   */
+  @WorkerThread
+  public synchronized void clear() throws IOException {
+    index.clear();
+    buffer = null;
+    size = 0;
+    channel.truncate(0);
+    channel.force(true);
+  }
+
+  /**
+   * Close the segment file. The cache can't be used afterwards.
+   *
+   * @throws IOException Error closing the file.
+   */
+  public synchronized void close() throws IOException {
+    buffer = null;
+    file.close();
+  }
+
+  /**
+   * Get the size of the segment file.
+   *
+   * @return Size, in bytes.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+  //endregion
+
+  //region Segment file
+  /**
+   * Open the segment file and index its records.
+   * Records after the first incomplete or corrupt record are discarded.
+   *
+   * @throws IOException Error reading the segment file.
+   */
+  private void open() throws IOException {
+    file = new RandomAccessFile(new File(directory, SEGMENT_FILE_NAME), "rw");
+    channel = file.getChannel();
+    size = channel.size();
+    buffer = null;
+    index.clear();
+
+    final ByteBuffer in = map();
+    final CRC32 crc = new CRC32();
+    long offset = 0;
+    while (offset + HEADER_SIZE <= size) {
+      in.position((int) offset);
+      final int magic = in.getInt();
+      final int version = in.getInt();
+      final int length = in.getInt();
+      final int checksum = in.getInt();
+      if (magic != MAGIC || length < 0 || offset + HEADER_SIZE + length > size) {
+        break;
+      }
+
+      final byte[] payload = new byte[length];
+      in.get(payload);
+      crc.reset();
+      crc.update(payload);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      // Records written by other format versions are skipped.
+      if (version == SearchResultCodec.VERSION) {
+        index.put(SearchResultCodec.readString(ByteBuffer.wrap(payload)), offset);
+      }
+      offset += HEADER_SIZE + length;
+    }
+
+    // Discard the incomplete record left by a crash while writing.
+    if (offset < size) {
+      buffer = null;
+      size = offset;
+      channel.truncate(offset);
+    }
+  }
+
+  /**
+   * Get a read-only mapping of the segment file, covering all records.
+   *
+   * @return Mapped segment.
+   * @throws IOException Error mapping the file.
+   */
+  private MappedByteBuffer map() throws IOException {
+    if (buffer == null || buffer.capacity() < size) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    return buffer;
+  }
+
+  /**
+   * Replace the segment file with a new file containing only the most recent record of the most
+   * recently cached pages, using at most half of the size budget.
+   *
+   * @throws IOException Error writing the new segment file.
+   */
+  private void compact() throws IOException {
+    // Keep the most recent records.
+    final List<Long> offsets = new ArrayList<>(index.values());
+    Collections.sort(offsets, Collections.reverseOrder());
+    final ByteBuffer in = map();
+    final List<Long> keptOffsets = new ArrayList<>();
+    long keptSize = 0;
+    for (long offset : offsets) {
+      final long recordSize = HEADER_SIZE + in.getInt((int) offset + 8);
+      if (keptSize + recordSize > maxSize / 2) {
+        break;
+      }
+      keptOffsets.add(offset);
+      keptSize += recordSize;
+    }
+    Collections.reverse(keptOffsets);
+
+    // Copy them to a new file, in the same order.
+    final File compactedFile = new File(directory, COMPACTED_FILE_NAME);
+    final RandomAccessFile compacted = new RandomAccessFile(compactedFile, "rw");
+    try {
+      final FileChannel compactedChannel = compacted.getChannel();
+      compactedChannel.truncate(0);
+      for (long offset : keptOffsets) {
+        final long recordSize = HEADER_SIZE + in.getInt((int) offset + 8);
+        long transferred = 0;
+        while (transferred < recordSize) {
+          transferred += channel.transferTo(offset + transferred, recordSize - transferred,
+              compactedChannel);
+        }
+      }
+      compactedChannel.force(true);
+    } finally {
+      compacted.close();
+    }
+
+    // Atomically replace the old segment and re-open the cache.
+    close();
+    final boolean renamed = compactedFile.renameTo(new File(directory, SEGMENT_FILE_NAME));
+    open();
+    if (!renamed) {
+      throw new IOException("Could not replace cache segment file.");
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,311 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.cache;
+
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * Coalesces identical concurrent search requests (single-flight).
+ * <p/>
+ * While a request for a page is in flight, further requests for the same page (same endpoint,
+ * same set of tags, page number, page size and cursor) don't hit the network, but wait for the outstanding request
+ * instead. The response is only parsed once: the first caller gets the parsed {@link SearchResult}
+ * and every other caller gets its own copy, so callers are still free to filter or add images.
+ */
+public class RequestCoalescer {
+
+  //region Constants
+  /** Coalescer shared by all {@link SearchClient}s. */
+  private static final RequestCoalescer DEFAULT = new RequestCoalescer();
+  //endregion
+
+  //region Instance fields
+  /** Requests in flight, by key. Guarded by {@code this}. */
+  private final Map<String, Call> inFlight = new HashMap<>();
+  /** Number of requests actually sent. */
+  private final AtomicInteger requestCount = new AtomicInteger();
+  /** Number of requests that were attached to a request already in flight. */
+  private final AtomicInteger coalescedCount = new AtomicInteger();
+  //endregion
+
+  //region Constructors
+  /** Create a new coalescer. */
+  public RequestCoalescer() {
+    // No state to initialize.
+  }
+
+  /**
+   * Get the coalescer shared by all {@link SearchClient}s.
+   *
+   * @return Shared coalescer.
+   */
+  public static RequestCoalescer getDefault() {
+    return DEFAULT;
+  }
+  //endregion
+
+  //region Coalescing requests
+  /**
+   * Send a request, unless an identical request is already in flight.
+   * Cancelling the returned future only cancels the request once every caller waiting for it has
+   * cancelled.
+   *
+   * @param key     Request key. See {@link #createKey(String, String, String, int, int, long)}.
+   * @param request Request to send if no identical request is in flight.
+   * @return Future completed with the parsed SearchResult.
+   */
+  public Future<SearchResult> execute(final String key, Request request) {
+    final Call call;
+    final Waiter waiter;
+
+    synchronized (this) {
+      final Call existingCall = inFlight.get(key);
+      if (existingCall != null) {
+        waiter = new Waiter(existingCall);
+        existingCall.waiters.add(waiter);
+        coalescedCount.incrementAndGet();
+        return waiter;
+      }
+      call = new Call(key);
+      waiter = new Waiter(call);
+      call.waiters.add(waiter);
+      inFlight.put(key, call);
+    }
+    requestCount.incrementAndGet();
+
+    final Future<SearchResult> response;
+    try {
+      response = request.execute();
+    } catch (RuntimeException e) {
+      complete(call, e, null);
+      return waiter;
+    }
+    if (!call.setResponse(response)) {
+      // Every caller cancelled while the request was being sent.
+      response.cancel();
+      return waiter;
+    }
+    response.setCallback(new FutureCallback<SearchResult>() {
+      @Override
+      public void onCompleted(Exception e, SearchResult result) {
+        complete(call, e, result);
+      }
+    });
+
+    return waiter;
+  }
+
+  /**
+   * Complete all futures waiting for a request.
+   *
+   * @param call   Request that completed.
+   * @param e      Exception thrown by the request. Null if it succeeded.
+   * @param result Parsed SearchResult.
+   */
+  private void complete(Call call, Exception e, SearchResult result) {
+    final List<Waiter> waiters;
+    synchronized (this) {
+      // Requests made from now on will be sent again.
+      remove(call);
+      waiters = new ArrayList<>(call.waiters);
+      call.waiters.clear();
+    }
+    if (waiters.isEmpty()) {
+      return;
+    }
+
+    if (e != null) {
+      for (Waiter waiter : waiters) {
+        waiter.setComplete(e);
+      }
+      return;
+    }
+
+    // Make the copies before handing out the original, as the first caller could modify it.
+    final SearchResult[] results = new SearchResult[waiters.size()];
+    results[0] = result;
+    for (int i = 1; i < results.length; i++) {
+      results[i] = new SearchResult(result);
+    }
+    for (int i = 0; i < results.length; i++) {
+      waiters.get(i).setComplete(results[i]);
+    }
+  }
+
+  /**
+   * Stop waiting for a request, cancelling it if no other caller is waiting for it.
+   *
+   * @param waiter Cancelled future.
+   */
+  private void cancel(Waiter waiter) {
+    final Call call = waiter.call;
+    final Future<SearchResult> response;
+    synchronized (this) {
+      if (!call.waiters.remove(waiter) || !call.waiters.isEmpty()) {
+        return;
+      }
+      // Nobody is waiting for the request anymore, new callers have to send it again.
+      remove(call);
+      response = call.cancel();
+    }
+    if (response != null) {
+      response.cancel();
+    }
+  }
+
+  /**
+   * Forget a request, unless it has already been replaced by a new request with the same key.
+   * Must be called while holding the lock on {@code this}.
+   *
+   * @param call Request to forget.
+   */
+  private void remove(Call call) {
+    if (inFlight.get(call.key) == call) {
+      inFlight.remove(call.key);
+    }
+  }
+
+  /**
+   * Create a request key.
+   * Searches for the same tags in a different order, or separated by more than one space, get the
+   * same key.
+   *
+   * The page size and cursor are part of the key, as they change the response: they must be
+   * resolved before the request is coalesced.
+   *
+   * @param endpoint API endpoint URL.
+   * @param username Username used to authenticate the request. Null for anonymous requests.
+   * @param tags     Search query. A space-separated list of tags.
+   * @param pid      Page number.
+   * @param limit    Number of images per page.
+   * @param cursor   ID of the last image on the previous page, or {@link SearchResult#NO_CURSOR} if
+   *                 the page is requested by number.
+   * @return Request key.
+   */
+  public static String createKey(String endpoint, String username, String tags, int pid, int limit,
+                                 long cursor) {
+    final StringBuilder key = new StringBuilder(
+        SearchResultCache.createKey(endpoint, username, tags, pid)).append('\n').append(limit);
+    if (cursor != SearchResult.NO_CURSOR) {
+      key.append('\n').append(cursor);
+    }
+    return key.toString();
+  }
+  //endregion
+
+  //region Statistics
+  /**
+   * Get the number of requests actually sent.
+   *
+   * @return Request count.
+   */
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Get the number of requests that were attached to an identical request already in flight.
+   *
+   * @return Coalesced request count.
+   */
+  public int getCoalescedCount() {
+    return coalescedCount.get();
+  }
+  //endregion
+
+  //region Requests in flight
+  /** Request in flight and the futures waiting for it. */
+  private static final class Call {
+    /** Request key. */
+    private final String key;
+    /** Futures waiting for the request. Guarded by the enclosing RequestCoalescer. */
+    private final List<Waiter> waiters = new ArrayList<>(2);
+    /** Future of the response. Null until the request has been sent. Guarded by {@code this}. */
+    private Future<SearchResult> response;
+    /** Set when every caller has cancelled. Guarded by {@code this}. */
+    private boolean cancelled;
+
+    /**
+     * Create a new request in flight.
+     *
+     * @param key Request key.
+     */
+    private Call(String key) {
+      this.key = key;
+    }
+
+    /**
+     * Set the future of the response, once the request has been sent.
+     *
+     * @param response Future of the response.
+     * @return False if every caller has cancelled in the meantime.
+     */
+    private synchronized boolean setResponse(Future<SearchResult> response) {
+      this.response = response;
+      return !cancelled;
+    }
+
+    /**
+     * Mark the request as cancelled.
+     *
+     * @return Future of the response to cancel. Null if the request hasn't been sent yet.
+     */
+    private synchronized Future<SearchResult> cancel() {
+      cancelled = true;
+      return response;
+    }
+  }
+
+  /** Future returned to a single caller. Cancelling it stops waiting for the shared request. */
+  private final class Waiter extends SimpleFuture<SearchResult> {
+    /** Request the caller is waiting for. */
+    private final Call call;
+
+    /**
+     * Create a new waiting future.
+     *
+     * @param call Request the caller is waiting for.
+     */
+    private Waiter(Call call) {
+      this.call = call;
+    }
+
+    @Override
+    public boolean cancel() {
+      final boolean cancelled = super.cancel();
+      if (cancelled) {
+        RequestCoalescer.this.cancel(this);
+      }
+      return cancelled;
+    }
+  }
+  //endregion
+
+  //region Request interface
+  /** Request sent by {@link #execute(String, Request)}. */
+  public interface Request {
+    /**
+     * Send the request.
+     *
+     * @return Future completed with the parsed SearchResult.
+     */
+    Future<SearchResult> execute();
+  }
+  //endregion
+}
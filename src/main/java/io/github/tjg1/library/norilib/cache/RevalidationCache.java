@@ -0,0 +1,299 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.cache;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.clients.SearchClient;
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+import io.github.tjg1.library.norilib.transport.HttpStatusException;
+import io.github.tjg1.library.norilib.transport.Transport;
+import io.github.tjg1.library.norilib.util.StreamingParser;
+
+/**
+ * Remembers the HTTP validators (ETag and Last-Modified headers) of fetched search result pages,
+ * along with the parsed {@link SearchResult}.
+ * <p/>
+ * When the same page is requested again, a conditional request (If-None-Match / If-Modified-Since)
+ * is sent. If the server responds with 304 Not Modified, the cached SearchResult is reused without
+ * downloading or parsing the page again. Servers that don't send validators are unaffected: their
+ * pages are not cached and are always fetched and parsed in full.
+ */
+public class RevalidationCache {
+
+  //region Constants
+  /** Default maximum number of pages to remember validators for. */
+  public static final int DEFAULT_MAX_ENTRIES = 64;
+  /** HTTP status code of a Not Modified response. */
+  private static final int HTTP_NOT_MODIFIED = 304;
+  /** HTTP status code of a successful response. */
+  private static final int HTTP_OK = 200;
+  /** Status codes from this value up are errors. */
+  private static final int HTTP_BAD_REQUEST = 400;
+  /** Cache shared by all {@link SearchClient}s. */
+  private static final RevalidationCache DEFAULT = new RevalidationCache(DEFAULT_MAX_ENTRIES);
+  /** Handler used to deliver results to asynchronous callbacks on the main thread. */
+  private static final Handler MAIN_THREAD_HANDLER = new Handler(Looper.getMainLooper());
+  //endregion
+
+  //region Instance fields
+  /** Validators and parsed pages, by request key. */
+  private final LruCache<String, Entry> cache;
+  /** Number of requests answered with 304 Not Modified. */
+  private final AtomicInteger notModifiedCount = new AtomicInteger();
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new cache.
+   *
+   * @param maxEntries Maximum number of pages to remember validators for.
+   */
+  public RevalidationCache(int maxEntries) {
+    this.cache = new LruCache<>(maxEntries);
+  }
+
+  /**
+   * Get the cache shared by all {@link SearchClient}s.
+   *
+   * @return Shared cache.
+   */
+  public static RevalidationCache getDefault() {
+    return DEFAULT;
+  }
+  //endregion
+
+  //region Conditional requests
+  /**
+   * Send a (conditional, if validators for the page are known) request and parse the response.
+   *
+   * @param transport Transport used to send the request.
+   * @param request   Request, with the URL and any authentication already set.
+   * @param key       Request key. Usually the request URL. Must include anything else that affects
+   *                  the response, such as the username used for HTTP authentication.
+   * @param parser    Parser used if the page has been modified.
+   * @return Future completed with the parsed SearchResult, on a background thread. Cancelling it
+   * aborts the request.
+   */
+  public Future<SearchResult> load(Transport transport, HttpRequest request, final String key,
+                                   final StreamingParser<SearchResult> parser) {
+    // Keep a reference to the entry the validators came from, in case it is evicted before the
+    // response arrives.
+    final Entry entry = cache.get(key);
+
+    // Pages are revalidated here: a response cached by the transport could be stale, and its
+    // 304 Not Modified responses would be turned into full responses without validators.
+    request.setUseCaches(false);
+    if (entry != null) {
+      if (entry.etag != null) {
+        request.setHeader("If-None-Match", entry.etag);
+      }
+      if (entry.lastModified != null) {
+        request.setHeader("If-Modified-Since", entry.lastModified);
+      }
+    }
+
+    final Future<HttpResponse> responseFuture = transport.execute(request);
+    final SimpleFuture<SearchResult> future = new SimpleFuture<SearchResult>() {
+      @Override
+      public boolean cancel() {
+        responseFuture.cancel();
+        return super.cancel();
+      }
+    };
+
+    responseFuture.setCallback(new FutureCallback<HttpResponse>() {
+      @Override
+      public void onCompleted(Exception e, final HttpResponse response) {
+        if (e != null) {
+          future.setComplete(e);
+          return;
+        }
+
+        final int code = response.getCode();
+        if (code == HTTP_NOT_MODIFIED && entry != null) {
+          response.close();
+          notModifiedCount.incrementAndGet();
+          future.setComplete(new SearchResult(entry.searchResult));
+          return;
+        } else if (code >= HTTP_BAD_REQUEST) {
+          // Error pages aren't search results: report the status code instead of a parse error.
+          response.close();
+          remove(key);
+          future.setComplete(new HttpStatusException(code, response.getRetryAfter()));
+          return;
+        }
+
+        parser.parse(response).setCallback(new FutureCallback<SearchResult>() {
+          @Override
+          public void onCompleted(Exception e, SearchResult searchResult) {
+            if (e != null) {
+              remove(key);
+              future.setComplete(e);
+              return;
+            }
+            if (code == HTTP_OK) {
+              put(key, response.getHeader("ETag"), response.getHeader("Last-Modified"),
+                  searchResult);
+            } else {
+              remove(key);
+            }
+            future.setComplete(searchResult);
+          }
+        });
+      }
+    });
+
+    return future;
+  }
+
+  /**
+   * Wait for the SearchResult returned by
+   * {@link #load(Transport, HttpRequest, String, StreamingParser)}.
+   *
+   * @param future Future returned by {@link #load(Transport, HttpRequest, String, StreamingParser)}.
+   * @return Parsed SearchResult.
+   * @throws IOException Network error. {@link HttpStatusException} if the server responded with an
+   *                     error status code.
+   */
+  public static SearchResult get(Future<SearchResult> future) throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof HttpStatusException) {
+        // Let callers tell HTTP errors (e.g. throttling) apart from network errors.
+        throw (HttpStatusException) e.getCause();
+      }
+      // Normalise exception to IOException, so method signatures are not tied to a single HTTP
+      // library.
+      throw new IOException(e);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Deliver the SearchResult returned by
+   * {@link #load(Transport, HttpRequest, String, StreamingParser)} to a callback on the main thread.
+   * Error status codes are reported as an {@link HttpStatusException}.
+   *
+   * @param future   Future returned by {@link #load(Transport, HttpRequest, String, StreamingParser)}.
+   * @param callback Callback to deliver the SearchResult to.
+   */
+  public static void deliver(Future<SearchResult> future,
+                             final SearchClient.SearchCallback callback) {
+    future.setCallback(new FutureCallback<SearchResult>() {
+      @Override
+      public void onCompleted(final Exception e, final SearchResult result) {
+        MAIN_THREAD_HANDLER.post(new Runnable() {
+          @Override
+          public void run() {
+            if (e instanceof HttpStatusException) {
+              callback.onFailure((HttpStatusException) e);
+            } else if (e != null) {
+              callback.onFailure(new IOException(e));
+            } else {
+              callback.onSuccess(result);
+            }
+          }
+        });
+      }
+    });
+  }
+  //endregion
+
+  //region Cache operations
+  /**
+   * Remember the validators of a page.
+   * If the server didn't send any validators, any previously stored entry is removed instead.
+   *
+   * @param key          Request key.
+   * @param etag         Value of the ETag header. May be null.
+   * @param lastModified Value of the Last-Modified header. May be null.
+   * @param searchResult Parsed page. A copy is cached, so the SearchResult can still be modified.
+   */
+  public void put(String key, String etag, String lastModified, SearchResult searchResult) {
+    if (TextUtils.isEmpty(etag) && TextUtils.isEmpty(lastModified)) {
+      cache.remove(key);
+    } else {
+      cache.put(key, new Entry(TextUtils.isEmpty(etag) ? null : etag,
+          TextUtils.isEmpty(lastModified) ? null : lastModified, new SearchResult(searchResult)));
+    }
+  }
+
+  /**
+   * Check if validators are known for a page.
+   *
+   * @param key Request key.
+   * @return True if the next request for the page will be conditional.
+   */
+  public boolean contains(String key) {
+    return cache.get(key) != null;
+  }
+
+  /**
+   * Forget the validators of a page.
+   *
+   * @param key Request key.
+   */
+  public void remove(String key) {
+    cache.remove(key);
+  }
+
+  /** Forget all validators. */
+  public void evictAll() {
+    cache.evictAll();
+  }
+
+  /**
+   * Get the number of requests answered with 304 Not Modified.
+   *
+   * @return Number of pages reused without parsing.
+   */
+  public int getNotModifiedCount() {
+    return notModifiedCount.get();
+  }
+  //endregion
+
+  //region Cache entries
+  /** Validators and parsed SearchResult of a single page. */
+  private static final class Entry {
+    /** Value of the ETag header. Null if not sent by the server. */
+    private final String etag;
+    /** Value of the Last-Modified header. Null if not sent by the server. */
+    private final String lastModified;
+    /** Parsed page. Never modified, copied before being returned. */
+    private final SearchResult searchResult;
+
+    /**
+     * Create a new cache entry.
+     *
+     * @param etag         Value of the ETag header.
+     * @param lastModified Value of the Last-Modified header.
+     * @param searchResult Parsed page.
+     */
+    private Entry(String etag, String lastModified, SearchResult searchResult) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.searchResult = searchResult;
+    }
+  }
+  //endregion
+}
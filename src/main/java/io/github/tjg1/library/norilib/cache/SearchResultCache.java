@@ -0,0 +1,285 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.cache;
+
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+
+/**
+ * Bounded in-memory cache of parsed {@link SearchResult} pages.
+ * <p/>
+ * Pages are keyed by API endpoint, search query and page number and are evicted when they expire,
+ * or when the cache exceeds its size budget (least recently used pages first). The cache is
+ * thread-safe and can be shared by multiple {@link CachingSearchClient}s.
+ * <p/>
+ * Cached pages are copied on the way in and out, so callers are free to filter or add images to the
+ * SearchResults they get.
+ */
+public class SearchResultCache {
+
+  //region Constants
+  /** Default cache size budget, in bytes. */
+  public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+  /** Default time, in milliseconds, after which cached pages expire. */
+  public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(5);
+  /** Estimated size of an {@link Image} and its fixed-size fields, in bytes. */
+  private static final int IMAGE_SIZE = 200;
+  /** Estimated size of a {@link SearchResult} and its fixed-size fields, in bytes. */
+  private static final int SEARCH_RESULT_SIZE = 300;
+  //endregion
+
+  //region Instance fields
+  /** Cached pages, by key. */
+  private final LruCache<String, Entry> cache;
+  /** Time to live of pages from each endpoint, in milliseconds. */
+  private final ConcurrentHashMap<String, Long> timeToLive = new ConcurrentHashMap<>();
+  /** Time to live of pages from endpoints without one set, in milliseconds. */
+  private final long defaultTimeToLive;
+  /** Number of lookups that returned a cached page. */
+  private final AtomicInteger hitCount = new AtomicInteger();
+  /** Number of lookups that didn't find an unexpired page. */
+  private final AtomicInteger missCount = new AtomicInteger();
+  //endregion
+
+  //region Constructors
+  /** Create a new cache using {@link #DEFAULT_MAX_SIZE} and {@link #DEFAULT_TIME_TO_LIVE}. */
+  public SearchResultCache() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_TIME_TO_LIVE);
+  }
+
+  /**
+   * Create a new cache.
+   *
+   * @param maxSize           Size budget, in bytes.
+   * @param defaultTimeToLive Time, in milliseconds, after which cached pages expire.
+   */
+  public SearchResultCache(int maxSize, long defaultTimeToLive) {
+    this.defaultTimeToLive = defaultTimeToLive;
+    this.cache = new LruCache<String, Entry>(maxSize) {
+      @Override
+      protected int sizeOf(String key, Entry entry) {
+        return entry.size;
+      }
+    };
+  }
+  //endregion
+
+  //region Configuration
+  /**
+   * Set the time after which cached pages from given endpoint expire.
+   *
+   * @param endpoint   API endpoint URL. See {@link io.github.tjg1.library.norilib.clients.SearchClient.Settings#getEndpoint()}.
+   * @param timeToLive Time to live, in milliseconds.
+   */
+  public void setTimeToLive(String endpoint, long timeToLive) {
+    this.timeToLive.put(normalizeEndpoint(endpoint), timeToLive);
+  }
+
+  /**
+   * Get the time after which cached pages from given endpoint expire.
+   *
+   * @param endpoint API endpoint URL.
+   * @return Time to live, in milliseconds.
+   */
+  public long getTimeToLive(String endpoint) {
+    final Long ttl = this.timeToLive.get(normalizeEndpoint(endpoint));
+    return ttl != null ? ttl : defaultTimeToLive;
+  }
+  //endregion
+
+  //region Cache operations
+  /**
+   * Get a cached page.
+   *
+   * @param endpoint API endpoint URL.
+   * @param username Username used to authenticate the requests. Null for anonymous requests.
+   * @param tags     Search query. A space-separated list of tags.
+   * @param pid      Page number.
+   * @return Copy of the cached page. Null if the page isn't cached or has expired.
+   */
+  public SearchResult get(String endpoint, String username, String tags, int pid) {
+    final String key = createKey(endpoint, username, tags, pid);
+    final Entry entry = cache.get(key);
+
+    if (entry == null) {
+      missCount.incrementAndGet();
+      return null;
+    } else if (entry.expiresAt <= SystemClock.elapsedRealtime()) {
+      cache.remove(key);
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return new SearchResult(entry.searchResult);
+  }
+
+  /**
+   * Add a page to the cache, replacing any page cached with the same key.
+   *
+   * @param endpoint     API endpoint URL.
+   * @param username     Username used to authenticate the requests. Null for anonymous requests.
+   * @param tags         Search query. A space-separated list of tags.
+   * @param pid          Page number.
+   * @param searchResult Page to cache. A copy is cached, so the SearchResult can still be modified.
+   */
+  public void put(String endpoint, String username, String tags, int pid,
+                  SearchResult searchResult) {
+    final SearchResult copy = new SearchResult(searchResult);
+    cache.put(createKey(endpoint, username, tags, pid), new Entry(copy, estimateSize(copy),
+        SystemClock.elapsedRealtime() + getTimeToLive(endpoint)));
+  }
+
+  /**
+   * Remove a page from the cache.
+   *
+   * @param endpoint API endpoint URL.
+   * @param username Username used to authenticate the requests. Null for anonymous requests.
+   * @param tags     Search query. A space-separated list of tags.
+   * @param pid      Page number.
+   */
+  public void remove(String endpoint, String username, String tags, int pid) {
+    cache.remove(createKey(endpoint, username, tags, pid));
+  }
+
+  /** Remove all pages from the cache. */
+  public void evictAll() {
+    cache.evictAll();
+  }
+  //endregion
+
+  //region Statistics
+  /**
+   * Get the number of lookups that returned a cached page.
+   *
+   * @return Hit count.
+   */
+  public int getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Get the number of lookups that didn't find an unexpired page.
+   *
+   * @return Miss count.
+   */
+  public int getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Get the estimated size of the cached pages.
+   *
+   * @return Size, in bytes.
+   */
+  public int getSize() {
+    return cache.size();
+  }
+  //endregion
+
+  //region Cache keys
+  /**
+   * Create a normalized cache key.
+   * Searches for the same tags in a different order, or separated by more than one space, get the
+   * same key. Pages fetched by different users get different keys, as they can see different images.
+   *
+   * @param endpoint API endpoint URL.
+   * @param username Username used to authenticate the requests. Null for anonymous requests.
+   * @param tags     Search query. A space-separated list of tags.
+   * @param pid      Page number.
+   * @return Cache key.
+   */
+  public static String createKey(String endpoint, String username, String tags, int pid) {
+    final String[] sortedTags = (tags != null) ? tags.trim().split("\\s+") : new String[0];
+    Arrays.sort(sortedTags);
+
+    final StringBuilder sb = new StringBuilder(normalizeEndpoint(endpoint)).append('\n');
+    for (int i = 0; i < sortedTags.length; i++) {
+      // Skip duplicate tags.
+      if (i == 0 || !sortedTags[i].equals(sortedTags[i - 1])) {
+        sb.append(sortedTags[i]).append(' ');
+      }
+    }
+    sb.append('\n').append(pid);
+    return TextUtils.isEmpty(username) ? sb.toString() : username + "@" + sb;
+  }
+
+  /**
+   * Normalize an API endpoint URL, removing trailing slashes.
+   *
+   * @param endpoint API endpoint URL.
+   * @return Normalized endpoint URL.
+   */
+  private static String normalizeEndpoint(String endpoint) {
+    int end = endpoint.length();
+    while (end > 0 && endpoint.charAt(end - 1) == '/') {
+      end--;
+    }
+    return endpoint.substring(0, end);
+  }
+
+  /**
+   * Estimate the memory used by a SearchResult.
+   *
+   * @param searchResult SearchResult.
+   * @return Estimated size, in bytes.
+   */
+  private static int estimateSize(SearchResult searchResult) {
+    int size = SEARCH_RESULT_SIZE;
+    for (Image image : searchResult) {
+      size += IMAGE_SIZE + 4 * image.getTagIds().length
+          + 2 * (length(image.fileUrl) + length(image.previewUrl) + length(image.sampleUrl)
+          + length(image.webUrl) + length(image.source) + length(image.md5) + length(image.id)
+          + length(image.parentId) + length(image.pixivId));
+    }
+    return size;
+  }
+
+  /**
+   * Get the length of a String that may be null.
+   *
+   * @param s String.
+   * @return String length. 0 for null values.
+   */
+  private static int length(String s) {
+    return s != null ? s.length() : 0;
+  }
+  //endregion
+
+  //region Entry inner class
+  /** Cached page. */
+  private static class Entry {
+    /** Cached SearchResult. Never returned or modified directly. */
+    private final SearchResult searchResult;
+    /** Estimated size, in bytes. */
+    private final int size;
+    /** Time, in {@link SystemClock#elapsedRealtime()} milliseconds, after which the page expires. */
+    private final long expiresAt;
+
+    /**
+     * Create a new cache entry.
+     *
+     * @param searchResult Cached SearchResult.
+     * @param size         Estimated size, in bytes.
+     * @param expiresAt    Expiry time, in {@link SystemClock#elapsedRealtime()} milliseconds.
+     */
+    private Entry(SearchResult searchResult, int size, long expiresAt) {
+      this.searchResult = searchResult;
+      this.size = size;
+      this.expiresAt = expiresAt;
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,278 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.cache;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.TagDictionary;
+
+/**
+ * Compact binary encoding of {@link SearchResult}s, used by {@link DiskSearchResultCache}.
+ * <p/>
+ * Unlike {@link android.os.Parcelable}, the format is stable between platform versions and can be
+ * decoded straight from a memory-mapped {@link ByteBuffer}. Each distinct tag is written once per
+ * SearchResult and referenced by index from the images.
+ */
+final class SearchResultCodec {
+
+  //region Constants
+  /** Format version. Incremented when the format changes, older records are then ignored. */
+  static final int VERSION = 1;
+  /** Character set used to encode strings. */
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /** Written in place of null Integers and Dates. */
+  private static final int NULL_INT = Integer.MIN_VALUE;
+  /** Tag types, cached to avoid copying the array returned by {@link Tag.Type#values()}. */
+  private static final Tag.Type[] TAG_TYPES = Tag.Type.values();
+  /** SafeSearch ratings, cached to avoid copying the array. */
+  private static final Image.SafeSearchRating[] RATINGS = Image.SafeSearchRating.values();
+  //endregion
+
+  //region Constructors
+  /** Static methods only. */
+  private SearchResultCodec() {
+  }
+  //endregion
+
+  //region Encoding
+  /**
+   * Encode a SearchResult.
+   *
+   * @param searchResult SearchResult to encode.
+   * @param out          Stream to write to.
+   * @throws IOException Error writing to the stream.
+   */
+  static void encode(SearchResult searchResult, DataOutputStream out) throws IOException {
+    // Collect the distinct tags of all images. The images keep the dictionaries of their tag IDs
+    // from being released.
+    int[] tagIds = new int[0];
+    int tagCount = 0;
+    for (Image image : searchResult) {
+      final int[] imageTagIds = image.getTagIds();
+      if (tagCount + imageTagIds.length > tagIds.length) {
+        tagIds = Arrays.copyOf(tagIds, Math.max(tagIds.length * 2, tagCount + imageTagIds.length));
+      }
+      System.arraycopy(imageTagIds, 0, tagIds, tagCount, imageTagIds.length);
+      tagCount += imageTagIds.length;
+    }
+    Arrays.sort(tagIds, 0, tagCount);
+    int distinctTagCount = 0;
+    for (int i = 0; i < tagCount; i++) {
+      if (i == 0 || tagIds[i] != tagIds[distinctTagCount - 1]) {
+        tagIds[distinctTagCount++] = tagIds[i];
+      }
+    }
+    tagIds = Arrays.copyOf(tagIds, distinctTagCount);
+
+    // Query tags are looked up by value, and appended to the table if no image has them.
+    final List<Tag> tagTable = new ArrayList<>(tagIds.length);
+    for (int tagId : tagIds) {
+      tagTable.add(TagDictionary.getTag(tagId));
+    }
+    final Tag[] query = searchResult.getQuery();
+    final int[] queryIndexes = new int[query.length];
+    for (int i = 0; i < query.length; i++) {
+      int index = tagTable.indexOf(query[i]);
+      if (index < 0) {
+        index = tagTable.size();
+        tagTable.add(query[i]);
+      }
+      queryIndexes[i] = index;
+    }
+
+    // Tag table.
+    out.writeInt(tagTable.size());
+    for (Tag tag : tagTable) {
+      writeString(out, tag.getName());
+      out.writeByte(tag.getType().ordinal());
+    }
+
+    // SearchResult fields.
+    out.writeInt(queryIndexes.length);
+    for (int index : queryIndexes) {
+      out.writeInt(index);
+    }
+    out.writeInt(searchResult.getCurrentOffset());
+    out.writeBoolean(searchResult.hasNextPage());
+
+    // Images.
+    out.writeInt(searchResult.getImageCount());
+    for (Image image : searchResult) {
+      writeString(out, image.fileUrl);
+      out.writeInt(image.width);
+      out.writeInt(image.height);
+      writeString(out, image.previewUrl);
+      out.writeInt(image.previewWidth);
+      out.writeInt(image.previewHeight);
+      writeString(out, image.sampleUrl);
+      out.writeInt(image.sampleWidth);
+      out.writeInt(image.sampleHeight);
+      writeTagIndexes(out, tagIds, image.getTagIdsInOrder());
+      writeString(out, image.id);
+      writeString(out, image.parentId);
+      writeString(out, image.webUrl);
+      writeString(out, image.pixivId);
+      out.writeByte(image.safeSearchRating != null ? image.safeSearchRating.ordinal() : -1);
+      out.writeInt(image.score != null ? image.score : NULL_INT);
+      writeString(out, image.source);
+      writeString(out, image.md5);
+      out.writeInt(image.searchPage != null ? image.searchPage : NULL_INT);
+      out.writeInt(image.searchPagePosition != null ? image.searchPagePosition : NULL_INT);
+      out.writeLong(image.createdAt != null ? image.createdAt.getTime() : Long.MIN_VALUE);
+    }
+  }
+
+  /**
+   * Write tags as indexes into the tag table.
+   *
+   * @param out    Stream to write to.
+   * @param tagIds Sorted tag table.
+   * @param tags   Tag IDs to write, in the order they should be read back in.
+   * @throws IOException Error writing to the stream.
+   */
+  private static void writeTagIndexes(DataOutputStream out, int[] tagIds, int[] tags)
+      throws IOException {
+    out.writeInt(tags.length);
+    for (int tagId : tags) {
+      out.writeInt(Arrays.binarySearch(tagIds, tagId));
+    }
+  }
+
+  /**
+   * Write a String that may be null.
+   *
+   * @param out Stream to write to.
+   * @param s   String to write.
+   * @throws IOException Error writing to the stream.
+   */
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      final byte[] bytes = s.getBytes(UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+  //endregion
+
+  //region Decoding
+  /**
+   * Decode a SearchResult.
+   *
+   * @param in Buffer to read from, positioned at the start of the encoded SearchResult.
+   * @return Decoded SearchResult.
+   * @throws IOException Malformed data.
+   */
+  static SearchResult decode(ByteBuffer in) throws IOException {
+    try {
+      // Tag table.
+      final Tag[] tags = new Tag[in.getInt()];
+      for (int i = 0; i < tags.length; i++) {
+        final String name = readString(in);
+        tags[i] = Tag.valueOf(name, TAG_TYPES[in.get()]);
+      }
+
+      // SearchResult fields.
+      final Tag[] query = readTags(in, tags);
+      final int offset = in.getInt();
+      final boolean hasNextPage = in.get() != 0;
+
+      // Images.
+      final Image[] images = new Image[in.getInt()];
+      for (int i = 0; i < images.length; i++) {
+        final Image image = new Image();
+        image.fileUrl = readString(in);
+        image.width = in.getInt();
+        image.height = in.getInt();
+        image.previewUrl = readString(in);
+        image.previewWidth = in.getInt();
+        image.previewHeight = in.getInt();
+        image.sampleUrl = readString(in);
+        image.sampleWidth = in.getInt();
+        image.sampleHeight = in.getInt();
+        image.setTags(readTags(in, tags));
+        image.id = readString(in);
+        image.parentId = readString(in);
+        image.webUrl = readString(in);
+        image.pixivId = readString(in);
+        final byte rating = in.get();
+        image.safeSearchRating = rating >= 0 ? RATINGS[rating] : null;
+        image.score = readInteger(in);
+        image.source = readString(in);
+        image.md5 = readString(in);
+        image.searchPage = readInteger(in);
+        image.searchPagePosition = readInteger(in);
+        final long createdAt = in.getLong();
+        image.createdAt = createdAt != Long.MIN_VALUE ? new Date(createdAt) : null;
+        images[i] = image;
+      }
+
+      final SearchResult searchResult = new SearchResult(images, query, offset);
+      if (!hasNextPage) {
+        searchResult.onLastPage();
+      }
+      return searchResult;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+      throw new IOException("Malformed cache record.", e);
+    }
+  }
+
+  /**
+   * Read tags written as indexes into the tag table.
+   *
+   * @param in   Buffer to read from.
+   * @param tags Tag table.
+   * @return Tags.
+   */
+  private static Tag[] readTags(ByteBuffer in, Tag[] tags) {
+    final Tag[] result = new Tag[in.getInt()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = tags[in.getInt()];
+    }
+    return result;
+  }
+
+  /**
+   * Read an Integer that may be null.
+   *
+   * @param in Buffer to read from.
+   * @return Integer or null.
+   */
+  private static Integer readInteger(ByteBuffer in) {
+    final int value = in.getInt();
+    return value != NULL_INT ? value : null;
+  }
+
+  /**
+   * Read a String that may be null.
+   *
+   * @param in Buffer to read from.
+   * @return String or null.
+   */
+  static String readString(ByteBuffer in) {
+    final int length = in.getInt();
+    if (length == -1) {
+      return null;
+    }
+    final byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+  //endregion
+}
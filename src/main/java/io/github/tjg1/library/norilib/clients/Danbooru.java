@@ -8,31 +8,22 @@ package io.github.tjg1.library.norilib.clients;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.async.DataSink;
-import com.koushikdutta.async.callback.CompletedCallback;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.koushikdutta.async.future.Future;
-import com.koushikdutta.async.future.FutureCallback;
-import com.koushikdutta.async.future.TransformFuture;
-import com.koushikdutta.async.parser.AsyncParser;
-import com.koushikdutta.async.parser.StringParser;
-import com.koushikdutta.ion.Ion;
-import com.koushikdutta.ion.Response;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
-import java.lang.reflect.Type;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -43,6 +34,18 @@ import java.util.concurrent.ExecutionException;
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.cache.RequestCoalescer;
+import io.github.tjg1.library.norilib.cache.RevalidationCache;
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+import io.github.tjg1.library.norilib.transport.RateLimiter;
+import io.github.tjg1.library.norilib.transport.RetryPolicy;
+import io.github.tjg1.library.norilib.transport.Transport;
+import io.github.tjg1.library.norilib.transport.Transports;
+import io.github.tjg1.library.norilib.util.DateParser;
+import io.github.tjg1.library.norilib.util.PageCursors;
+import io.github.tjg1.library.norilib.util.StreamingParser;
+import io.github.tjg1.library.norilib.util.XmlPullParsers;
 
 /**
  * Client for the Danbooru 2.x API.
@@ -55,6 +58,8 @@ public class Danbooru implements SearchClient {
    * Best to use a large value to minimize number of unique HTTP requests.
    */
   private static final int DEFAULT_LIMIT = 100;
+  /** Maximum number of images per search results page supported by the API. */
+  private static final int MAX_LIMIT = 200;
   /** Thumbnail size set if not returned by the API. */
   private static final int THUMBNAIL_SIZE = 150;
   /** Sample size set if not returned by the API. */
@@ -72,6 +77,16 @@ public class Danbooru implements SearchClient {
   private final String username;
   /** API key used for authentication. (optional) */
   private final String apiKey;
+  /** Response format requested from the API. */
+  private final Settings.ResponseFormat responseFormat;
+  /** Parser for dates returned by the API. Shared with other clients using the same endpoint. */
+  private final DateParser dateParser;
+  /** Where recently fetched pages end. Used to request the next page by image ID. */
+  private final PageCursors pageCursors = new PageCursors();
+  /** Picks the number of images requested per page. */
+  private final PageSizePolicy pageSizePolicy = new PageSizePolicy(DEFAULT_LIMIT, MAX_LIMIT);
+  /** HTTP transport used to send requests. Picked on first use, unless set. */
+  private Transport transport;
   //endregion
 
   //region Constructors
@@ -87,6 +102,8 @@ public class Danbooru implements SearchClient {
     this.apiEndpoint = endpoint;
     this.username = null;
     this.apiKey = null;
+    this.responseFormat = Settings.ResponseFormat.XML;
+    this.dateParser = DateParser.forEndpoint(endpoint);
   }
 
   /**
@@ -98,11 +115,27 @@ public class Danbooru implements SearchClient {
    * @param apiKey   API key used for authentication.
    */
   public Danbooru(Context context, String name, String endpoint, String username, final String apiKey) {
+    this(context, name, endpoint, username, apiKey, Settings.ResponseFormat.XML);
+  }
+
+  /**
+   * Create a new Danbooru 2.x client with authentication, using the given response format.
+   *
+   * @param name           Human-readable service name.
+   * @param endpoint       URL to the HTTP API Endpoint - the server implementing the API.
+   * @param username       Username used for authentication. (optional)
+   * @param apiKey         API key used for authentication. (optional)
+   * @param responseFormat Response format requested from the API.
+   */
+  public Danbooru(Context context, String name, String endpoint, String username, final String apiKey,
+                  Settings.ResponseFormat responseFormat) {
     this.context = context;
     this.name = name;
     this.apiEndpoint = endpoint;
     this.username = username;
     this.apiKey = apiKey;
+    this.responseFormat = responseFormat != null ? responseFormat : Settings.ResponseFormat.XML;
+    this.dateParser = DateParser.forEndpoint(endpoint);
   }
   //endregion
 
@@ -120,21 +153,18 @@ public class Danbooru implements SearchClient {
     final String endpointUrl = Uri.withAppendedPath(uri, "/posts.xml").toString();
 
     try {
-      final Response<DataEmitter> response = Ion.with(context)
-          .load(endpointUrl)
-          .setTimeout(timeout)
-          .userAgent(SearchClient.USER_AGENT)
-          .followRedirect(false)
-          .noCache()
-          .asDataEmitter()
-          .withResponse()
+      final HttpResponse response = Transports.getDefault(context)
+          .execute(new HttpRequest(endpointUrl)
+              .setTimeout(timeout)
+              .setUserAgent(SearchClient.USER_AGENT)
+              .setFollowRedirects(false)
+              .setUseCaches(false))
           .get();
 
       // Close the connection.
-      final DataEmitter dataEmitter = response.getResult();
-      if (dataEmitter != null) dataEmitter.close();
+      response.close();
 
-      if (response.getHeaders().code() == 200) {
+      if (response.getCode() == 200) {
         return uri.toString();
       }
     } catch (InterruptedException | ExecutionException ignored) {
@@ -152,17 +182,7 @@ public class Danbooru implements SearchClient {
 
   @Override
   public SearchResult search(String tags, int pid) throws IOException {
-    try {
-      return Ion.with(this.context)
-          .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-          .userAgent(SearchClient.USER_AGENT)
-          .as(new SearchResultParser(tags, pid))
-          .get();
-    } catch (InterruptedException | ExecutionException e) {
-      // Normalise exception to IOException, so method signatures are not tied to a single HTTP
-      // library.
-      throw new IOException(e);
-    }
+    return RevalidationCache.get(createSearchRequest(tags, pid));
   }
 
   @Override
@@ -173,18 +193,32 @@ public class Danbooru implements SearchClient {
 
   @Override
   public void search(final String tags, final int pid, final SearchCallback callback) {
-    Ion.with(this.context)
-        .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-        .userAgent(SearchClient.USER_AGENT)
-        .as(new SearchResultParser(tags, pid))
-        .setCallback(new FutureCallback<SearchResult>() {
+    RevalidationCache.deliver(createSearchRequest(tags, pid), callback);
+  }
+
+  /**
+   * Send a search request, revalidating the page if it has been fetched before.
+   * Identical requests already in flight are reused instead.
+   *
+   * @param tags Search query. A space-separated list of tags.
+   * @param pid  Page number. (zero-indexed)
+   * @return Future completed with the parsed SearchResult.
+   */
+  protected Future<SearchResult> createSearchRequest(final String tags, final int pid) {
+    final long cursor = pageCursors.get(tags, pid);
+    final int limit = pageSizePolicy.getPageSize(tags, pid, cursor != SearchResult.NO_CURSOR);
+
+    return RequestCoalescer.getDefault().execute(
+        RequestCoalescer.createKey(apiEndpoint, username, tags, pid, limit, cursor),
+        new RequestCoalescer.Request() {
           @Override
-          public void onCompleted(Exception e, SearchResult result) {
-            if (e != null) {
-              callback.onFailure(new IOException(e));
-            } else {
-              callback.onSuccess(result);
-            }
+          public Future<SearchResult> execute() {
+            final String url = createSearchURL(tags, pid, limit, cursor);
+            // Remember where the page ends, so the next page can be requested by image ID. Done
+            // here rather than in the parser, as unmodified pages aren't parsed again.
+            return pageCursors.put(tags, pid, RevalidationCache.getDefault().load(
+                getSearchTransport(), new HttpRequest(url).setUserAgent(SearchClient.USER_AGENT),
+                url, new SearchResultParser(tags, pid)));
           }
         });
   }
@@ -197,13 +231,59 @@ public class Danbooru implements SearchClient {
 
   @Override
   public Settings getSettings() {
-    return new Settings(Settings.APIType.DANBOARD, name, apiEndpoint, username, apiKey);
+    return new Settings(Settings.APIType.DANBOARD, name, apiEndpoint, username, apiKey, responseFormat);
   }
 
   @Override
   public AuthenticationType requiresAuthentication() {
     return AuthenticationType.OPTIONAL;
   }
+
+  /**
+   * Get the policy picking the number of images requested per page.
+   * Can be used to change the page size, or make it adapt to the connection speed.
+   *
+   * @return Page size policy of this client.
+   */
+  public PageSizePolicy getPageSizePolicy() {
+    return pageSizePolicy;
+  }
+
+  /**
+   * Set the HTTP transport used to send requests.
+   *
+   * @param transport Transport. Null to use {@link Transports#getDefault(Context)}.
+   * @return This client. Allows chaining setters.
+   */
+  public synchronized Danbooru setTransport(Transport transport) {
+    this.transport = transport;
+    return this;
+  }
+
+  /**
+   * Get the HTTP transport used to send requests.
+   *
+   * @return Transport.
+   */
+  public synchronized Transport getTransport() {
+    if (transport == null) {
+      transport = Transports.getDefault(context);
+    }
+    return transport;
+  }
+
+  /**
+   * Get the transport used to send search requests. Requests are hedged and retried as decided by
+   * {@link RetryPolicy#getDefault()}. Every request sent, including hedges and retries, is rate
+   * limited by {@link RateLimiter#getDefault()}.
+   *
+   * @return Transport for search requests.
+   */
+  protected Transport getSearchTransport() {
+    final Settings settings = getSettings();
+    return RetryPolicy.getDefault().wrap(
+        RateLimiter.getDefault().wrap(getTransport(), settings), settings);
+  }
   //endregion
 
   //region Creating search URLs
@@ -218,13 +298,45 @@ public class Danbooru implements SearchClient {
    */
   protected String createSearchURL(String tags, int pid, int limit) {
     // Page numbers are 1-indexed for this API.
-    final int page = pid + 1;
+    return createSearchURL(tags, Integer.toString(pid + 1), limit);
+  }
+
+  /**
+   * Generate request URL to the search API endpoint, requesting images below the given image ID.
+   * Unlike page numbers, this doesn't get slower for deep pages and isn't capped by the API.
+   *
+   * @param tags   Space-separated tags.
+   * @param pid    Page number (0-indexed). Used if there is no cursor.
+   * @param limit  Images to fetch per page.
+   * @param cursor Lowest image ID on the previous page. {@link SearchResult#NO_CURSOR} to use the
+   *               page number instead.
+   * @return URL to search results API.
+   * @see SearchResult#getNextPageCursor()
+   */
+  protected String createSearchURL(String tags, int pid, int limit, long cursor) {
+    if (cursor == SearchResult.NO_CURSOR) {
+      return createSearchURL(tags, pid, limit);
+    }
+    // "b<id>" pages contain the images with IDs below the given ID.
+    return createSearchURL(tags, "b" + cursor, limit);
+  }
+
+  /**
+   * Generate request URL to the search API endpoint.
+   *
+   * @param tags  Space-separated tags.
+   * @param page  Value of the page parameter.
+   * @param limit Images to fetch per page.
+   * @return URL to search results API.
+   */
+  private String createSearchURL(String tags, String page, int limit) {
+    final String path = (responseFormat == Settings.ResponseFormat.JSON) ? "/posts.json" : "/posts.xml";
 
     if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.apiKey)) {
-      return String.format(Locale.US, apiEndpoint + "/posts.xml?tags=%s&page=%d&limit=%d&login=%s&api_key=%s",
+      return String.format(Locale.US, apiEndpoint + path + "?tags=%s&page=%s&limit=%d&login=%s&api_key=%s",
           Uri.encode(tags), page, limit, Uri.encode(this.username), Uri.encode(this.apiKey));
     }
-    return String.format(Locale.US, apiEndpoint + "/posts.xml?tags=%s&page=%d&limit=%d", Uri.encode(tags), page, limit);
+    return String.format(Locale.US, apiEndpoint + path + "?tags=%s&page=%s&limit=%d", Uri.encode(tags), page, limit);
   }
   //endregion
 
@@ -237,8 +349,20 @@ public class Danbooru implements SearchClient {
    * @param offset Current paging offset.
    * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given XML.
    */
-  @SuppressWarnings("FeatureEnvy")
   protected SearchResult parseXMLResponse(String body, String tags, int offset) throws IOException {
+    return parseXMLResponse(new StringReader(body), tags, offset);
+  }
+
+  /**
+   * Parse an XML response returned by the API.
+   *
+   * @param body   Reader streaming the HTTP response body.
+   * @param tags   Tags used to retrieve the response.
+   * @param offset Current paging offset.
+   * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given XML.
+   */
+  @SuppressWarnings("FeatureEnvy")
+  protected SearchResult parseXMLResponse(Reader body, String tags, int offset) throws IOException {
     // Create variables to hold the values as XML is being parsed.
     final List<Image> imageList = new ArrayList<>(DEFAULT_LIMIT);
     Image image = new Image();
@@ -246,14 +370,8 @@ public class Danbooru implements SearchClient {
     int position = 0;
 
     try {
-      // Create an XML parser factory and disable namespace awareness for security reasons.
-      // See: (http://lists.w3.org/Archives/Public/public-xmlsec/2009Dec/att-0000/sws5-jensen.pdf).
-      final XmlPullParserFactory xmlParserFactory = XmlPullParserFactory.newInstance();
-      xmlParserFactory.setNamespaceAware(false);
-
-      // Create a new XML parser from factory and feed HTTP response data into it.
-      final XmlPullParser xpp = xmlParserFactory.newPullParser();
-      xpp.setInput(new StringReader(body));
+      // Get a re-usable XML parser and feed HTTP response data into it.
+      final XmlPullParser xpp = XmlPullParsers.newPullParser(body);
 
       // Iterate over each XML element and handle pull parser "events".
       while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
@@ -307,18 +425,8 @@ public class Danbooru implements SearchClient {
           // createdAt
         } else if (xpp.getEventType() == XmlPullParser.END_TAG) {
           if ("post".equals(xpp.getName())) {
-            // Convert tag list to array.
-            image.tags = imageTags.toArray(new Tag[imageTags.size()]);
-            // Append values not returned by API to image.
-            image.webUrl = webUrlFromId(image.id);
-            // FIXME: API does not return thumbnail sizes.
-            image.previewWidth = THUMBNAIL_SIZE;
-            image.previewHeight = THUMBNAIL_SIZE;
-            // FIXME: API does not return sample sizes.
-            image.sampleWidth = SAMPLE_SIZE;
-            image.sampleHeight = SAMPLE_SIZE;
             // Discard images requiring a gold account. They do not return a valid file_url.
-            if (image.fileUrl != null) {
+            if (completeImage(image, imageTags)) {
               // Add to result.
               imageList.add(image);
               position++;
@@ -338,24 +446,127 @@ public class Danbooru implements SearchClient {
   }
 
   /**
-   * Create a {@link java.util.Date} object from String date representation used by this API.
+   * Parse a JSON response returned by the API.
+   * The response is decoded token by token, straight into {@link Image} objects, without building
+   * an intermediate tree.
    *
-   * @param date Date string.
-   * @return Date converted from given String.
+   * @param body   Reader streaming the HTTP response body.
+   * @param tags   Tags used to retrieve the response.
+   * @param offset Current paging offset.
+   * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given JSON.
    */
-  protected static Date dateFromString(String date) throws ParseException {
-    final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
-
-    // Normalise the ISO8601 time zone into a format parse-able by SimpleDateFormat.
-    if (!TextUtils.isEmpty(date)) {
-      String newDate = date.replace("Z", "+0000");
-      if (newDate.length() == 25) {
-        newDate = newDate.substring(0, 22) + newDate.substring(23); // Remove timezone colon.
+  @SuppressWarnings("FeatureEnvy")
+  protected SearchResult parseJSONResponse(Reader body, String tags, int offset) throws IOException {
+    final List<Image> imageList = new ArrayList<>(DEFAULT_LIMIT);
+    final JsonReader reader = new JsonReader(body);
+    int position = 0;
+
+    try {
+      // The response is an array of post objects.
+      reader.beginArray();
+      while (reader.hasNext()) {
+        final Image image = new Image();
+        final List<Tag> imageTags = new ArrayList<>();
+        image.searchPage = offset;
+        image.searchPagePosition = position;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+          final String name = reader.nextName();
+
+          // Null values are left unset, like nil XML tags.
+          if (reader.peek() == JsonToken.NULL) {
+            reader.skipValue();
+          }
+          // Extract image metadata from JSON properties.
+          else if ("large_file_url".equals(name)) {
+            image.fileUrl = apiEndpoint + reader.nextString();
+          } else if ("image_width".equals(name)) {
+            image.width = reader.nextInt();
+          } else if ("image_height".equals(name)) {
+            image.height = reader.nextInt();
+          } else if ("preview_file_url".equals(name)) {
+            image.previewUrl = apiEndpoint + reader.nextString();
+          } else if ("file_url".equals(name)) {
+            image.sampleUrl = apiEndpoint + reader.nextString();
+          } else if ("tag_string_general".equals(name)) {
+            imageTags.addAll(Arrays.asList(Tag.arrayFromString(reader.nextString(), Tag.Type.GENERAL)));
+          } else if ("tag_string_artist".equals(name)) {
+            imageTags.addAll(Arrays.asList(Tag.arrayFromString(reader.nextString(), Tag.Type.ARTIST)));
+          } else if ("tag_string_character".equals(name)) {
+            imageTags.addAll(Arrays.asList(Tag.arrayFromString(reader.nextString(), Tag.Type.CHARACTER)));
+          } else if ("tag_string_copyright".equals(name)) {
+            imageTags.addAll(Arrays.asList(Tag.arrayFromString(reader.nextString(), Tag.Type.COPYRIGHT)));
+          } else if ("id".equals(name)) {
+            image.id = reader.nextString();
+          } else if ("parent_id".equals(name)) {
+            image.parentId = reader.nextString();
+          } else if ("pixiv_id".equals(name)) {
+            image.pixivId = reader.nextString();
+          } else if ("rating".equals(name)) {
+            image.safeSearchRating = Image.SafeSearchRating.fromString(reader.nextString());
+          } else if ("score".equals(name)) {
+            image.score = reader.nextInt();
+          } else if ("source".equals(name)) {
+            image.source = reader.nextString();
+          } else if ("md5".equals(name)) {
+            image.md5 = reader.nextString();
+          } else if ("created_at".equals(name)) {
+            image.createdAt = dateFromString(reader.nextString());
+          } else {
+            // Skip values not used by norilib, including nested objects and arrays.
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+
+        // Discard images requiring a gold account. They do not return a valid file_url.
+        if (completeImage(image, imageTags)) {
+          imageList.add(image);
+          position++;
+        }
       }
-      return DATE_FORMAT.parse(newDate);
+      reader.endArray();
+    } catch (IllegalStateException | NumberFormatException | ParseException e) {
+      // Convert into IOException.
+      // Needed for consistent method signatures in the SearchClient interface for different APIs.
+      throw new IOException(e);
     }
 
-    return null;
+    return new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), offset);
+  }
+
+  /**
+   * Set values not returned by the API on a parsed {@link Image}.
+   * Shared by the XML and JSON parsers, so both return the same {@link SearchResult}.
+   *
+   * @param image     Parsed image.
+   * @param imageTags Tags parsed for the image.
+   * @return True if the image should be included in the search result.
+   */
+  private boolean completeImage(Image image, List<Tag> imageTags) {
+    // Convert tag list to array.
+    image.setTags(imageTags.toArray(new Tag[imageTags.size()]));
+    // Append values not returned by API to image.
+    image.webUrl = webUrlFromId(image.id);
+    // FIXME: API does not return thumbnail sizes.
+    image.previewWidth = THUMBNAIL_SIZE;
+    image.previewHeight = THUMBNAIL_SIZE;
+    // FIXME: API does not return sample sizes.
+    image.sampleWidth = SAMPLE_SIZE;
+    image.sampleHeight = SAMPLE_SIZE;
+    // Images requiring a gold account do not return a valid file_url.
+    return image.fileUrl != null;
+  }
+
+  /**
+   * Create a {@link java.util.Date} object from String date representation used by this API.
+   *
+   * @param date Date string.
+   * @return Date converted from given String.
+   */
+  protected Date dateFromString(String date) throws ParseException {
+    return dateParser.parse(date);
   }
 
   /**
@@ -369,13 +580,18 @@ public class Danbooru implements SearchClient {
   }
   //endregion
 
-  //region Ion async SearchResult parser
-  /** Asynchronous search parser to use with ion. */
-  protected class SearchResultParser implements AsyncParser<SearchResult> {
+  //region Async SearchResult parser
+  /** Asynchronous search parser. Parses the response as it is being downloaded. */
+  protected class SearchResultParser extends StreamingParser<SearchResult> {
     /** Tags searched for. */
     private final String tags;
     /** Current page offset. */
     private final int pageOffset;
+    /**
+     * Time the parser was created, in milliseconds since boot. Used as the time the request was
+     * sent if the transport didn't record it.
+     */
+    private final long requestTime = SystemClock.elapsedRealtime();
 
     public SearchResultParser(String tags, int pageOffset) {
       this.tags = tags;
@@ -383,24 +599,12 @@ public class Danbooru implements SearchClient {
     }
 
     @Override
-    public Future<SearchResult> parse(DataEmitter emitter) {
-      return new StringParser().parse(emitter)
-          .then(new TransformFuture<SearchResult, String>() {
-            @Override
-            protected void transform(String result) throws Exception {
-              setComplete(parseXMLResponse(result, tags, pageOffset));
-            }
-          });
-    }
-
-    @Override
-    public void write(DataSink sink, SearchResult value, CompletedCallback completed) {
-      // Not implemented.
-    }
-
-    @Override
-    public Type getType() {
-      return null;
+    protected SearchResult parse(Reader reader) throws IOException {
+      final SearchResult searchResult = (responseFormat == Settings.ResponseFormat.JSON) ?
+          parseJSONResponse(reader, tags, pageOffset) : parseXMLResponse(reader, tags, pageOffset);
+      pageSizePolicy.onPageFetched(searchResult.getImageCount(),
+          SystemClock.elapsedRealtime() - getResponse().getSentTime(requestTime));
+      return searchResult;
     }
   }
   //endregion
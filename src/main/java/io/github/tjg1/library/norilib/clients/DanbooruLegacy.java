@@ -8,31 +8,20 @@ package io.github.tjg1.library.norilib.clients;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.async.DataSink;
-import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.future.Future;
-import com.koushikdutta.async.future.FutureCallback;
-import com.koushikdutta.async.future.TransformFuture;
-import com.koushikdutta.async.parser.AsyncParser;
-import com.koushikdutta.async.parser.StringParser;
-import com.koushikdutta.ion.Ion;
-import com.koushikdutta.ion.Response;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
-import java.lang.reflect.Type;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -42,6 +31,18 @@ import java.util.concurrent.ExecutionException;
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.cache.RequestCoalescer;
+import io.github.tjg1.library.norilib.cache.RevalidationCache;
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+import io.github.tjg1.library.norilib.transport.RateLimiter;
+import io.github.tjg1.library.norilib.transport.RetryPolicy;
+import io.github.tjg1.library.norilib.transport.Transport;
+import io.github.tjg1.library.norilib.transport.Transports;
+import io.github.tjg1.library.norilib.util.DateParser;
+import io.github.tjg1.library.norilib.util.PageCursors;
+import io.github.tjg1.library.norilib.util.StreamingParser;
+import io.github.tjg1.library.norilib.util.XmlPullParsers;
 
 /**
  * Client for the Danbooru 1.x API.
@@ -53,6 +54,8 @@ public class DanbooruLegacy implements SearchClient {
    * Best to use a large value to minimize number of unique HTTP requests.
    */
   private static final int DEFAULT_LIMIT = 100;
+  /** Maximum number of images per search results page supported by the API. */
+  private static final int MAX_LIMIT = 100;
   //endregion
 
   //region Service configuration instance fields
@@ -66,6 +69,14 @@ public class DanbooruLegacy implements SearchClient {
   protected final String username;
   /** Password used for authentication. (optional) */
   protected final String password;
+  /** Parser for dates returned by the API. Shared with other clients using the same endpoint. */
+  protected final DateParser dateParser;
+  /** Where recently fetched pages end. Used to request the next page by image ID. */
+  private final PageCursors pageCursors = new PageCursors();
+  /** Picks the number of images requested per page. Created on first use. */
+  private PageSizePolicy pageSizePolicy;
+  /** HTTP transport used to send requests. Picked on first use, unless set. */
+  private Transport transport;
   //endregion
 
   //region Constructors
@@ -80,6 +91,7 @@ public class DanbooruLegacy implements SearchClient {
     this.apiEndpoint = endpoint;
     this.username = null;
     this.password = null;
+    this.dateParser = DateParser.forEndpoint(endpoint);
   }
 
   /**
@@ -95,6 +107,7 @@ public class DanbooruLegacy implements SearchClient {
     this.apiEndpoint = endpoint;
     this.username = username;
     this.password = password;
+    this.dateParser = DateParser.forEndpoint(endpoint);
   }
   //endregion
 
@@ -112,21 +125,18 @@ public class DanbooruLegacy implements SearchClient {
     final String endpointUrl = Uri.withAppendedPath(uri, "/post/index.xml").toString();
 
     try {
-      final Response<DataEmitter> response = Ion.with(context)
-          .load(endpointUrl)
-          .setTimeout(timeout)
-          .userAgent(SearchClient.USER_AGENT)
-          .followRedirect(false)
-          .noCache()
-          .asDataEmitter()
-          .withResponse()
+      final HttpResponse response = Transports.getDefault(context)
+          .execute(new HttpRequest(endpointUrl)
+              .setTimeout(timeout)
+              .setUserAgent(SearchClient.USER_AGENT)
+              .setFollowRedirects(false)
+              .setUseCaches(false))
           .get();
 
       // Close the connection.
-      final DataEmitter dataEmitter = response.getResult();
-      if (dataEmitter != null) dataEmitter.close();
+      response.close();
 
-      if (response.getHeaders().code() == 200) {
+      if (response.getCode() == 200) {
         return uri.toString();
       }
     } catch (InterruptedException | ExecutionException ignored) {
@@ -144,26 +154,7 @@ public class DanbooruLegacy implements SearchClient {
 
   @Override
   public SearchResult search(String tags, int pid) throws IOException {
-    try {
-      if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.password)) {
-        return Ion.with(this.context)
-            .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-            .userAgent(SearchClient.USER_AGENT)
-            .basicAuthentication(this.username, this.password)
-            .as(new SearchResultParser(tags, pid))
-            .get();
-      } else {
-        return Ion.with(this.context)
-            .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-            .userAgent(SearchClient.USER_AGENT)
-            .as(new SearchResultParser(tags, pid))
-            .get();
-      }
-    } catch (InterruptedException | ExecutionException e) {
-      // Normalise exception to IOException, so method signatures are not tied to a single HTTP
-      // library.
-      throw new IOException(e);
-    }
+    return RevalidationCache.get(createSearchRequest(tags, pid));
   }
 
   @Override
@@ -174,34 +165,45 @@ public class DanbooruLegacy implements SearchClient {
 
   @Override
   public void search(final String tags, final int pid, final SearchCallback callback) {
-    // Define the ion callback. Not using FutureCallbacks as parameters, so the method signatures
-    // are not tied to a single download library.
-    FutureCallback<SearchResult> futureCallback = new FutureCallback<SearchResult>() {
-      @Override
-      public void onCompleted(Exception e, SearchResult result) {
-        if (e != null) {
-          callback.onFailure(new IOException(e));
-        } else {
-          callback.onSuccess(result);
-        }
-      }
-    };
-
-    // Handle authentication.
-    if (!TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.password)) {
-      Ion.with(this.context)
-          .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-          .userAgent(SearchClient.USER_AGENT)
-          .basicAuthentication(this.username, this.password)
-          .as(new SearchResultParser(tags, pid))
-          .setCallback(futureCallback);
-    } else {
-      Ion.with(this.context)
-          .load(createSearchURL(tags, pid, DEFAULT_LIMIT))
-          .userAgent(SearchClient.USER_AGENT)
-          .as(new SearchResultParser(tags, pid))
-          .setCallback(futureCallback);
-    }
+    RevalidationCache.deliver(createSearchRequest(tags, pid), callback);
+  }
+
+  /**
+   * Send a search request, revalidating the page if it has been fetched before.
+   * Identical requests already in flight are reused instead.
+   *
+   * @param tags Search query. A space-separated list of tags.
+   * @param pid  Page number. (zero-indexed)
+   * @return Future completed with the parsed SearchResult.
+   */
+  protected Future<SearchResult> createSearchRequest(final String tags, final int pid) {
+    final String user = !TextUtils.isEmpty(this.username) && !TextUtils.isEmpty(this.password) ?
+        this.username : null;
+    final long cursor = pageCursors.get(tags, pid);
+    final int limit = getPageSizePolicy().getPageSize(tags, pid,
+        cursor != SearchResult.NO_CURSOR && supportsCursorPaging());
+
+    return RequestCoalescer.getDefault().execute(
+        RequestCoalescer.createKey(apiEndpoint, user, tags, pid, limit, cursor),
+        new RequestCoalescer.Request() {
+          @Override
+          public Future<SearchResult> execute() {
+            final String url = createSearchURL(tags, pid, limit, cursor);
+            final HttpRequest request = new HttpRequest(url).setUserAgent(SearchClient.USER_AGENT);
+
+            // Handle authentication. Responses can differ between users, so the username is part
+            // of the revalidation cache key.
+            String key = url;
+            if (user != null) {
+              request.setBasicAuthentication(username, password);
+              key = user + "@" + url;
+            }
+            // Remember where the page ends, so the next page can be requested by image ID. Done
+            // here rather than in the parser, as unmodified pages aren't parsed again.
+            return pageCursors.put(tags, pid, RevalidationCache.getDefault()
+                .load(getSearchTransport(), request, key, new SearchResultParser(tags, pid)));
+          }
+        });
   }
 
   @Override
@@ -219,6 +221,65 @@ public class DanbooruLegacy implements SearchClient {
   public AuthenticationType requiresAuthentication() {
     return AuthenticationType.OPTIONAL;
   }
+
+  /**
+   * Get the policy picking the number of images requested per page.
+   * Can be used to change the page size, or make it adapt to the connection speed.
+   *
+   * @return Page size policy of this client.
+   */
+  public synchronized PageSizePolicy getPageSizePolicy() {
+    if (pageSizePolicy == null) {
+      pageSizePolicy = new PageSizePolicy(DEFAULT_LIMIT, getMaxPageSize());
+    }
+    return pageSizePolicy;
+  }
+
+  /**
+   * Get the maximum number of images per page supported by the API.
+   *
+   * @return Maximum page size.
+   */
+  protected int getMaxPageSize() {
+    // Hard limit documented by Danbooru 1.x and Moebooru.
+    return MAX_LIMIT;
+  }
+
+  /**
+   * Set the HTTP transport used to send requests.
+   *
+   * @param transport Transport. Null to use {@link Transports#getDefault(Context)}.
+   * @return This client. Allows chaining setters.
+   */
+  public synchronized DanbooruLegacy setTransport(Transport transport) {
+    this.transport = transport;
+    return this;
+  }
+
+  /**
+   * Get the HTTP transport used to send requests.
+   *
+   * @return Transport.
+   */
+  public synchronized Transport getTransport() {
+    if (transport == null) {
+      transport = Transports.getDefault(context);
+    }
+    return transport;
+  }
+
+  /**
+   * Get the transport used to send search requests. Requests are hedged and retried as decided by
+   * {@link RetryPolicy#getDefault()}. Every request sent, including hedges and retries, is rate
+   * limited by {@link RateLimiter#getDefault()}.
+   *
+   * @return Transport for search requests.
+   */
+  protected Transport getSearchTransport() {
+    final Settings settings = getSettings();
+    return RetryPolicy.getDefault().wrap(
+        RateLimiter.getDefault().wrap(getTransport(), settings), settings);
+  }
   //endregion
 
   //region Creating Search URLs
@@ -236,6 +297,37 @@ public class DanbooruLegacy implements SearchClient {
 
     return String.format(Locale.US, apiEndpoint + "/post/index.xml?tags=%s&limit=%d&page=%d", Uri.encode(tags), limit, page);
   }
+
+  /**
+   * Generate request URL to the search API endpoint, requesting images below the given image ID.
+   * Unlike page numbers, this doesn't get slower for deep pages.
+   *
+   * @param tags   Space-separated tags.
+   * @param pid    Page number (0-indexed). Used if there is no cursor.
+   * @param limit  Images to fetch per page.
+   * @param cursor Lowest image ID on the previous page. {@link SearchResult#NO_CURSOR} to use the
+   *               page number instead.
+   * @return URL to search results API.
+   * @see SearchResult#getNextPageCursor()
+   */
+  protected String createSearchURL(String tags, int pid, int limit, long cursor) {
+    if (cursor == SearchResult.NO_CURSOR || !supportsCursorPaging()) {
+      return createSearchURL(tags, pid, limit);
+    }
+    // Request the first page of images with IDs below the cursor, using the id metatag.
+    final String cursorTag = "id:<" + cursor;
+    return createSearchURL(TextUtils.isEmpty(tags) ? cursorTag : tags + " " + cursorTag, 0, limit);
+  }
+
+  /**
+   * Check if the API supports the {@code id:<} metatag used to request pages by image ID.
+   *
+   * @return True if pages can be requested by image ID.
+   */
+  protected boolean supportsCursorPaging() {
+    // Supported by Danbooru 1.x, Moebooru, Gelbooru and E621.
+    return true;
+  }
   //endregion
 
   //region Parsing responses
@@ -248,19 +340,25 @@ public class DanbooruLegacy implements SearchClient {
    * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given XML.
    */
   protected SearchResult parseXMLResponse(String body, String tags, int offset) throws IOException {
+    return parseXMLResponse(new StringReader(body), tags, offset);
+  }
+
+  /**
+   * Parse an XML response returned by the API.
+   *
+   * @param body   Reader streaming the HTTP response body.
+   * @param tags   Tags used to retrieve the response.
+   * @param offset Current paging offset.
+   * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given XML.
+   */
+  protected SearchResult parseXMLResponse(Reader body, String tags, int offset) throws IOException {
     // Create variables to hold the values as XML is being parsed.
     final List<Image> imageList = new ArrayList<>(DEFAULT_LIMIT);
     int position = 0;
 
     try {
-      // Create an XML parser factory and disable namespace awareness for security reasons.
-      // See: (http://lists.w3.org/Archives/Public/public-xmlsec/2009Dec/att-0000/sws5-jensen.pdf).
-      final XmlPullParserFactory xmlParserFactory = XmlPullParserFactory.newInstance();
-      xmlParserFactory.setNamespaceAware(false);
-
-      // Create a new XML parser and feed HTTP response data into it.
-      final XmlPullParser xpp = xmlParserFactory.newPullParser();
-      xpp.setInput(new StringReader(body));
+      // Get a re-usable XML parser and feed HTTP response data into it.
+      final XmlPullParser xpp = XmlPullParsers.newPullParser(body);
 
       // Iterate over each XML element and handle pull parser "events".
       while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
@@ -297,7 +395,7 @@ public class DanbooruLegacy implements SearchClient {
               } else if ("sample_height".equals(name)) {
                 image.sampleHeight = Integer.valueOf(value);
               } else if ("tags".equals(name)) {
-                image.tags = Tag.arrayFromString(value, Tag.Type.GENERAL);
+                image.setTags(Tag.arrayFromString(value, Tag.Type.GENERAL));
               } else if ("id".equals(name)) {
                 image.id = value;
               } else if ("parent_id".equals(name)) {
@@ -384,25 +482,25 @@ public class DanbooruLegacy implements SearchClient {
    * @return Date converted from given String.
    */
   protected Date dateFromString(String date) throws ParseException {
-    // Parser for the date format used by upstream Danbooru 1.x.
-    final DateFormat DATE_FORMAT_DEFAULT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-
-    if (TextUtils.isDigitsOnly(date)) {
-      // Moebooru-based boards (Danbooru 1.x fork) use Unix timestamps.
-      return new Date(Integer.valueOf(date));
-    } else {
-      return DATE_FORMAT_DEFAULT.parse(date);
-    }
+    // Upstream Danbooru 1.x uses "yyyy-MM-dd HH:mm:ss" dates, Moebooru-based boards (Danbooru 1.x
+    // fork) use Unix timestamps, Gelbooru uses Ruby's default date format and E621 uses ISO 8601.
+    // The DateParser remembers which format is used by this endpoint.
+    return dateParser.parse(date);
   }
   //endregion
 
-  //region Ion async SearchResult parser
-  /** Asynchronous search parser to use with ion. */
-  protected class SearchResultParser implements AsyncParser<SearchResult> {
+  //region Async SearchResult parser
+  /** Asynchronous search parser. Parses the response as it is being downloaded. */
+  protected class SearchResultParser extends StreamingParser<SearchResult> {
     /** Tags searched for. */
     private final String tags;
     /** Current page offset. */
     private final int pageOffset;
+    /**
+     * Time the parser was created, in milliseconds since boot. Used as the time the request was
+     * sent if the transport didn't record it.
+     */
+    private final long requestTime = SystemClock.elapsedRealtime();
 
     public SearchResultParser(String tags, int pageOffset) {
       this.tags = tags;
@@ -410,24 +508,11 @@ public class DanbooruLegacy implements SearchClient {
     }
 
     @Override
-    public Future<SearchResult> parse(DataEmitter emitter) {
-      return new StringParser().parse(emitter)
-          .then(new TransformFuture<SearchResult, String>() {
-            @Override
-            protected void transform(String result) throws Exception {
-              setComplete(parseXMLResponse(result, tags, pageOffset));
-            }
-          });
-    }
-
-    @Override
-    public void write(DataSink sink, SearchResult value, CompletedCallback completed) {
-      // Not implemented.
-    }
-
-    @Override
-    public Type getType() {
-      return null;
+    protected SearchResult parse(Reader reader) throws IOException {
+      final SearchResult searchResult = parseXMLResponse(reader, tags, pageOffset);
+      getPageSizePolicy().onPageFetched(searchResult.getImageCount(),
+          SystemClock.elapsedRealtime() - getResponse().getSentTime(requestTime));
+      return searchResult;
     }
   }
   //endregion
@@ -10,31 +10,21 @@ import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.text.TextUtils;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
-import java.io.StringReader;
-import java.text.DateFormat;
+import java.io.Reader;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
 import io.github.tjg1.library.norilib.util.HashUtils;
+import io.github.tjg1.library.norilib.util.XmlPullParsers;
 
 /** {@link io.github.tjg1.library.norilib.clients.SearchClient} for the E621 imageboard. */
 public class E621 extends DanbooruLegacy {
@@ -42,6 +32,8 @@ public class E621 extends DanbooruLegacy {
   //region Constants
   /** Number of images to fetch with each search. */
   private static final int DEFAULT_LIMIT = 100;
+  /** Maximum number of images per page supported by the API. */
+  private static final int MAX_LIMIT = 320;
   //endregion
 
   //region Constructors
@@ -81,6 +73,11 @@ public class E621 extends DanbooruLegacy {
   public Settings getSettings() {
     return new Settings(Settings.APIType.E621, name, apiEndpoint);
   }
+
+  @Override
+  protected int getMaxPageSize() {
+    return MAX_LIMIT;
+  }
   //endregion
 
   //region Parsing responses
@@ -90,82 +87,88 @@ public class E621 extends DanbooruLegacy {
   }
 
   @Override
-  protected SearchResult parseXMLResponse(String body, String tags, int offset) throws IOException {
-
+  protected SearchResult parseXMLResponse(Reader body, String tags, int offset) throws IOException {
+    // Create variables to hold the values as XML is being parsed.
     final List<Image> imageList = new ArrayList<>(DEFAULT_LIMIT);
+    Image image = null;
+    int postDepth = 0;
+    int position = 0;
 
     try {
-      DocumentBuilderFactory Factory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder Builder = Factory.newDocumentBuilder();
-      Document doc = Builder.parse(new InputSource(new StringReader(body)));
-
-      NodeList nList = doc.getElementsByTagName("post");
-
-      for(int i = 0; i < nList.getLength(); i++) {
-
-        Node node = nList.item(i);
-        if(node.getNodeType() == Node.ELEMENT_NODE) {
-
-          Element element = (Element) node;
-
-          final Image image = new Image();
-          image.searchPage = offset;
-          image.searchPagePosition = i;
-
-
-          image.fileUrl = element.getElementsByTagName("file_url").item(0).getTextContent();
-          image.width = Integer.parseInt(element.getElementsByTagName("width").item(0).getTextContent());
-          image.height = Integer.parseInt(element.getElementsByTagName("height").item(0).getTextContent());
-
-          image.previewUrl = element.getElementsByTagName("preview_url").item(0).getTextContent();
-          image.previewWidth = Integer.parseInt(element.getElementsByTagName("preview_width").item(0).getTextContent());
-          image.previewHeight = Integer.parseInt(element.getElementsByTagName("preview_height").item(0).getTextContent());
-
-          image.sampleUrl = element.getElementsByTagName("sample_url").item(0).getTextContent();
-          image.sampleWidth = Integer.parseInt(element.getElementsByTagName("sample_width").item(0).getTextContent());
-          image.sampleHeight = Integer.parseInt(element.getElementsByTagName("sample_height").item(0).getTextContent());
-
-          image.tags = Tag.arrayFromString(element.getElementsByTagName("tags").item(0).getTextContent(), Tag.Type.GENERAL);
-          image.id = element.getElementsByTagName("id").item(0).getTextContent();
-          image.webUrl = webUrlFromId(image.id);
-          image.parentId = element.getElementsByTagName("parent_id").item(0).getTextContent();
-          image.safeSearchRating = Image.SafeSearchRating.fromString(element.getElementsByTagName("rating").item(0).getTextContent());
-          image.score = Integer.parseInt(element.getElementsByTagName("score").item(0).getTextContent());
-          image.md5 = element.getElementsByTagName("md5").item(0).getTextContent();
-          image.createdAt = dateFromString(element.getElementsByTagName("created_at").item(0).getTextContent());
-
-          imageList.add(image);
+      // Get a re-usable XML parser and feed HTTP response data into it.
+      final XmlPullParser xpp = XmlPullParsers.newPullParser(body);
+
+      // Iterate over each XML element and handle pull parser "events".
+      while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
+        if (xpp.getEventType() == XmlPullParser.START_TAG) {
+          // Get the tag's name.
+          final String name = xpp.getName();
+
+          if ("post".equals(name)) {
+            // Create a new image for each <post> tag.
+            image = new Image();
+            image.searchPage = offset;
+            image.searchPagePosition = position;
+            postDepth = xpp.getDepth();
+          }
+          // Extract image metadata from direct children of the <post> tag only.
+          // Nested tags, such as <sources><source>, are skipped.
+          else if (image != null && xpp.getDepth() == postDepth + 1) {
+            if ("file_url".equals(name)) {
+              image.fileUrl = xpp.nextText();
+            } else if ("width".equals(name)) {
+              image.width = Integer.parseInt(xpp.nextText());
+            } else if ("height".equals(name)) {
+              image.height = Integer.parseInt(xpp.nextText());
+            } else if ("preview_url".equals(name)) {
+              image.previewUrl = xpp.nextText();
+            } else if ("preview_width".equals(name)) {
+              image.previewWidth = Integer.parseInt(xpp.nextText());
+            } else if ("preview_height".equals(name)) {
+              image.previewHeight = Integer.parseInt(xpp.nextText());
+            } else if ("sample_url".equals(name)) {
+              image.sampleUrl = xpp.nextText();
+            } else if ("sample_width".equals(name)) {
+              image.sampleWidth = Integer.parseInt(xpp.nextText());
+            } else if ("sample_height".equals(name)) {
+              image.sampleHeight = Integer.parseInt(xpp.nextText());
+            } else if ("tags".equals(name)) {
+              image.setTags(Tag.arrayFromString(xpp.nextText(), Tag.Type.GENERAL));
+            } else if ("id".equals(name)) {
+              image.id = xpp.nextText();
+            } else if ("parent_id".equals(name)) {
+              image.parentId = xpp.nextText();
+            } else if ("rating".equals(name)) {
+              image.safeSearchRating = Image.SafeSearchRating.fromString(xpp.nextText());
+            } else if ("score".equals(name)) {
+              image.score = Integer.parseInt(xpp.nextText());
+            } else if ("md5".equals(name)) {
+              image.md5 = xpp.nextText();
+            } else if ("created_at".equals(name)) {
+              image.createdAt = dateFromString(xpp.nextText());
+            }
+          }
+        } else if (xpp.getEventType() == XmlPullParser.END_TAG) {
+          if (image != null && "post".equals(xpp.getName())) {
+            // Append values not returned by the API.
+            image.webUrl = webUrlFromId(image.id);
+            // Add Image to search result.
+            imageList.add(image);
+            image = null;
+            position++;
+          }
         }
+        // Get next XMLPullParser event.
+        xpp.next();
       }
-
-    }
-    catch(Exception e) {
+    } catch (XmlPullParserException | ParseException | NumberFormatException e) {
+      // Convert into IOException.
+      // Needed for consistent method signatures in the SearchClient interface for different APIs.
       throw new IOException(e);
     }
 
+    // Create and return a SearchResult.
     return new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), offset);
   }
-
-  /**
-   * Create a {@link java.util.Date} object from String date representation used by this API.
-   *
-   * @param date Date string.
-   * @return Date converted from given String.
-   */
-  @Override
-  protected Date dateFromString(String date) throws ParseException {
-    final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
-
-    // Normalise the ISO8601 time zone into a format parse-able by SimpleDateFormat.
-    if (!TextUtils.isEmpty(date)) {
-      String newDate = date.replace("Z", "+0000");
-      if (newDate.length() == 25) {
-        newDate = newDate.substring(0, 22) + newDate.substring(23); // Remove timezone colon.
-      }
-      return DATE_FORMAT.parse(newDate);
-    }
-
-    return null;
-  }
   //endregion
 }
@@ -0,0 +1,451 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.clients;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.tjg1.library.norilib.Image;
+import io.github.tjg1.library.norilib.SearchResult;
+import io.github.tjg1.library.norilib.Tag;
+
+/**
+ * {@link SearchClient} searching multiple services at once.
+ * <p/>
+ * Each search is sent to all backends in parallel. When all of them have responded, or the
+ * deadline set using {@link #setDeadline(long)} passes, the pages that have arrived so far are
+ * merged into a single {@link SearchResult}, alternating between backends. Requests that missed the
+ * deadline are not cancelled: their pages are merged into the next page of federated results.
+ * <p/>
+ * Each backend is paged on its own: fetching the next federated page only requests the next page
+ * from backends whose previous page has been merged, so a slow service never stalls the others.
+ * Because of this, merged pages are built in order, starting from page 0. Requesting a later page
+ * builds the pages before it first, and pages that have been built are kept until the query
+ * changes, so pages requested concurrently still get the right images.
+ */
+public class FederatedSearchClient implements SearchClient {
+
+  //region Constants
+  /** Default time to wait for the backends, in milliseconds. */
+  public static final long DEFAULT_DEADLINE = TimeUnit.SECONDS.toMillis(5);
+  /** Threads used to wait for the backends when searching asynchronously. */
+  private static final Executor EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+    /** Number of threads created so far. Used to name new threads. */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      final Thread thread = new Thread(runnable, "norilib-federated-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  //endregion
+
+  //region Instance fields
+  /** Human-readable service name. */
+  private final String name;
+  /** Clients used to search each backend. */
+  private final SearchClient[] clients;
+  /** Handler used to deliver results to asynchronous callbacks on the main thread. */
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  /** Time to wait for the backends, in milliseconds. */
+  private volatile long deadline = DEFAULT_DEADLINE;
+  /** Paging state of the current search. Guarded by {@code this}. */
+  private Query query;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new federated client from a list of service settings.
+   *
+   * @param context  Android {@link Context}.
+   * @param name     Human-readable service name.
+   * @param settings Settings of the services to search.
+   */
+  public FederatedSearchClient(Context context, String name, List<Settings> settings) {
+    final List<SearchClient> clients = new ArrayList<>(settings.size());
+    for (Settings backendSettings : settings) {
+      final SearchClient client = backendSettings.createSearchClient(context);
+      if (client != null) {
+        clients.add(client);
+      }
+    }
+    this.name = name;
+    this.clients = clients.toArray(new SearchClient[clients.size()]);
+  }
+
+  /**
+   * Create a new federated client.
+   *
+   * @param name    Human-readable service name.
+   * @param clients Clients used to search each service.
+   */
+  public FederatedSearchClient(String name, SearchClient... clients) {
+    this.name = name;
+    this.clients = clients.clone();
+  }
+  //endregion
+
+  //region Configuration
+  /**
+   * Set the time to wait for the backends before merging the pages that have arrived.
+   * If no pages have arrived by then, the first page to arrive is returned.
+   *
+   * @param deadline Deadline, in milliseconds.
+   * @return This client. Allows chaining setters.
+   */
+  public FederatedSearchClient setDeadline(long deadline) {
+    this.deadline = deadline;
+    return this;
+  }
+
+  /**
+   * Get the time to wait for the backends before merging the pages that have arrived.
+   *
+   * @return Deadline, in milliseconds.
+   */
+  public long getDeadline() {
+    return deadline;
+  }
+  //endregion
+
+  //region SearchClient methods
+  @Override
+  @WorkerThread
+  public SearchResult search(String tags) throws IOException {
+    // Return results for page 0.
+    return search(tags, 0);
+  }
+
+  /**
+   * Search all backends. Must not be called on the main thread, as backends deliver results there.
+   *
+   * @param tags Search query. A space-separated list of tags.
+   * @param pid  Page number. (zero-indexed) Page 0 starts a new search, unless it has just been
+   *             built for a later page of the same query.
+   * @return A {@link SearchResult} merged from the pages that arrived before the deadline.
+   * @throws IOException Network error reported by every backend.
+   */
+  @Override
+  @WorkerThread
+  public SearchResult search(String tags, int pid) throws IOException {
+    final Query query;
+    synchronized (this) {
+      if (this.query == null || !TextUtils.equals(this.query.tags, tags)
+          || (pid == 0 && this.query.isBuilt(0))) {
+        this.query = new Query(tags);
+      }
+      query = this.query;
+    }
+    return query.getPage(pid);
+  }
+
+  @Override
+  public void search(String tags, SearchCallback callback) {
+    // Return results for page 0.
+    search(tags, 0, callback);
+  }
+
+  @Override
+  public void search(final String tags, final int pid, final SearchCallback callback) {
+    // Wait for the backends on a background thread, then deliver the result on the main thread.
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final SearchResult searchResult = search(tags, pid);
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onSuccess(searchResult);
+            }
+          });
+        } catch (final IOException e) {
+          handler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onFailure(e);
+            }
+          });
+        }
+      }
+    });
+  }
+
+  @Override
+  public String getDefaultQuery() {
+    // Show all safe-for-work images by default.
+    return "";
+  }
+
+  /**
+   * Get the settings of this client.
+   * Federated clients can't be re-created from their settings: store the settings of each backend.
+   *
+   * @return Settings. The endpoint is a space-separated list of the backend endpoints.
+   */
+  @Override
+  public Settings getSettings() {
+    final StringBuilder endpoints = new StringBuilder();
+    for (SearchClient client : clients) {
+      if (endpoints.length() > 0) {
+        endpoints.append(' ');
+      }
+      endpoints.append(client.getSettings().getEndpoint());
+    }
+    return new Settings(Settings.APIType.FEDERATED, name, endpoints.toString());
+  }
+
+  @Override
+  public AuthenticationType requiresAuthentication() {
+    // Credentials are set in the settings of each backend.
+    return AuthenticationType.NONE;
+  }
+  //endregion
+
+  //region Paging state
+  /** Paging state of a single search query. */
+  private class Query {
+    /** Search query. A space-separated list of tags. */
+    private final String tags;
+    /** Paging state of each backend. */
+    private final Backend[] backends;
+    /** Merged pages built so far, by page number. */
+    private final SparseArray<SearchResult> pages = new SparseArray<>();
+    /** Number of merged pages built so far. */
+    private int pageCount;
+
+    /**
+     * Create a new search.
+     *
+     * @param tags Search query. A space-separated list of tags.
+     */
+    private Query(String tags) {
+      this.tags = tags;
+      this.backends = new Backend[clients.length];
+      for (int i = 0; i < clients.length; i++) {
+        backends[i] = new Backend(clients[i]);
+      }
+    }
+
+    /**
+     * Get a merged page, building it and any pages before it that haven't been built yet.
+     *
+     * @param pid Page number of the merged page.
+     * @return Copy of the merged page.
+     * @throws IOException Network error reported by every backend.
+     */
+    private synchronized SearchResult getPage(int pid) throws IOException {
+      while (pageCount <= pid) {
+        pages.put(pageCount, nextPage(pageCount));
+        pageCount++;
+      }
+      // Callers are free to modify the page they get, so the built page is never handed out.
+      return new SearchResult(pages.get(pid));
+    }
+
+    /**
+     * Check if a merged page has already been built.
+     *
+     * @param pid Page number of the merged page.
+     * @return True if the page has been built.
+     */
+    private synchronized boolean isBuilt(int pid) {
+      return pid < pageCount;
+    }
+
+    /**
+     * Request the next page from each backend and merge the pages that arrive before the deadline.
+     *
+     * @param pid Page number of the merged page.
+     * @return Merged page.
+     * @throws IOException Network error reported by every backend.
+     */
+    private SearchResult nextPage(int pid) throws IOException {
+      for (Backend backend : backends) {
+        backend.fetchPage();
+      }
+
+      // Wait until all backends have responded, or the deadline has passed.
+      final long deadlineTime = SystemClock.elapsedRealtime() + deadline;
+      long timeLeft = deadline;
+      while (isWaiting(false) && timeLeft > 0) {
+        waitForBackends(timeLeft);
+        timeLeft = deadlineTime - SystemClock.elapsedRealtime();
+      }
+      // Don't return an empty page just because all backends are slow.
+      while (isWaiting(true)) {
+        waitForBackends(0);
+      }
+
+      // Merge pages that have arrived, alternating between backends.
+      final List<Image[]> pages = new ArrayList<>(backends.length);
+      IOException error = null;
+      int imageCount = 0;
+      for (Backend backend : backends) {
+        if (backend.error != null) {
+          error = backend.error;
+          backend.error = null;
+        } else if (backend.page != null) {
+          final Image[] images = backend.takePage().getImages();
+          pages.add(images);
+          imageCount += images.length;
+        }
+      }
+      if (pages.isEmpty() && error != null) {
+        throw error;
+      }
+
+      final Image[] images = new Image[imageCount];
+      int position = 0;
+      for (int i = 0; position < imageCount; i++) {
+        for (Image[] page : pages) {
+          if (i < page.length) {
+            page[i].searchPage = pid;
+            page[i].searchPagePosition = position;
+            images[position++] = page[i];
+          }
+        }
+      }
+
+      final SearchResult searchResult = new SearchResult(images, Tag.arrayFromString(tags), pid);
+      if (!hasNextPage()) {
+        searchResult.onLastPage();
+      }
+      return searchResult;
+    }
+
+    /**
+     * Check if the merged page should wait for more backends.
+     *
+     * @param untilFirstPage True to only wait until any page arrives.
+     * @return True if the merged page should keep waiting.
+     */
+    private boolean isWaiting(boolean untilFirstPage) {
+      boolean inFlight = false;
+      for (Backend backend : backends) {
+        if (untilFirstPage && backend.page != null) {
+          return false;
+        }
+        inFlight |= backend.inFlight;
+      }
+      return inFlight;
+    }
+
+    /**
+     * Wait until a backend responds.
+     *
+     * @param timeout Maximum time to wait, in milliseconds. 0 to wait indefinitely.
+     * @throws IOException Interrupted while waiting.
+     */
+    private void waitForBackends(long timeout) throws IOException {
+      try {
+        wait(timeout);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+
+    /**
+     * Check if any backend may have more pages.
+     *
+     * @return True if another merged page could be fetched.
+     */
+    private boolean hasNextPage() {
+      for (Backend backend : backends) {
+        if (!backend.exhausted || backend.inFlight || backend.page != null) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Paging state of a single backend. Guarded by the enclosing {@link Query}. */
+    private class Backend {
+      /** Client used to search the backend. */
+      private final SearchClient client;
+      /** Number of the next page to request. */
+      private int nextPid;
+      /** Set when a request is in flight. */
+      private boolean inFlight;
+      /** Page that arrived, but hasn't been merged yet. */
+      private SearchResult page;
+      /** Error reported by the last request. */
+      private IOException error;
+      /** Set after the last page has arrived. */
+      private boolean exhausted;
+
+      /**
+       * Create a new backend paging state.
+       *
+       * @param client Client used to search the backend.
+       */
+      private Backend(SearchClient client) {
+        this.client = client;
+      }
+
+      /** Request the next page, unless a request is in flight or its page hasn't been merged. */
+      private void fetchPage() {
+        if (exhausted || inFlight || page != null) {
+          return;
+        }
+        inFlight = true;
+        client.search(tags, nextPid, new SearchCallback() {
+          @Override
+          public void onFailure(IOException e) {
+            synchronized (Query.this) {
+              inFlight = false;
+              // The same page is requested again with the next merged page.
+              error = e;
+              Query.this.notifyAll();
+            }
+          }
+
+          @Override
+          public void onSuccess(SearchResult searchResult) {
+            synchronized (Query.this) {
+              inFlight = false;
+              page = searchResult;
+              Query.this.notifyAll();
+            }
+          }
+        });
+      }
+
+      /**
+       * Take the page that arrived, to merge it.
+       *
+       * @return Page that arrived.
+       */
+      private SearchResult takePage() {
+        final SearchResult searchResult = page;
+        page = null;
+        nextPid++;
+        if (searchResult.getImageCount() == 0 || !searchResult.hasNextPage()) {
+          exhausted = true;
+        }
+        return searchResult;
+      }
+    }
+  }
+  //endregion
+}
@@ -8,41 +8,35 @@ package io.github.tjg1.library.norilib.clients;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.async.DataSink;
-import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.future.Future;
-import com.koushikdutta.async.future.FutureCallback;
-import com.koushikdutta.async.future.TransformFuture;
-import com.koushikdutta.async.parser.AsyncParser;
-import com.koushikdutta.async.parser.StringParser;
-import com.koushikdutta.ion.Ion;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
-import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 
 import io.github.tjg1.library.norilib.Image;
 import io.github.tjg1.library.norilib.SearchResult;
 import io.github.tjg1.library.norilib.Tag;
+import io.github.tjg1.library.norilib.cache.RequestCoalescer;
+import io.github.tjg1.library.norilib.cache.RevalidationCache;
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.transport.RateLimiter;
+import io.github.tjg1.library.norilib.transport.RetryPolicy;
+import io.github.tjg1.library.norilib.transport.Transport;
+import io.github.tjg1.library.norilib.transport.Transports;
+import io.github.tjg1.library.norilib.util.StreamingParser;
+import io.github.tjg1.library.norilib.util.XmlPullParsers;
 
 /** Search client for the Flickr API. */
 public class Flickr implements SearchClient {
@@ -50,6 +44,8 @@ public class Flickr implements SearchClient {
   //region Constants
   /** Number of images to fetch per page. */
   protected static final int DEFAULT_LIMIT = 100;
+  /** Maximum number of images per page supported by the API. */
+  private static final int MAX_LIMIT = 500;
   /** Default API endpoint. */
   public static final Uri FLICKR_API_ENDPOINT = Uri.parse("https://api.flickr.com/services/rest");
   /** Public API key used to access Flickr services. */
@@ -63,6 +59,10 @@ public class Flickr implements SearchClient {
   protected final String name;
   /** API Endpoint. */
   protected final Uri apiEndpoint;
+  /** Picks the number of images requested per page. */
+  private final PageSizePolicy pageSizePolicy = new PageSizePolicy(DEFAULT_LIMIT, MAX_LIMIT);
+  /** HTTP transport used to send requests. Picked on first use, unless set. */
+  private Transport transport;
   //endregion
 
   //region Constructors
@@ -122,17 +122,7 @@ public class Flickr implements SearchClient {
    */
   @Override
   public SearchResult search(String tags, int pid) throws IOException {
-    try {
-      return Ion.with(this.context)
-          .load(createSearchURL(tags, pid))
-          .userAgent(SearchClient.USER_AGENT)
-          .as(new SearchResultParser(tags, pid))
-          .get();
-    } catch (InterruptedException | ExecutionException e) {
-      // Normalise exception to IOException, so method signatures are not tied to a single HTTP
-      // library.
-      throw new IOException(e);
-    }
+    return RevalidationCache.get(createSearchRequest(tags, pid));
   }
 
   /**
@@ -156,18 +146,31 @@ public class Flickr implements SearchClient {
    */
   @Override
   public void search(String tags, int pid, final SearchCallback callback) {
-    Ion.with(this.context)
-        .load(createSearchURL(tags, pid))
-        .userAgent(SearchClient.USER_AGENT)
-        .as(new SearchResultParser(tags, pid))
-        .setCallback(new FutureCallback<SearchResult>() {
+    RevalidationCache.deliver(createSearchRequest(tags, pid), callback);
+  }
+
+  /**
+   * Send a search request, revalidating the page if it has been fetched before.
+   * Identical requests already in flight are reused instead.
+   *
+   * @param tags Search query. A space-separated list of tags.
+   * @param pid  Page number. (zero-indexed)
+   * @return Future completed with the parsed SearchResult.
+   */
+  protected Future<SearchResult> createSearchRequest(final String tags, final int pid) {
+    // Flickr only supports page numbers, so the page size never changes within a query.
+    final int limit = pageSizePolicy.getPageSize(tags, pid, false);
+
+    return RequestCoalescer.getDefault().execute(
+        RequestCoalescer.createKey(apiEndpoint.toString(), null, tags, pid, limit,
+            SearchResult.NO_CURSOR),
+        new RequestCoalescer.Request() {
           @Override
-          public void onCompleted(Exception e, SearchResult result) {
-            if (e != null) {
-              callback.onFailure(new IOException(e));
-            } else {
-              callback.onSuccess(result);
-            }
+          public Future<SearchResult> execute() {
+            final String url = createSearchURL(tags, pid, limit);
+            return RevalidationCache.getDefault().load(getSearchTransport(),
+                new HttpRequest(url).setUserAgent(SearchClient.USER_AGENT),
+                url, new SearchResultParser(tags, pid));
           }
         });
   }
@@ -207,17 +210,64 @@ public class Flickr implements SearchClient {
   public AuthenticationType requiresAuthentication() {
     return AuthenticationType.NONE;
   }
+
+  /**
+   * Get the policy picking the number of images requested per page.
+   * Can be used to change the page size, or make it adapt to the connection speed.
+   *
+   * @return Page size policy of this client.
+   */
+  public PageSizePolicy getPageSizePolicy() {
+    return pageSizePolicy;
+  }
+
+  /**
+   * Set the HTTP transport used to send requests.
+   *
+   * @param transport Transport. Null to use {@link Transports#getDefault(Context)}.
+   * @return This client. Allows chaining setters.
+   */
+  public synchronized Flickr setTransport(Transport transport) {
+    this.transport = transport;
+    return this;
+  }
+
+  /**
+   * Get the HTTP transport used to send requests.
+   *
+   * @return Transport.
+   */
+  public synchronized Transport getTransport() {
+    if (transport == null) {
+      transport = Transports.getDefault(context);
+    }
+    return transport;
+  }
+
+  /**
+   * Get the transport used to send search requests. Requests are hedged and retried as decided by
+   * {@link RetryPolicy#getDefault()}. Every request sent, including hedges and retries, is rate
+   * limited by {@link RateLimiter#getDefault()}.
+   *
+   * @return Transport for search requests.
+   */
+  protected Transport getSearchTransport() {
+    final Settings settings = getSettings();
+    return RetryPolicy.getDefault().wrap(
+        RateLimiter.getDefault().wrap(getTransport(), settings), settings);
+  }
   //endregion
 
   //region Creating search URLs
   /**
    * Generate request URL to the search API endpoint.
    *
-   * @param tags Space-separated tags.
-   * @param pid  Page number (0-indexed).
+   * @param tags  Space-separated tags.
+   * @param pid   Page number (0-indexed).
+   * @param limit Images to fetch per page.
    * @return URL to search results API.
    */
-  protected String createSearchURL(String tags, int pid) {
+  protected String createSearchURL(String tags, int pid, int limit) {
     return new Uri.Builder()
         .scheme(apiEndpoint.getScheme())
         .authority(apiEndpoint.getAuthority())
@@ -225,7 +275,7 @@ public class Flickr implements SearchClient {
         .appendQueryParameter("api_key", FLICKR_API_KEY)
         .appendQueryParameter("method", !TextUtils.isEmpty(tags) ? "flickr.photos.search" : "flickr.interestingness.getList")
         .appendQueryParameter("text", tags != null ? tags : "")
-        .appendQueryParameter("per_page", Integer.toString(DEFAULT_LIMIT, 10))
+        .appendQueryParameter("per_page", Integer.toString(limit, 10))
         .appendQueryParameter("extras", "date_upload,owner_name,media,tags,path_alias,icon_server,o_dims,path_alias,original_format,url_q,url_m,url_l,url_o")
         .appendQueryParameter("page", Integer.toString(pid + 1, 10))
         .build()
@@ -243,84 +293,146 @@ public class Flickr implements SearchClient {
    * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given XML.
    */
   protected SearchResult parseXMLResponse(String body, String tags, int offset) throws IOException {
+    return parseXMLResponse(new StringReader(body), tags, offset);
+  }
+
+  /**
+   * Parse an XML response returned by the API.
+   *
+   * @param body   Reader streaming the HTTP response body.
+   * @param tags   Tags used to retrieve the response.
+   * @param offset Current paging offset.
+   * @return A {@link io.github.tjg1.library.norilib.SearchResult} parsed from given XML.
+   */
+  protected SearchResult parseXMLResponse(Reader body, String tags, int offset) throws IOException {
     final List<Image> imageList = new ArrayList<>(DEFAULT_LIMIT);
+    int position = 0;
 
     try {
-      Document doc = DocumentBuilderFactory
-          .newInstance()
-          .newDocumentBuilder()
-          .parse(new InputSource(new StringReader(body)));
-
-      NodeList nodeList = doc.getElementsByTagName("photo");
-
-      for (int i = 0; i < nodeList.getLength(); i++) {
-        Node node = nodeList.item(i);
-
-        if (node.getNodeType() == Node.ELEMENT_NODE) {
-          Element element = (Element) node;
-
-          final Image image = new Image();
+      // Get a re-usable XML parser and feed HTTP response data into it.
+      final XmlPullParser xpp = XmlPullParsers.newPullParser(body);
+
+      // Iterate over each XML element and handle pull parser "events".
+      while (xpp.getEventType() != XmlPullParser.END_DOCUMENT) {
+        if (xpp.getEventType() == XmlPullParser.START_TAG && "photo".equals(xpp.getName())) {
+          // <photo> tags contain metadata for each image in their attributes.
+          final Image image = imageFromAttributes(xpp);
           image.searchPage = offset;
-          image.searchPagePosition = i;
-
-          String urlQ = element.getAttribute("url_q");
-          String urlM = element.getAttribute("url_m");
-          String urlL = element.getAttribute("url_l");
-          String urlO = element.getAttribute("url_o");
-
-          // Set file url.
-          if (!TextUtils.isEmpty(urlO)) {
-            image.fileUrl = urlO;
-            image.width = Integer.parseInt(element.getAttribute("width_o"));
-            image.height = Integer.parseInt(element.getAttribute("height_o"));
-          } else if (!TextUtils.isEmpty(urlL)) {
-            image.fileUrl = urlL;
-            image.width = Integer.parseInt(element.getAttribute("width_l"));
-            image.height = Integer.parseInt(element.getAttribute("height_l"));
-          } else if (!TextUtils.isEmpty(urlM)) {
-            image.fileUrl = urlM;
-            image.width = Integer.parseInt(element.getAttribute("width_m"));
-            image.height = Integer.parseInt(element.getAttribute("height_m"));
-          }
-
-          // Set sample url.
-          if (!TextUtils.isEmpty(urlL)) {
-            image.sampleUrl = urlL;
-            image.sampleWidth = Integer.parseInt(element.getAttribute("width_l"));
-            image.sampleHeight = Integer.parseInt(element.getAttribute("height_l"));
-          } else if (!TextUtils.isEmpty(urlM)) {
-            image.sampleUrl = urlM;
-            image.sampleWidth = Integer.parseInt(element.getAttribute("width_m"));
-            image.sampleHeight = Integer.parseInt(element.getAttribute("height_m"));
-          }
-
-          // Set preview url.
-          if (!TextUtils.isEmpty(urlQ)) {
-            image.previewUrl = urlQ;
-            image.previewWidth = Integer.parseInt(element.getAttribute("width_q"));
-            image.previewHeight = Integer.parseInt(element.getAttribute("height_q"));
-          }
-
-          image.tags = Tag.arrayFromString(element.getAttribute("tags"));
-          image.id = element.getAttribute("id");
-          image.webUrl = webUrlFromId(element.getAttribute("owner"), element.getAttribute("id"));
-          image.parentId = null;
-          image.safeSearchRating = Image.SafeSearchRating.S;
-          image.score = 0;
-          image.md5 = "2d57d21f35e060a4c5e81c03aea3efa8"; // not implemented
-          image.createdAt = new Date(Long.parseLong(element.getAttribute("dateupload"), 10) * 1000);
-
+          image.searchPagePosition = position;
           imageList.add(image);
+          position++;
         }
+        // Get next XMLPullParser event.
+        xpp.next();
       }
-
-    } catch (SAXException | ParserConfigurationException e) {
+    } catch (XmlPullParserException | NumberFormatException e) {
+      // Convert into IOException.
+      // Needed for consistent method signatures in the SearchClient interface for different APIs.
       throw new IOException(e);
     }
 
     return new SearchResult(imageList.toArray(new Image[imageList.size()]), Tag.arrayFromString(tags), offset);
   }
 
+  /**
+   * Create an {@link Image} from the attributes of the current <code>&lt;photo&gt;</code> tag.
+   * Attributes are read in a single pass.
+   *
+   * @param xpp XML parser positioned on a <code>&lt;photo&gt;</code> start tag.
+   * @return Image parsed from the tag's attributes.
+   */
+  private Image imageFromAttributes(XmlPullParser xpp) {
+    String urlQ = null, widthQ = null, heightQ = null;
+    String urlM = null, widthM = null, heightM = null;
+    String urlL = null, widthL = null, heightL = null;
+    String urlO = null, widthO = null, heightO = null;
+    String owner = null;
+    String dateUpload = null;
+    final Image image = new Image();
+
+    // Extract image metadata from XML attributes.
+    for (int i = 0; i < xpp.getAttributeCount(); i++) {
+      // Get name and value of current XML attribute.
+      final String name = xpp.getAttributeName(i);
+      final String value = xpp.getAttributeValue(i);
+
+      if ("url_q".equals(name)) {
+        urlQ = value;
+      } else if ("width_q".equals(name)) {
+        widthQ = value;
+      } else if ("height_q".equals(name)) {
+        heightQ = value;
+      } else if ("url_m".equals(name)) {
+        urlM = value;
+      } else if ("width_m".equals(name)) {
+        widthM = value;
+      } else if ("height_m".equals(name)) {
+        heightM = value;
+      } else if ("url_l".equals(name)) {
+        urlL = value;
+      } else if ("width_l".equals(name)) {
+        widthL = value;
+      } else if ("height_l".equals(name)) {
+        heightL = value;
+      } else if ("url_o".equals(name)) {
+        urlO = value;
+      } else if ("width_o".equals(name)) {
+        widthO = value;
+      } else if ("height_o".equals(name)) {
+        heightO = value;
+      } else if ("tags".equals(name)) {
+        image.setTags(Tag.arrayFromString(value));
+      } else if ("id".equals(name)) {
+        image.id = value;
+      } else if ("owner".equals(name)) {
+        owner = value;
+      } else if ("dateupload".equals(name)) {
+        dateUpload = value;
+      }
+    }
+
+    // Set file url.
+    if (!TextUtils.isEmpty(urlO)) {
+      image.fileUrl = urlO;
+      image.width = Integer.parseInt(widthO);
+      image.height = Integer.parseInt(heightO);
+    } else if (!TextUtils.isEmpty(urlL)) {
+      image.fileUrl = urlL;
+      image.width = Integer.parseInt(widthL);
+      image.height = Integer.parseInt(heightL);
+    } else if (!TextUtils.isEmpty(urlM)) {
+      image.fileUrl = urlM;
+      image.width = Integer.parseInt(widthM);
+      image.height = Integer.parseInt(heightM);
+    }
+
+    // Set sample url.
+    if (!TextUtils.isEmpty(urlL)) {
+      image.sampleUrl = urlL;
+      image.sampleWidth = Integer.parseInt(widthL);
+      image.sampleHeight = Integer.parseInt(heightL);
+    } else if (!TextUtils.isEmpty(urlM)) {
+      image.sampleUrl = urlM;
+      image.sampleWidth = Integer.parseInt(widthM);
+      image.sampleHeight = Integer.parseInt(heightM);
+    }
+
+    // Set preview url.
+    if (!TextUtils.isEmpty(urlQ)) {
+      image.previewUrl = urlQ;
+      image.previewWidth = Integer.parseInt(widthQ);
+      image.previewHeight = Integer.parseInt(heightQ);
+    }
+
+    image.webUrl = webUrlFromId(owner, image.id);
+    image.parentId = null;
+    image.safeSearchRating = Image.SafeSearchRating.S;
+    image.score = 0;
+    image.md5 = Image.PLACEHOLDER_MD5; // not implemented
+    image.createdAt = new Date(Long.parseLong(dateUpload, 10) * 1000);
+
+    return image;
+  }
 
   /** Create Flickr web url for given user and photo id. */
   protected String webUrlFromId(String userId, String photoId) {
@@ -328,13 +440,18 @@ public class Flickr implements SearchClient {
   }
   //endregion
 
-  //region Ion async SearchResult parser
-  /** Asynchronous search parser to use with ion. */
-  protected class SearchResultParser implements AsyncParser<SearchResult> {
+  //region Async SearchResult parser
+  /** Asynchronous search parser. Parses the response as it is being downloaded. */
+  protected class SearchResultParser extends StreamingParser<SearchResult> {
     /** Tags searched for. */
     private final String tags;
     /** Current page offset. */
     private final int pageOffset;
+    /**
+     * Time the parser was created, in milliseconds since boot. Used as the time the request was
+     * sent if the transport didn't record it.
+     */
+    private final long requestTime = SystemClock.elapsedRealtime();
 
     public SearchResultParser(String tags, int pageOffset) {
       this.tags = tags;
@@ -342,24 +459,11 @@ public class Flickr implements SearchClient {
     }
 
     @Override
-    public Future<SearchResult> parse(DataEmitter emitter) {
-      return new StringParser().parse(emitter)
-          .then(new TransformFuture<SearchResult, String>() {
-            @Override
-            protected void transform(String result) throws Exception {
-              setComplete(parseXMLResponse(result, tags, pageOffset));
-            }
-          });
-    }
-
-    @Override
-    public void write(DataSink sink, SearchResult value, CompletedCallback completed) {
-      // Not implemented.
-    }
-
-    @Override
-    public Type getType() {
-      return null;
+    protected SearchResult parse(Reader reader) throws IOException {
+      final SearchResult searchResult = parseXMLResponse(reader, tags, pageOffset);
+      pageSizePolicy.onPageFetched(searchResult.getImageCount(),
+          SystemClock.elapsedRealtime() - getResponse().getSentTime(requestTime));
+      return searchResult;
     }
   }
   //endregion
@@ -11,26 +11,18 @@ import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.ion.Ion;
-import com.koushikdutta.ion.Response;
-
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+import io.github.tjg1.library.norilib.transport.Transports;
+
 /**
  * Client for the Gelbooru API.
  * The Gelbooru API is based on the Danbooru 1.x API with a few minor differences.
  */
 public class Gelbooru extends DanbooruLegacy {
-  //region Constants
-  /** Date format used by Gelbooru. */
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("EEE MMM d HH:mm:ss Z yyyy", Locale.US);
-  //endregion
-
   //region Constructors
   public Gelbooru(Context context, String name, String endpoint) {
     super(context, name, endpoint);
@@ -56,21 +48,18 @@ public class Gelbooru extends DanbooruLegacy {
         .toString();
 
     try {
-      final Response<DataEmitter> response = Ion.with(context)
-          .load(endpointUrl)
-          .setTimeout(timeout)
-          .userAgent(SearchClient.USER_AGENT)
-          .followRedirect(false)
-          .noCache()
-          .asDataEmitter()
-          .withResponse()
+      final HttpResponse response = Transports.getDefault(context)
+          .execute(new HttpRequest(endpointUrl)
+              .setTimeout(timeout)
+              .setUserAgent(SearchClient.USER_AGENT)
+              .setFollowRedirects(false)
+              .setUseCaches(false))
           .get();
 
       // Close the connection.
-      final DataEmitter dataEmitter = response.getResult();
-      if (dataEmitter != null) dataEmitter.close();
+      response.close();
 
-      if (response.getHeaders().code() == 200) {
+      if (response.getCode() == 200) {
         return uri.toString();
       }
     } catch (InterruptedException | ExecutionException ignored) {
@@ -84,6 +73,12 @@ public class Gelbooru extends DanbooruLegacy {
   public Settings getSettings() {
     return new Settings(Settings.APIType.GELBOARD, name, apiEndpoint, username, password);
   }
+
+  @Override
+  protected int getMaxPageSize() {
+    // Gelbooru allows up to 1000 images per request.
+    return 1000;
+  }
   //endregion
 
   //region Creating search URLs
@@ -99,11 +94,5 @@ public class Gelbooru extends DanbooruLegacy {
   protected String webUrlFromId(String id) {
     return String.format(Locale.US, "%s/index.php?page=post&s=view&id=%s", apiEndpoint, id);
   }
-
-  @Override
-  protected Date dateFromString(String date) throws ParseException {
-    // Override Danbooru 1.x date format.
-    return DATE_FORMAT.parse(date);
-  }
   //endregion
 }
@@ -0,0 +1,209 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.clients;
+
+import android.support.v4.util.LruCache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the number of images requested per page by a {@link SearchClient}.
+ * <p/>
+ * By default, the page size is fixed. When adaptive, the page size is picked from the observed
+ * time needed to fetch each image, so that a page takes about {@link #getTargetLatency()} to
+ * arrive: fast connections fetch large pages with fewer requests, while slow connections get
+ * the first thumbnails on screen sooner. The page size never exceeds the maximum supported by
+ * the API.
+ * <p/>
+ * Page numbers are only meaningful for a fixed page size, so pages requested by number always use
+ * the size picked for the first page of the same query, keeping page offsets consistent when the
+ * page size changes mid-session. Pages requested by image ID (see
+ * {@link io.github.tjg1.library.norilib.SearchResult#getNextPageCursor()}) can grow past that size.
+ * Images fetched twice because of this are dropped by
+ * {@link io.github.tjg1.library.norilib.SearchResult#addImages(io.github.tjg1.library.norilib.Image[], int)}.
+ */
+public class PageSizePolicy {
+
+  //region Constants
+  /** Smallest page size picked by the adaptive policy. Page sizes are rounded to its multiples. */
+  public static final int MIN_PAGE_SIZE = 20;
+  /** Default time a page should take to arrive, in milliseconds. */
+  public static final long DEFAULT_TARGET_LATENCY = TimeUnit.SECONDS.toMillis(2);
+  /** Weight of the latest sample in the moving average of the time needed to fetch an image. */
+  private static final double SMOOTHING_FACTOR = 0.3;
+  /** Number of queries whose page size is remembered. */
+  private static final int MAX_QUERIES = 32;
+  //endregion
+
+  //region Instance fields
+  /** Maximum page size supported by the API. */
+  private final int maxPageSize;
+  /** Page size used when the policy isn't adaptive, or nothing has been fetched yet. */
+  private int pageSize;
+  /** True if the page size is picked from the observed latency. */
+  private boolean adaptive;
+  /** Time a page should take to arrive, in milliseconds. */
+  private long targetLatency = DEFAULT_TARGET_LATENCY;
+  /** Moving average of the time needed to fetch a single image, in milliseconds. 0 if unknown. */
+  private double millisPerImage;
+  /** Page size picked for the first page of recent queries, by query. */
+  private final LruCache<String, Integer> queryPageSizes = new LruCache<>(MAX_QUERIES);
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new, fixed page size policy.
+   *
+   * @param pageSize    Number of images per page.
+   * @param maxPageSize Maximum number of images per page supported by the API.
+   */
+  public PageSizePolicy(int pageSize, int maxPageSize) {
+    this.maxPageSize = maxPageSize;
+    this.pageSize = clamp(pageSize);
+  }
+  //endregion
+
+  //region Configuration
+  /**
+   * Set the number of images per page. Used as the initial page size by the adaptive policy.
+   *
+   * @param pageSize Number of images per page. Clamped to the maximum supported by the API.
+   * @return This policy. Allows chaining setters.
+   */
+  public synchronized PageSizePolicy setPageSize(int pageSize) {
+    this.pageSize = clamp(pageSize);
+    return this;
+  }
+
+  /**
+   * Get the number of images per page used when the policy isn't adaptive.
+   *
+   * @return Number of images per page.
+   */
+  public synchronized int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Get the maximum number of images per page supported by the API.
+   *
+   * @return Maximum number of images per page.
+   */
+  public int getMaxPageSize() {
+    return maxPageSize;
+  }
+
+  /**
+   * Pick the page size from the observed latency and throughput.
+   *
+   * @param adaptive True to adapt the page size, false to use a fixed page size.
+   * @return This policy. Allows chaining setters.
+   */
+  public synchronized PageSizePolicy setAdaptive(boolean adaptive) {
+    this.adaptive = adaptive;
+    return this;
+  }
+
+  /**
+   * Check if the page size is picked from the observed latency and throughput.
+   *
+   * @return True if the page size is adaptive.
+   */
+  public synchronized boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /**
+   * Set the time a page should take to arrive, used by the adaptive policy.
+   *
+   * @param targetLatency Target latency, in milliseconds.
+   * @return This policy. Allows chaining setters.
+   */
+  public synchronized PageSizePolicy setTargetLatency(long targetLatency) {
+    this.targetLatency = targetLatency;
+    return this;
+  }
+
+  /**
+   * Get the time a page should take to arrive, used by the adaptive policy.
+   *
+   * @return Target latency, in milliseconds.
+   */
+  public synchronized long getTargetLatency() {
+    return targetLatency;
+  }
+  //endregion
+
+  //region Picking page sizes
+  /**
+   * Get the number of images to request for a page.
+   *
+   * @param tags   Search query. A space-separated list of tags.
+   * @param pid    Page number. (zero-indexed)
+   * @param cursor True if the page is requested by image ID, rather than by page number.
+   * @return Number of images to request.
+   */
+  public synchronized int getPageSize(String tags, int pid, boolean cursor) {
+    if (pid == 0) {
+      // Page size used by later pages requested by number.
+      final int firstPageSize = adaptive ? estimatePageSize() : pageSize;
+      queryPageSizes.put(tags, firstPageSize);
+      return firstPageSize;
+    }
+
+    final Integer querySize = queryPageSizes.get(tags);
+    final int numberedPageSize = (querySize != null) ? querySize : pageSize;
+    if (cursor && adaptive) {
+      // Smaller pages would leave gaps before pages requested by number.
+      return Math.max(numberedPageSize, estimatePageSize());
+    }
+    return numberedPageSize;
+  }
+
+  /**
+   * Record the time needed to fetch a page. Used by the adaptive policy.
+   *
+   * @param imageCount Number of images on the page.
+   * @param latency    Time from sending the request to parsing the last image, in milliseconds.
+   */
+  public synchronized void onPageFetched(int imageCount, long latency) {
+    if (imageCount <= 0 || latency < 0) {
+      // Empty pages say nothing about the time needed to fetch an image.
+      return;
+    }
+    final double sample = (double) latency / imageCount;
+    millisPerImage = (millisPerImage == 0) ?
+        sample : SMOOTHING_FACTOR * sample + (1 - SMOOTHING_FACTOR) * millisPerImage;
+  }
+
+  /**
+   * Estimate the number of images that can be fetched within the target latency.
+   *
+   * @return Page size. The configured page size if nothing has been fetched yet.
+   */
+  private int estimatePageSize() {
+    if (millisPerImage == 0) {
+      return pageSize;
+    }
+    // Round to a multiple of the minimum size, so revalidated URLs don't change on every request.
+    final double images = targetLatency / millisPerImage;
+    final int pageSize = (int) Math.min(images / MIN_PAGE_SIZE, Integer.MAX_VALUE / MIN_PAGE_SIZE)
+        * MIN_PAGE_SIZE;
+    return clamp(Math.max(MIN_PAGE_SIZE, pageSize));
+  }
+
+  /**
+   * Clamp a page size to the range supported by the API.
+   *
+   * @param pageSize Page size.
+   * @return Page size between 1 and {@link #maxPageSize}.
+   */
+  private int clamp(int pageSize) {
+    return Math.max(1, Math.min(pageSize, maxPageSize));
+  }
+  //endregion
+}
@@ -158,6 +158,7 @@ public interface SearchClient {
         username = null;
         password = null;
       }
+      this.responseFormat = ResponseFormat.values()[in.readInt()];
     }
 
     @Override
@@ -178,6 +179,7 @@ public interface SearchClient {
       } else {
         dest.writeByte((byte) 0x00);
       }
+      dest.writeInt(responseFormat.ordinal());
     }
     //endregion
 
@@ -192,6 +194,8 @@ public interface SearchClient {
     private final String username;
     /** API authentication password/API key. */
     private final String password;
+    /** Response format requested from the API, for clients supporting more than one. */
+    private final ResponseFormat responseFormat;
     //endregion
 
     //region Constructors
@@ -200,11 +204,18 @@ public interface SearchClient {
     }
 
     public Settings(APIType apiType, String name, String endpoint, String username, String password) {
+      this(apiType, name, endpoint, username, password, ResponseFormat.XML);
+    }
+
+    public Settings(APIType apiType, String name, String endpoint, String username, String password,
+                    ResponseFormat responseFormat) {
       this.apiType = apiType;
       this.name = name;
       this.endpoint = endpoint;
       this.username = username;
       this.password = password;
+      // Clients and parcels both expect a format, XML is understood by every API.
+      this.responseFormat = (responseFormat != null) ? responseFormat : ResponseFormat.XML;
     }
     //endregion
 
@@ -233,6 +244,11 @@ public interface SearchClient {
     public String getPassword() {
       return password;
     }
+
+    /** Get the response format requested from the API. Ignored by clients supporting only one. */
+    public ResponseFormat getResponseFormat() {
+      return responseFormat;
+    }
     //endregion
 
     //region SearchClient deserialization
@@ -240,11 +256,12 @@ public interface SearchClient {
      * Create a {@link io.github.tjg1.library.norilib.clients.SearchClient} from this {@link io.github.tjg1.library.norilib.clients.SearchClient.Settings} object.
      *
      * @return A {@link io.github.tjg1.library.norilib.clients.SearchClient} created using settings from this object.
+     * Null if the API type can't be created from settings, e.g. {@link APIType#FEDERATED}.
      */
     public SearchClient createSearchClient(Context context) {
       switch (apiType) {
         case DANBOARD:
-          return new Danbooru(context, name, endpoint, username, password);
+          return new Danbooru(context, name, endpoint, username, password, responseFormat);
         case DANBOARD_LEGACY:
           return new DanbooruLegacy(context, name, endpoint, username, password);
         case SHIMMIE:
@@ -258,6 +275,7 @@ public interface SearchClient {
         case FLICKR_USER:
           return new FlickrUser(context, name, endpoint);
         default:
+          // Federated settings only describe the backends, not how to create their clients.
           return null;
       }
     }
@@ -272,7 +290,25 @@ public interface SearchClient {
       SHIMMIE,
       E621,
       FLICKR,
-      FLICKR_USER
+      FLICKR_USER,
+      /**
+       * Used by {@link FederatedSearchClient}, which can't be created from a Settings object:
+       * {@link Settings#createSearchClient(Context)} returns null. Not a type users can pick.
+       */
+      FEDERATED
+    }
+    //endregion
+
+    //region Response format enumeration
+    /**
+     * Wire formats that can be requested from APIs supporting more than one.
+     * Currently only used by {@link Danbooru}.
+     */
+    public enum ResponseFormat {
+      /** XML responses. Supported by all APIs. */
+      XML,
+      /** JSON responses. More compact and cheaper to decode than XML. */
+      JSON
     }
     //endregion
   }
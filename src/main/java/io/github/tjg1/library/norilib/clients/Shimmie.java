@@ -11,13 +11,13 @@ import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.koushikdutta.async.DataEmitter;
-import com.koushikdutta.ion.Ion;
-import com.koushikdutta.ion.Response;
-
 import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 
+import io.github.tjg1.library.norilib.transport.HttpRequest;
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+import io.github.tjg1.library.norilib.transport.Transports;
+
 /**
  * Client for the Shimmie2 API.
  * Shimmie2 provides an extension that enables a Danbooru 1.x-based API.
@@ -49,21 +49,18 @@ public class Shimmie extends DanbooruLegacy {
         .toString();
 
     try {
-      final Response<DataEmitter> response = Ion.with(context)
-          .load(endpointUrl)
-          .setTimeout(timeout)
-          .userAgent(SearchClient.USER_AGENT)
-          .followRedirect(false)
-          .noCache()
-          .asDataEmitter()
-          .withResponse()
+      final HttpResponse response = Transports.getDefault(context)
+          .execute(new HttpRequest(endpointUrl)
+              .setTimeout(timeout)
+              .setUserAgent(SearchClient.USER_AGENT)
+              .setFollowRedirects(false)
+              .setUseCaches(false))
           .get();
 
       // Close the connection.
-      final DataEmitter dataEmitter = response.getResult();
-      if (dataEmitter != null) dataEmitter.close();
+      response.close();
 
-      if (response.getHeaders().code() == 200) {
+      if (response.getCode() == 200) {
         return uri.toString();
       }
     } catch (InterruptedException | ExecutionException ignored) {
@@ -87,6 +84,12 @@ public class Shimmie extends DanbooruLegacy {
 
     return String.format(Locale.US, "%s/api/danbooru/find_posts/index.xml?tags=%s&page=%d&limit=%d", apiEndpoint, tags, page, limit);
   }
+
+  @Override
+  protected boolean supportsCursorPaging() {
+    // The Danbooru API extension doesn't support the id metatag.
+    return false;
+  }
   //endregion
 
   //region Parsing responses
@@ -0,0 +1,316 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import android.os.SystemClock;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Transport} hedging slow requests and retrying failed ones, as decided by a
+ * {@link RetryPolicy}.
+ * <p/>
+ * Once a request has been waiting longer than the endpoint's 95th percentile latency, an identical
+ * request is sent, and the first response to arrive is returned. The other request is cancelled.
+ * Requests that fail with a network error or a transient 5xx response are retried while the
+ * endpoint's retry budget allows it. Any other response, including 4xx errors, is returned as it is.
+ */
+public class HedgingTransport implements Transport {
+
+  //region Constants
+  /** Thread sending hedged requests. */
+  private static final ScheduledExecutorService SCHEDULER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, "norilib-hedging");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  //endregion
+
+  //region Instance fields
+  /** Transport used to send the requests. */
+  private final Transport transport;
+  /** Policy deciding when requests are hedged or retried. */
+  private final RetryPolicy retryPolicy;
+  /** API endpoint URL the requests are sent to. */
+  private final String endpoint;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new hedging transport.
+   * Use {@link RetryPolicy#wrap(Transport, io.github.tjg1.library.norilib.clients.SearchClient.Settings)}
+   * instead of calling this directly.
+   *
+   * @param transport   Transport used to send the requests.
+   * @param retryPolicy Policy deciding when requests are hedged or retried.
+   * @param endpoint    API endpoint URL the requests are sent to.
+   */
+  public HedgingTransport(Transport transport, RetryPolicy retryPolicy, String endpoint) {
+    this.transport = transport;
+    this.retryPolicy = retryPolicy;
+    this.endpoint = endpoint;
+  }
+  //endregion
+
+  //region Transport methods
+  @Override
+  public Future<HttpResponse> execute(HttpRequest request) {
+    final Call call = new Call(request);
+    retryPolicy.onRequest(endpoint);
+    call.send();
+    return call;
+  }
+  //endregion
+
+  //region Hedged request
+  /** Future completed with the first usable response to any of the requests sent for it. */
+  private class Call extends SimpleFuture<HttpResponse> {
+    /** Request to send. */
+    private final HttpRequest request;
+    /** Requests currently in flight. Guarded by {@code this}. */
+    private final List<Attempt> inFlight = new ArrayList<>();
+    /** Number of requests sent so far. Guarded by {@code this}. */
+    private int attemptCount;
+    /** Pending hedged request. Guarded by {@code this}. */
+    private ScheduledFuture<?> hedge;
+    /**
+     * Retryable response of the last failed request. Returned if there are no retries left.
+     * Guarded by {@code this}.
+     */
+    private HttpResponse failedResponse;
+    /** Exception of the last failed request. Guarded by {@code this}. */
+    private Exception failure;
+
+    /**
+     * Create a new hedged request.
+     *
+     * @param request Request to send.
+     */
+    private Call(HttpRequest request) {
+      this.request = request;
+    }
+
+    /** Send a request, and schedule a hedge in case it is slow. */
+    private void send() {
+      final Attempt attempt;
+      synchronized (this) {
+        if (isDone()) {
+          return;
+        }
+        attemptCount++;
+        attempt = new Attempt();
+        inFlight.add(attempt);
+      }
+      attempt.send();
+      scheduleHedge();
+    }
+
+    /** Schedule a hedged request after the endpoint's 95th percentile latency. */
+    private void scheduleHedge() {
+      final long delay = retryPolicy.getHedgeDelay(endpoint);
+      if (delay == RetryPolicy.NO_HEDGE) {
+        return;
+      }
+
+      synchronized (this) {
+        if (isDone() || attemptCount >= retryPolicy.getMaxAttempts()) {
+          return;
+        }
+        if (hedge != null) {
+          hedge.cancel(false);
+        }
+        hedge = SCHEDULER.schedule(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (Call.this) {
+              if (isDone() || attemptCount >= retryPolicy.getMaxAttempts()
+                  || !retryPolicy.tryAcquireRetry(endpoint)) {
+                return;
+              }
+            }
+            send();
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /**
+     * Handle the outcome of one of the requests.
+     *
+     * @param attempt  Request that completed.
+     * @param e        Exception, if the request failed.
+     * @param response Response, if the request didn't fail.
+     */
+    private void onAttemptCompleted(Attempt attempt, Exception e, HttpResponse response) {
+      final List<Attempt> losers;
+      final ScheduledFuture<?> hedge;
+      HttpResponse staleResponse = null;
+      final boolean retry;
+
+      synchronized (this) {
+        inFlight.remove(attempt);
+        if (isDone()) {
+          // Another request already won, or the call has been cancelled.
+          if (response != null) {
+            response.close();
+          }
+          return;
+        }
+
+        if ((e == null && !RetryPolicy.isRetryable(response.getCode()))
+            || (e != null && !RetryPolicy.isRetryable(e))) {
+          // Usable response, or an error that can't be fixed by retrying: this request wins.
+          losers = new ArrayList<>(inFlight);
+          inFlight.clear();
+          hedge = this.hedge;
+          retry = false;
+        } else {
+          // Retryable failure: wait for the other requests, or retry if there are none left.
+          if (response != null) {
+            staleResponse = failedResponse;
+            failedResponse = response;
+            failure = null;
+          } else {
+            failure = e;
+          }
+          if (!inFlight.isEmpty()) {
+            closeQuietly(staleResponse);
+            return;
+          }
+          retry = attemptCount < retryPolicy.getMaxAttempts()
+              && retryPolicy.tryAcquireRetry(endpoint);
+          if (retry) {
+            staleResponse = failedResponse;
+            failedResponse = null;
+          } else {
+            e = failure;
+            response = failedResponse;
+          }
+          losers = new ArrayList<>();
+          hedge = null;
+        }
+      }
+
+      closeQuietly(staleResponse);
+      if (retry) {
+        send();
+        return;
+      }
+      cancelAll(losers, hedge);
+      if (response != null) {
+        if (!setComplete(response)) {
+          response.close();
+        }
+      } else {
+        setComplete(e);
+      }
+    }
+
+    @Override
+    public boolean cancel() {
+      final boolean cancelled = super.cancel();
+      final List<Attempt> attempts;
+      final ScheduledFuture<?> hedge;
+      final HttpResponse failedResponse;
+      synchronized (this) {
+        attempts = new ArrayList<>(inFlight);
+        inFlight.clear();
+        hedge = this.hedge;
+        failedResponse = this.failedResponse;
+        this.failedResponse = null;
+      }
+      cancelAll(attempts, hedge);
+      closeQuietly(failedResponse);
+      return cancelled;
+    }
+
+    /**
+     * Cancel requests that are no longer needed.
+     *
+     * @param attempts Requests still in flight.
+     * @param hedge    Pending hedged request. May be null.
+     */
+    private void cancelAll(List<Attempt> attempts, ScheduledFuture<?> hedge) {
+      if (hedge != null) {
+        hedge.cancel(false);
+      }
+      for (Attempt attempt : attempts) {
+        attempt.cancel();
+      }
+    }
+
+    /**
+     * Close a response that won't be returned.
+     *
+     * @param response Response. May be null.
+     */
+    private void closeQuietly(HttpResponse response) {
+      if (response != null) {
+        response.close();
+      }
+    }
+
+    /** A single request sent for this call. */
+    private class Attempt implements FutureCallback<HttpResponse> {
+      /**
+       * Time the request was passed to the transport at. Used as the time it was sent if the
+       * transport didn't record it. (milliseconds, {@link SystemClock#elapsedRealtime()})
+       */
+      private long startTime;
+      /** Future of the response. */
+      private Future<HttpResponse> future;
+
+      /** Send the request. */
+      private void send() {
+        startTime = SystemClock.elapsedRealtime();
+        final Future<HttpResponse> future = transport.execute(request);
+        synchronized (this) {
+          this.future = future;
+        }
+        future.setCallback(this);
+      }
+
+      /**
+       * Cancel the request. Its latency isn't recorded: it may not even have been sent yet, e.g. if
+       * it was waiting for the rate limiter.
+       */
+      private void cancel() {
+        final Future<HttpResponse> future;
+        synchronized (this) {
+          future = this.future;
+        }
+        if (future != null) {
+          future.cancel();
+        }
+      }
+
+      @Override
+      public void onCompleted(Exception e, HttpResponse response) {
+        if (e == null) {
+          retryPolicy.recordLatency(endpoint,
+              SystemClock.elapsedRealtime() - response.getSentTime(startTime));
+        }
+        onAttemptCompleted(this, e, response);
+      }
+    }
+  }
+  //endregion
+}
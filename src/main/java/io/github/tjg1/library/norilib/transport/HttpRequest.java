@@ -0,0 +1,203 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** HTTP GET request sent using a {@link Transport}. */
+public class HttpRequest {
+
+  //region Constants
+  /** Default connection and read timeout, in milliseconds. */
+  public static final int DEFAULT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+  /** Characters used by the Base64 encoding. */
+  private static final char[] BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  //endregion
+
+  //region Instance fields
+  /** Request URL. */
+  private final String url;
+  /** Request headers, by name. */
+  private final Map<String, String> headers = new LinkedHashMap<>();
+  /** Connection and read timeout, in milliseconds. */
+  private int timeout = DEFAULT_TIMEOUT;
+  /** True if HTTP redirects should be followed. */
+  private boolean followRedirects = true;
+  /** True if the transport's response cache may be used. */
+  private boolean useCaches = true;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new GET request.
+   *
+   * @param url Request URL.
+   */
+  public HttpRequest(String url) {
+    this.url = url;
+  }
+  //endregion
+
+  //region Getters & Setters
+  /**
+   * Get the request URL.
+   *
+   * @return Request URL.
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Set a request header, replacing any previous value.
+   *
+   * @param name  Header name.
+   * @param value Header value.
+   * @return This request. Allows chaining setters.
+   */
+  public HttpRequest setHeader(String name, String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  /**
+   * Get the value of a request header.
+   *
+   * @param name Header name.
+   * @return Header value. Null if the header isn't set.
+   */
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+
+  /**
+   * Get all request headers.
+   *
+   * @return Read-only map of header values, by header name.
+   */
+  public Map<String, String> getHeaders() {
+    return Collections.unmodifiableMap(headers);
+  }
+
+  /**
+   * Set the User-Agent header.
+   *
+   * @param userAgent User agent string.
+   * @return This request. Allows chaining setters.
+   */
+  public HttpRequest setUserAgent(String userAgent) {
+    return setHeader("User-Agent", userAgent);
+  }
+
+  /**
+   * Authenticate the request using HTTP Basic authentication.
+   *
+   * @param username Username.
+   * @param password Password.
+   * @return This request. Allows chaining setters.
+   */
+  public HttpRequest setBasicAuthentication(String username, String password) {
+    final byte[] credentials = (username + ":" + password).getBytes(Charset.forName("UTF-8"));
+    return setHeader("Authorization", "Basic " + base64(credentials));
+  }
+
+  /**
+   * Set the connection and read timeout.
+   *
+   * @param timeout Timeout, in milliseconds.
+   * @return This request. Allows chaining setters.
+   */
+  public HttpRequest setTimeout(int timeout) {
+    this.timeout = timeout;
+    return this;
+  }
+
+  /**
+   * Get the connection and read timeout.
+   *
+   * @return Timeout, in milliseconds.
+   */
+  public int getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Set whether HTTP redirects should be followed.
+   *
+   * @param followRedirects True to follow redirects.
+   * @return This request. Allows chaining setters.
+   */
+  public HttpRequest setFollowRedirects(boolean followRedirects) {
+    this.followRedirects = followRedirects;
+    return this;
+  }
+
+  /**
+   * Check if HTTP redirects should be followed.
+   *
+   * @return True to follow redirects.
+   */
+  public boolean isFollowRedirects() {
+    return followRedirects;
+  }
+
+  /**
+   * Set whether the transport's response cache may be used.
+   *
+   * @param useCaches False to always fetch the response from the server.
+   * @return This request. Allows chaining setters.
+   */
+  public HttpRequest setUseCaches(boolean useCaches) {
+    this.useCaches = useCaches;
+    return this;
+  }
+
+  /**
+   * Check if the transport's response cache may be used.
+   *
+   * @return False to always fetch the response from the server.
+   */
+  public boolean isUseCaches() {
+    return useCaches;
+  }
+  //endregion
+
+  //region Base64 encoding
+  /**
+   * Encode bytes using Base64, without line breaks.
+   * android.util.Base64 isn't available on a plain JVM, and java.util.Base64 isn't available on
+   * older Android versions.
+   *
+   * @param data Bytes to encode.
+   * @return Base64-encoded string.
+   */
+  private static String base64(byte[] data) {
+    final StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+    for (int i = 0; i < data.length; i += 3) {
+      // Pack up to 3 bytes into 24 bits, then output them as 4 groups of 6 bits.
+      final int remaining = data.length - i;
+      int bits = (data[i] & 0xff) << 16;
+      if (remaining > 1) {
+        bits |= (data[i + 1] & 0xff) << 8;
+      }
+      if (remaining > 2) {
+        bits |= data[i + 2] & 0xff;
+      }
+      sb.append(BASE64_ALPHABET[(bits >> 18) & 0x3f]);
+      sb.append(BASE64_ALPHABET[(bits >> 12) & 0x3f]);
+      sb.append(remaining > 1 ? BASE64_ALPHABET[(bits >> 6) & 0x3f] : '=');
+      sb.append(remaining > 2 ? BASE64_ALPHABET[bits & 0x3f] : '=');
+    }
+    return sb.toString();
+  }
+  //endregion
+}
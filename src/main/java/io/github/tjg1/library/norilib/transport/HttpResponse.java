@@ -0,0 +1,118 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * HTTP response received by a {@link Transport}.
+ * The body is streamed: it can be read while it is still being downloaded.
+ */
+public abstract class HttpResponse implements Closeable {
+
+  /** Format of HTTP dates. (<code>Sun, 25 Sep 2016 18:21:03 GMT</code>) */
+  private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+  /** Value of {@link #sentTime} until the transport sets it. */
+  private static final long UNKNOWN_SENT_TIME = -1;
+
+  /** Time the request was sent at. Excludes time spent waiting to be sent, e.g. for a rate limit. */
+  private volatile long sentTime = UNKNOWN_SENT_TIME;
+
+  /**
+   * Get the HTTP status code.
+   *
+   * @return Status code.
+   */
+  public abstract int getCode();
+
+  /**
+   * Get the value of a response header.
+   *
+   * @param name Header name. Case-insensitive.
+   * @return Header value. Null if the server didn't send the header.
+   */
+  public abstract String getHeader(String name);
+
+  /**
+   * Get the charset of the response body.
+   *
+   * @return Charset name from the Content-Type header. Null if the server didn't send one.
+   */
+  public abstract String getCharset();
+
+  /**
+   * Get the response body.
+   * Reads block until more data has been received from the server.
+   *
+   * @return Stream of the response body.
+   */
+  public abstract InputStream getBody();
+
+  /**
+   * Get the time the server asked to wait before retrying the request.
+   *
+   * @return Milliseconds, from the Retry-After header. {@link HttpStatusException#NO_RETRY_AFTER}
+   * if the header is missing or invalid.
+   */
+  public long getRetryAfter() {
+    final String retryAfter = getHeader("Retry-After");
+    if (retryAfter == null) {
+      return HttpStatusException.NO_RETRY_AFTER;
+    }
+
+    try {
+      // Delay in seconds.
+      return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+    } catch (NumberFormatException ignored) {
+      // Not a delay, try parsing an HTTP date instead.
+    }
+    final SimpleDateFormat dateFormat = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return Math.max(0, dateFormat.parse(retryAfter.trim()).getTime() - System.currentTimeMillis());
+    } catch (ParseException e) {
+      return HttpStatusException.NO_RETRY_AFTER;
+    }
+  }
+
+  /**
+   * Get the time the request was actually sent at, after any time spent waiting to be sent.
+   * Use this to measure the latency of the server, rather than that of the whole request.
+   *
+   * @param defaultTime Time to return if the transport didn't record when the request was sent.
+   * @return Time, in milliseconds ({@link android.os.SystemClock#elapsedRealtime()}).
+   */
+  public long getSentTime(long defaultTime) {
+    final long sentTime = this.sentTime;
+    return (sentTime != UNKNOWN_SENT_TIME) ? sentTime : defaultTime;
+  }
+
+  /**
+   * Set the time the request was actually sent at.
+   *
+   * @param sentTime Time, in milliseconds ({@link android.os.SystemClock#elapsedRealtime()}).
+   */
+  public void setSentTime(long sentTime) {
+    this.sentTime = sentTime;
+  }
+
+  /** Close the response body, aborting the download if it hasn't finished. */
+  @Override
+  public void close() {
+    try {
+      getBody().close();
+    } catch (IOException ignored) {
+      // Nothing left to clean up.
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import java.io.IOException;
+
+/** Thrown when the server responds to a request with an HTTP error status code. */
+public class HttpStatusException extends IOException {
+
+  //region Constants
+  /** Serialization version. */
+  private static final long serialVersionUID = 1L;
+  /** Value of {@link #getRetryAfter()} if the server didn't say when to retry the request. */
+  public static final long NO_RETRY_AFTER = -1;
+  //endregion
+
+  //region Instance fields
+  /** HTTP status code. */
+  private final int code;
+  /** Milliseconds to wait before retrying the request, from the Retry-After header. */
+  private final long retryAfter;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new exception.
+   *
+   * @param code       HTTP status code.
+   * @param retryAfter Milliseconds to wait before retrying the request. {@link #NO_RETRY_AFTER} if
+   *                   the server didn't send a Retry-After header.
+   */
+  public HttpStatusException(int code, long retryAfter) {
+    super("HTTP error " + code);
+    this.code = code;
+    this.retryAfter = retryAfter;
+  }
+  //endregion
+
+  //region Getters
+  /**
+   * Get the HTTP status code.
+   *
+   * @return Status code. (e.g. 429 Too Many Requests)
+   */
+  public int getCode() {
+    return code;
+  }
+
+  /**
+   * Get the time to wait before retrying the request, as requested by the server.
+   *
+   * @return Milliseconds. {@link #NO_RETRY_AFTER} if the server didn't send a Retry-After header.
+   */
+  public long getRetryAfter() {
+    return retryAfter;
+  }
+  //endregion
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import android.content.Context;
+
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.ion.HeadersResponse;
+import com.koushikdutta.ion.Ion;
+import com.koushikdutta.ion.Response;
+import com.koushikdutta.ion.builder.Builders;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
+
+import io.github.tjg1.library.norilib.util.DataEmitterInputStream;
+
+/** {@link Transport} sending requests using Ion. */
+public class IonTransport implements Transport {
+
+  //region Instance fields
+  /** Android context. */
+  private final Context context;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new Ion transport.
+   *
+   * @param context Android {@link Context}.
+   */
+  public IonTransport(Context context) {
+    this.context = context;
+  }
+  //endregion
+
+  //region Transport methods
+  @Override
+  public Future<HttpResponse> execute(HttpRequest request) {
+    final Builders.Any.B builder = Ion.with(context)
+        .load(request.getUrl())
+        .setTimeout(request.getTimeout())
+        .followRedirect(request.isFollowRedirects());
+    if (!request.isUseCaches()) {
+      builder.noCache();
+    }
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      builder.setHeader(header.getKey(), header.getValue());
+    }
+
+    // The response has to be handled on the reactor thread, so the body stream can attach itself
+    // to the DataEmitter before any data is lost.
+    final Future<Response<DataEmitter>> responseFuture = builder.setHandler(null)
+        .asDataEmitter()
+        .withResponse();
+    final SimpleFuture<HttpResponse> future = new SimpleFuture<HttpResponse>() {
+      @Override
+      public boolean cancel() {
+        responseFuture.cancel();
+        return super.cancel();
+      }
+    };
+
+    responseFuture.setCallback(new FutureCallback<Response<DataEmitter>>() {
+      @Override
+      public void onCompleted(Exception e, Response<DataEmitter> response) {
+        if (e == null) {
+          e = response.getException();
+        }
+        if (e != null) {
+          future.setComplete(e);
+          return;
+        }
+
+        final HttpResponse httpResponse = new IonResponse(response.getHeaders(), response.getResult());
+        if (!future.setComplete(httpResponse)) {
+          // Cancelled while the headers were being received.
+          httpResponse.close();
+        }
+      }
+    });
+
+    return future;
+  }
+  //endregion
+
+  //region Ion response
+  /** {@link HttpResponse} streaming the body from an Ion {@link DataEmitter}. */
+  private static class IonResponse extends HttpResponse {
+    /** Response status and headers. */
+    private final HeadersResponse headers;
+    /** Charset of the response body. */
+    private final String charset;
+    /** Stream of the response body. */
+    private final InputStream body;
+
+    /**
+     * Create a new response. Must be called on the emitter's reactor thread.
+     *
+     * @param headers Response status and headers.
+     * @param emitter Emitter supplying the response body. May be null for empty responses.
+     */
+    private IonResponse(HeadersResponse headers, DataEmitter emitter) {
+      this.headers = headers;
+      this.charset = (emitter != null) ? emitter.charset() : null;
+      this.body = (emitter != null) ?
+          new DataEmitterInputStream(emitter) : new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public int getCode() {
+      return headers.code();
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return headers.getHeaders().get(name);
+    }
+
+    @Override
+    public String getCharset() {
+      return charset;
+    }
+
+    @Override
+    public InputStream getBody() {
+      return body;
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,250 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import android.os.SystemClock;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * {@link Transport} sending requests through a {@link RateLimiter}.
+ * <p/>
+ * Requests wait for a token from the endpoint's bucket before being sent. Responses with status
+ * 429 Too Many Requests or 503 Service Unavailable block the whole endpoint and are retried after
+ * a jittered exponential backoff, or after the delay from the Retry-After header if it is longer.
+ * Once the retries run out, the last response is returned as it is.
+ */
+public class RateLimitedTransport implements Transport {
+
+  //region Constants
+  /** Default number of times a throttled request is retried. */
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  /** Backoff before the first retry, in milliseconds. Doubled on each following retry. */
+  private static final long BASE_BACKOFF = 500;
+  /** Longest time to wait before retrying a request. Longer Retry-After delays aren't waited out. */
+  private static final long MAX_BACKOFF = 60000;
+  /** HTTP status code of a Too Many Requests response. */
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+  /** HTTP status code of a Service Unavailable response. */
+  private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+  /** Thread delaying requests until they can be sent. */
+  private static final ScheduledExecutorService SCHEDULER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, "norilib-rate-limiter");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  /** Source of backoff jitter. */
+  private static final Random RANDOM = new Random();
+  //endregion
+
+  //region Instance fields
+  /** Transport used to send the requests. */
+  private final Transport transport;
+  /** Rate limiter the requests go through. */
+  private final RateLimiter rateLimiter;
+  /** Settings of the client sending the requests. */
+  private final SearchClient.Settings settings;
+  /** Number of times a throttled request is retried. */
+  private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new rate limited transport.
+   * Use {@link RateLimiter#wrap(Transport, SearchClient.Settings)} instead of calling this directly.
+   *
+   * @param transport   Transport used to send the requests.
+   * @param rateLimiter Rate limiter the requests go through.
+   * @param settings    Settings of the client sending the requests.
+   */
+  public RateLimitedTransport(Transport transport, RateLimiter rateLimiter,
+                              SearchClient.Settings settings) {
+    this.transport = transport;
+    this.rateLimiter = rateLimiter;
+    this.settings = settings;
+  }
+  //endregion
+
+  //region Getters & Setters
+  /**
+   * Set the number of times a throttled request is retried.
+   *
+   * @param maxRetries Number of retries. 0 to return throttled responses right away.
+   * @return This transport. Allows chaining setters.
+   */
+  public RateLimitedTransport setMaxRetries(int maxRetries) {
+    this.maxRetries = maxRetries;
+    return this;
+  }
+
+  /**
+   * Get the number of times a throttled request is retried.
+   *
+   * @return Number of retries.
+   */
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+  //endregion
+
+  //region Transport methods
+  @Override
+  public Future<HttpResponse> execute(HttpRequest request) {
+    final Call call = new Call(request);
+    call.schedule(rateLimiter.acquire(settings));
+    return call;
+  }
+
+  /**
+   * Get the time to wait before retrying a throttled request.
+   *
+   * @param attempt    Number of retries so far.
+   * @param retryAfter Delay from the Retry-After header. {@link HttpStatusException#NO_RETRY_AFTER}
+   *                   if the server didn't send one.
+   * @return Milliseconds to wait.
+   */
+  private static long getRetryDelay(int attempt, long retryAfter) {
+    final long backoff = Math.max(retryAfter, Math.min(MAX_BACKOFF, BASE_BACKOFF << attempt));
+    // Add up to 50% jitter, so that clients throttled at the same time don't all retry at once.
+    return backoff + (long) (RANDOM.nextDouble() * backoff / 2);
+  }
+  //endregion
+
+  //region Rate limited request
+  /** Future sending a single request, once the rate limiter allows it. */
+  private class Call extends SimpleFuture<HttpResponse> implements Runnable {
+    /** Request to send. */
+    private final HttpRequest request;
+    /** Number of retries so far. */
+    private int attempt;
+    /** Pending delayed send. Guarded by {@code this}. */
+    private ScheduledFuture<?> scheduled;
+    /** Request currently in flight. Guarded by {@code this}. */
+    private Future<HttpResponse> inFlight;
+
+    /**
+     * Create a new call.
+     *
+     * @param request Request to send.
+     */
+    private Call(HttpRequest request) {
+      this.request = request;
+    }
+
+    /**
+     * Send the request after a delay.
+     *
+     * @param delay Milliseconds to wait. The request is sent right away if 0.
+     */
+    private void schedule(long delay) {
+      if (delay <= 0) {
+        run();
+        return;
+      }
+      synchronized (this) {
+        if (!isCancelled()) {
+          scheduled = SCHEDULER.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      // The endpoint may have been blocked while this request was waiting for its token.
+      final long blockedFor = rateLimiter.getBlockedFor(settings.getEndpoint());
+      if (blockedFor > MAX_BACKOFF) {
+        // Fail right away instead of waiting for a long Retry-After delay to pass.
+        setComplete(new HttpStatusException(HTTP_TOO_MANY_REQUESTS, blockedFor));
+        return;
+      } else if (blockedFor > 0) {
+        schedule(rateLimiter.acquire(settings));
+        return;
+      }
+
+      final Future<HttpResponse> responseFuture;
+      final long sentTime = SystemClock.elapsedRealtime();
+      synchronized (this) {
+        if (isCancelled()) {
+          return;
+        }
+        responseFuture = inFlight = transport.execute(request);
+      }
+      responseFuture.setCallback(new FutureCallback<HttpResponse>() {
+        @Override
+        public void onCompleted(Exception e, HttpResponse response) {
+          if (e != null) {
+            setComplete(e);
+            return;
+          }
+          // Latency is measured from here, not from when the request started waiting for a token.
+          response.setSentTime(sentTime);
+          if (isThrottled(response)) {
+            final long retryAfter = response.getRetryAfter();
+            final long delay = getRetryDelay(attempt, retryAfter);
+            rateLimiter.backOff(settings.getEndpoint(), delay);
+            if (attempt < maxRetries && retryAfter <= MAX_BACKOFF) {
+              response.close();
+              attempt++;
+              schedule(rateLimiter.acquire(settings));
+              return;
+            }
+          }
+          if (!setComplete(response)) {
+            // Cancelled while the response was being received.
+            response.close();
+          }
+        }
+      });
+    }
+
+    /**
+     * Check if the server asked the client to slow down.
+     *
+     * @param response Response to check.
+     * @return True if the request should be retried later.
+     */
+    private boolean isThrottled(HttpResponse response) {
+      final int code = response.getCode();
+      return code == HTTP_TOO_MANY_REQUESTS || code == HTTP_SERVICE_UNAVAILABLE;
+    }
+
+    @Override
+    public boolean cancel() {
+      // Cancel first, so that no new sends are scheduled after the fields are read.
+      final boolean cancelled = super.cancel();
+      final ScheduledFuture<?> scheduled;
+      final Future<HttpResponse> inFlight;
+      synchronized (this) {
+        scheduled = this.scheduled;
+        inFlight = this.inFlight;
+      }
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+      if (inFlight != null) {
+        inFlight.cancel();
+      }
+      return cancelled;
+    }
+  }
+  //endregion
+}
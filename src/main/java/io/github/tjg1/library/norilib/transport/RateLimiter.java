@@ -0,0 +1,276 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import android.os.SystemClock;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * Limits the rate of requests sent to each API endpoint using token buckets, so that prefetching
+ * (or several clients searching the same service) doesn't get the app throttled or banned.
+ * <p/>
+ * Requests are keyed by {@link SearchClient.Settings#getEndpoint()}, so all clients for the same
+ * service share a single bucket. The rate and burst size depend on the {@link
+ * SearchClient.Settings.APIType}. When a server responds with 429 Too Many Requests or 503 Service
+ * Unavailable, {@link #backOff(String, long)} stops all requests to the endpoint for a while.
+ */
+public class RateLimiter {
+
+  //region Constants
+  /** Limit used for API types without a limit of their own. */
+  private static final Limit DEFAULT_LIMIT = new Limit(2, 4);
+  /** Limiter shared by all {@link SearchClient}s. */
+  private static final RateLimiter DEFAULT = new RateLimiter();
+  //endregion
+
+  //region Instance fields
+  /** Limits for each API type. Guarded by {@code this}. */
+  private final Map<SearchClient.Settings.APIType, Limit> limits =
+      new EnumMap<>(SearchClient.Settings.APIType.class);
+  /** Token buckets, by API endpoint. Guarded by {@code this}. */
+  private final Map<String, Bucket> buckets = new HashMap<>();
+  //endregion
+
+  //region Constructors
+  /** Create a new rate limiter, with the default limits for each API type. */
+  public RateLimiter() {
+    // Danbooru allows 10 read requests per second.
+    limits.put(SearchClient.Settings.APIType.DANBOARD, new Limit(5, 10));
+    // E621 has a hard limit of 2 requests per second, and recommends staying at 1.
+    limits.put(SearchClient.Settings.APIType.E621, new Limit(1, 2));
+    // Flickr allows 3600 requests per hour for each API key.
+    limits.put(SearchClient.Settings.APIType.FLICKR, new Limit(1, 5));
+    limits.put(SearchClient.Settings.APIType.FLICKR_USER, new Limit(1, 5));
+  }
+
+  /**
+   * Get the rate limiter shared by all {@link SearchClient}s.
+   *
+   * @return Shared rate limiter.
+   */
+  public static RateLimiter getDefault() {
+    return DEFAULT;
+  }
+  //endregion
+
+  //region Limits
+  /**
+   * Set the rate limit for an API type.
+   *
+   * @param apiType           API type.
+   * @param requestsPerSecond Sustained number of requests per second.
+   * @param burst             Number of requests that can be sent at once after a period of
+   *                          inactivity.
+   * @return This rate limiter. Allows chaining setters.
+   */
+  public synchronized RateLimiter setLimit(SearchClient.Settings.APIType apiType,
+                                           double requestsPerSecond, int burst) {
+    if (requestsPerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("Rate limit must allow at least one request.");
+    }
+    limits.put(apiType, new Limit(requestsPerSecond, burst));
+    return this;
+  }
+
+  /**
+   * Get the sustained number of requests per second allowed for an API type.
+   *
+   * @param apiType API type.
+   * @return Requests per second.
+   */
+  public synchronized double getRequestsPerSecond(SearchClient.Settings.APIType apiType) {
+    return getLimit(apiType).requestsPerSecond;
+  }
+
+  /**
+   * Get the number of requests that can be sent at once for an API type.
+   *
+   * @param apiType API type.
+   * @return Burst size.
+   */
+  public synchronized int getBurst(SearchClient.Settings.APIType apiType) {
+    return getLimit(apiType).burst;
+  }
+
+  /**
+   * Get the limit for an API type.
+   *
+   * @param apiType API type.
+   * @return Limit set for the API type, or the default limit.
+   */
+  private Limit getLimit(SearchClient.Settings.APIType apiType) {
+    final Limit limit = limits.get(apiType);
+    return (limit != null) ? limit : DEFAULT_LIMIT;
+  }
+  //endregion
+
+  //region Rate limiting
+  /**
+   * Take a token from an endpoint's bucket.
+   * If the bucket is empty, the token is borrowed from the future and the caller has to wait
+   * before sending the request.
+   *
+   * @param settings Settings of the client sending the request.
+   * @return Milliseconds to wait before sending the request. 0 to send it now.
+   */
+  public synchronized long acquire(SearchClient.Settings settings) {
+    final long now = SystemClock.elapsedRealtime();
+    final Limit limit = getLimit(settings.getApiType());
+    return getBucket(settings.getEndpoint(), now, limit.burst).acquire(now, limit);
+  }
+
+  /**
+   * Get the time left until requests can be sent to an endpoint again, after
+   * {@link #backOff(String, long)}. Requests that were waiting for a token when the endpoint was
+   * blocked should {@link #acquire(SearchClient.Settings)} a new one.
+   *
+   * @param endpoint API endpoint URL.
+   * @return Milliseconds until the endpoint is unblocked. 0 if it isn't blocked.
+   */
+  public synchronized long getBlockedFor(String endpoint) {
+    final Bucket bucket = buckets.get(getKey(endpoint));
+    return (bucket != null) ?
+        Math.max(0, bucket.blockedUntil - SystemClock.elapsedRealtime()) : 0;
+  }
+
+  /**
+   * Stop sending requests to an endpoint for a while, after it asked the client to slow down.
+   *
+   * @param endpoint API endpoint URL.
+   * @param delay    Milliseconds to wait before sending the next request.
+   */
+  public synchronized void backOff(String endpoint, long delay) {
+    final long now = SystemClock.elapsedRealtime();
+    getBucket(endpoint, now, 1).backOff(now, delay);
+  }
+
+  /**
+   * Wrap a transport, so that requests sent using it are rate limited and retried when the server
+   * asks the client to slow down.
+   *
+   * @param transport Transport used to send the requests.
+   * @param settings  Settings of the client sending the requests.
+   * @return Rate limited transport.
+   */
+  public Transport wrap(Transport transport, SearchClient.Settings settings) {
+    return new RateLimitedTransport(transport, this, settings);
+  }
+
+  /** Forget the state of all buckets. Requests can be sent at full burst again. */
+  public synchronized void reset() {
+    buckets.clear();
+  }
+
+  /**
+   * Get the token bucket for an endpoint.
+   *
+   * @param endpoint API endpoint URL.
+   * @param now      Current time.
+   * @param tokens   Number of tokens to create the bucket with, if it doesn't exist yet.
+   * @return Bucket.
+   */
+  private Bucket getBucket(String endpoint, long now, int tokens) {
+    final String key = getKey(endpoint);
+    Bucket bucket = buckets.get(key);
+    if (bucket == null) {
+      bucket = new Bucket(tokens, now);
+      buckets.put(key, bucket);
+    }
+    return bucket;
+  }
+
+  /**
+   * Get the key of an endpoint's bucket.
+   *
+   * @param endpoint API endpoint URL. May be null.
+   * @return Bucket key.
+   */
+  private static String getKey(String endpoint) {
+    return (endpoint != null) ? endpoint : "";
+  }
+  //endregion
+
+  //region Limits and buckets
+  /** Rate limit of a single API type. */
+  private static final class Limit {
+    /** Sustained number of requests per second. */
+    private final double requestsPerSecond;
+    /** Maximum number of tokens in the bucket. */
+    private final int burst;
+
+    /**
+     * Create a new rate limit.
+     *
+     * @param requestsPerSecond Sustained number of requests per second.
+     * @param burst             Maximum number of tokens in the bucket.
+     */
+    private Limit(double requestsPerSecond, int burst) {
+      this.requestsPerSecond = requestsPerSecond;
+      this.burst = burst;
+    }
+  }
+
+  /** Token bucket of a single API endpoint. Guarded by the enclosing RateLimiter. */
+  private static final class Bucket {
+    /** Number of tokens left. Negative if tokens have been borrowed by waiting requests. */
+    private double tokens;
+    /** Time the bucket was last refilled at. (milliseconds, {@link SystemClock#elapsedRealtime()}) */
+    private long lastRefill;
+    /** No requests can be sent before this time. */
+    private long blockedUntil;
+
+    /**
+     * Create a new bucket.
+     *
+     * @param tokens Initial number of tokens.
+     * @param now    Current time.
+     */
+    private Bucket(double tokens, long now) {
+      this.tokens = tokens;
+      this.lastRefill = now;
+    }
+
+    /**
+     * Take a token from the bucket.
+     *
+     * @param now   Current time.
+     * @param limit Rate limit of the endpoint.
+     * @return Milliseconds to wait before sending the request.
+     */
+    private long acquire(long now, Limit limit) {
+      if (now > lastRefill) {
+        tokens = Math.min(limit.burst,
+            tokens + (now - lastRefill) * limit.requestsPerSecond / 1000);
+        lastRefill = now;
+      }
+      tokens -= 1;
+      final long wait = (tokens >= 0) ? 0 :
+          (long) Math.ceil(-tokens * 1000 / limit.requestsPerSecond);
+      // The bucket isn't refilled while blocked, so the wait starts when the block ends.
+      return Math.max(0, blockedUntil - now) + wait;
+    }
+
+    /**
+     * Block the bucket for a while. Requests resume at the sustained rate once the block ends.
+     *
+     * @param now   Current time.
+     * @param delay Milliseconds to block the bucket for.
+     */
+    private void backOff(long now, long delay) {
+      // Tokens borrowed by waiting requests are forfeited: they acquire new ones when they wake up.
+      tokens = 1;
+      blockedUntil = Math.max(blockedUntil, now + delay);
+      lastRefill = blockedUntil;
+    }
+  }
+  //endregion
+}
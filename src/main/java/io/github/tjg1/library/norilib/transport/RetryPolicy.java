@@ -0,0 +1,296 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import io.github.tjg1.library.norilib.clients.SearchClient;
+
+/**
+ * Decides when search requests are hedged or retried by a {@link HedgingTransport}.
+ * <p/>
+ * The latency of recent responses is tracked for each API endpoint. Once a request takes longer
+ * than the endpoint's 95th percentile, an identical request is sent and whichever answers first is
+ * used. Network errors and 5xx responses are retried. 4xx responses are never retried. Parse errors
+ * happen after the transport has returned, so they aren't retried either.
+ * <p/>
+ * Hedges and retries both spend the endpoint's retry budget. Every request adds a fraction of a
+ * credit to it, so extra requests stay a small share of the traffic even when a server is failing.
+ */
+public class RetryPolicy {
+
+  //region Constants
+  /** Value returned by {@link #getHedgeDelay(String)} if requests to the endpoint aren't hedged. */
+  public static final long NO_HEDGE = -1;
+  /** Default maximum number of requests sent for a single search, including the first one. */
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+  /** Default number of retry credits earned by each request. */
+  public static final double DEFAULT_BUDGET_RATIO = 0.1;
+  /** Maximum number of retry credits an endpoint can save up. */
+  private static final double MAX_BUDGET = 10;
+  /** Number of recent latencies used to estimate the 95th percentile. */
+  private static final int LATENCY_SAMPLES = 100;
+  /** Minimum number of latencies needed before requests are hedged. */
+  private static final int MIN_LATENCY_SAMPLES = 20;
+  /** Percentile of the latency after which requests are hedged. */
+  private static final double HEDGE_PERCENTILE = 0.95;
+  /** Retryable 5xx status codes. 503 Service Unavailable is left to the {@link RateLimiter}. */
+  private static final int[] RETRYABLE_STATUS_CODES = {500, 502, 504};
+  /** Policy shared by all {@link SearchClient}s. */
+  private static final RetryPolicy DEFAULT = new RetryPolicy();
+  //endregion
+
+  //region Instance fields
+  /** Latency statistics and retry budgets, by API endpoint. Guarded by {@code this}. */
+  private final Map<String, Endpoint> endpoints = new HashMap<>();
+  /** Maximum number of requests sent for a single search. Guarded by {@code this}. */
+  private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+  /** Number of retry credits earned by each request. Guarded by {@code this}. */
+  private double budgetRatio = DEFAULT_BUDGET_RATIO;
+  /** True if slow requests are hedged. Guarded by {@code this}. */
+  private boolean hedging = true;
+  //endregion
+
+  //region Constructors
+  /**
+   * Get the retry policy shared by all {@link SearchClient}s.
+   *
+   * @return Shared retry policy.
+   */
+  public static RetryPolicy getDefault() {
+    return DEFAULT;
+  }
+  //endregion
+
+  //region Getters & Setters
+  /**
+   * Set the maximum number of requests sent for a single search, including hedges and retries.
+   *
+   * @param maxAttempts Maximum number of requests. 1 to disable hedging and retries.
+   * @return This policy. Allows chaining setters.
+   */
+  public synchronized RetryPolicy setMaxAttempts(int maxAttempts) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("At least one request has to be sent.");
+    }
+    this.maxAttempts = maxAttempts;
+    return this;
+  }
+
+  /**
+   * Get the maximum number of requests sent for a single search.
+   *
+   * @return Maximum number of requests, including hedges and retries.
+   */
+  public synchronized int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Set the number of retry credits earned by each request.
+   *
+   * @param budgetRatio Retry credits per request. (e.g. 0.1 allows one retry for every 10 requests)
+   * @return This policy. Allows chaining setters.
+   */
+  public synchronized RetryPolicy setBudgetRatio(double budgetRatio) {
+    this.budgetRatio = budgetRatio;
+    return this;
+  }
+
+  /**
+   * Get the number of retry credits earned by each request.
+   *
+   * @return Retry credits per request.
+   */
+  public synchronized double getBudgetRatio() {
+    return budgetRatio;
+  }
+
+  /**
+   * Enable or disable hedging slow requests. Failed requests are still retried.
+   *
+   * @param hedging True to send a second request once the first one is slower than usual.
+   * @return This policy. Allows chaining setters.
+   */
+  public synchronized RetryPolicy setHedging(boolean hedging) {
+    this.hedging = hedging;
+    return this;
+  }
+
+  /**
+   * Check if slow requests are hedged.
+   *
+   * @return True if hedging is enabled.
+   */
+  public synchronized boolean isHedging() {
+    return hedging;
+  }
+  //endregion
+
+  //region Retry policy
+  /**
+   * Wrap a transport, so that search requests sent using it are hedged and retried.
+   *
+   * @param transport Transport used to send the requests.
+   * @param settings  Settings of the client sending the requests.
+   * @return Hedging transport.
+   */
+  public Transport wrap(Transport transport, SearchClient.Settings settings) {
+    return new HedgingTransport(transport, this, settings.getEndpoint());
+  }
+
+  /**
+   * Get the time after which a request to an endpoint should be hedged.
+   *
+   * @param endpoint API endpoint URL.
+   * @return 95th percentile of the endpoint's recent latencies, in milliseconds. {@link #NO_HEDGE}
+   * if hedging is disabled or too few requests have completed yet.
+   */
+  public synchronized long getHedgeDelay(String endpoint) {
+    final Endpoint stats = endpoints.get(getKey(endpoint));
+    if (!hedging || maxAttempts < 2 || stats == null || stats.count < MIN_LATENCY_SAMPLES) {
+      return NO_HEDGE;
+    }
+    return stats.getPercentile(HEDGE_PERCENTILE);
+  }
+
+  /**
+   * Record the time it took an endpoint to respond to a request.
+   *
+   * @param endpoint API endpoint URL.
+   * @param latency  Milliseconds until the response headers were received. For requests cancelled
+   *                 after a hedge won, the time until they were cancelled.
+   */
+  public synchronized void recordLatency(String endpoint, long latency) {
+    getEndpoint(endpoint).addLatency(latency);
+  }
+
+  /**
+   * Add the retry credit earned by a new request to an endpoint's budget.
+   *
+   * @param endpoint API endpoint URL.
+   */
+  public synchronized void onRequest(String endpoint) {
+    final Endpoint stats = getEndpoint(endpoint);
+    stats.budget = Math.min(MAX_BUDGET, stats.budget + budgetRatio);
+  }
+
+  /**
+   * Spend a retry credit from an endpoint's budget.
+   *
+   * @param endpoint API endpoint URL.
+   * @return True if a hedge or retry can be sent, false if the budget is exhausted.
+   */
+  public synchronized boolean tryAcquireRetry(String endpoint) {
+    final Endpoint stats = getEndpoint(endpoint);
+    if (stats.budget < 1) {
+      return false;
+    }
+    stats.budget -= 1;
+    return true;
+  }
+
+  /** Forget the latency statistics and retry budgets of all endpoints. */
+  public synchronized void reset() {
+    endpoints.clear();
+  }
+
+  /**
+   * Check if a request that failed with an exception can be retried.
+   *
+   * @param e Exception returned by the transport.
+   * @return True for network errors and timeouts.
+   */
+  public static boolean isRetryable(Exception e) {
+    // HTTP errors are retried based on their status code, through the response.
+    return (e instanceof IOException && !(e instanceof HttpStatusException))
+        || e instanceof TimeoutException;
+  }
+
+  /**
+   * Check if a response with given status code can be retried.
+   *
+   * @param code HTTP status code.
+   * @return True for transient server errors. Never true for 4xx status codes.
+   */
+  public static boolean isRetryable(int code) {
+    for (int retryable : RETRYABLE_STATUS_CODES) {
+      if (code == retryable) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the statistics of an endpoint.
+   *
+   * @param endpoint API endpoint URL.
+   * @return Endpoint statistics, created if they didn't exist yet.
+   */
+  private Endpoint getEndpoint(String endpoint) {
+    final String key = getKey(endpoint);
+    Endpoint stats = endpoints.get(key);
+    if (stats == null) {
+      stats = new Endpoint();
+      endpoints.put(key, stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Get the key of an endpoint's statistics.
+   *
+   * @param endpoint API endpoint URL. May be null.
+   * @return Statistics key.
+   */
+  private static String getKey(String endpoint) {
+    return (endpoint != null) ? endpoint : "";
+  }
+  //endregion
+
+  //region Endpoint statistics
+  /** Latency statistics and retry budget of a single API endpoint. Guarded by the RetryPolicy. */
+  private static final class Endpoint {
+    /** Ring buffer of recent latencies. */
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    /** Number of latencies in the ring buffer. */
+    private int count;
+    /** Index the next latency is stored at. */
+    private int next;
+    /** Retry credits left. New endpoints start with a full budget. */
+    private double budget = MAX_BUDGET;
+
+    /**
+     * Add a latency to the ring buffer, replacing the oldest one if it is full.
+     *
+     * @param latency Latency in milliseconds.
+     */
+    private void addLatency(long latency) {
+      latencies[next] = latency;
+      next = (next + 1) % latencies.length;
+      count = Math.min(count + 1, latencies.length);
+    }
+
+    /**
+     * Get a percentile of the recent latencies.
+     *
+     * @param percentile Percentile, between 0 and 1.
+     * @return Latency in milliseconds.
+     */
+    private long getPercentile(double percentile) {
+      final long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      return sorted[Math.min(count - 1, (int) Math.ceil(percentile * count) - 1)];
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,31 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import com.koushikdutta.async.future.Future;
+
+/**
+ * HTTP client used by the {@link io.github.tjg1.library.norilib.clients.SearchClient}s to send
+ * requests.
+ * <p/>
+ * Implementations decide how connections are pooled and which protocols are used. Norilib ships
+ * with {@link IonTransport}, used by default on Android, and {@link UrlConnectionTransport}, which
+ * doesn't depend on Android and can be used to run the clients on a plain JVM.
+ */
+public interface Transport {
+  /**
+   * Send a request.
+   * The returned future is completed as soon as the response headers have been received, so the
+   * response body can be parsed while it is still being downloaded. Cancelling the future before
+   * then aborts the request.
+   *
+   * @param request Request to send.
+   * @return Future completed with the response, on a background thread. The response must be
+   * closed after use.
+   */
+  Future<HttpResponse> execute(HttpRequest request);
+}
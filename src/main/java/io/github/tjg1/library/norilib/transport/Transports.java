@@ -0,0 +1,44 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import android.content.Context;
+
+/** Chooses the {@link Transport} used by API clients that haven't been given one. */
+public abstract class Transports {
+
+  //region Static fields
+  /** Transport used by all clients. Null to pick one depending on the environment. */
+  private static volatile Transport defaultTransport;
+  //endregion
+
+  //region Default transport
+  /**
+   * Set the transport used by all clients that haven't been given one.
+   *
+   * @param transport Transport. Null to pick one depending on the environment.
+   */
+  public static void setDefault(Transport transport) {
+    defaultTransport = transport;
+  }
+
+  /**
+   * Get the transport used by clients that haven't been given one.
+   *
+   * @param context Android {@link Context}. Null when running on a plain JVM.
+   * @return The transport set using {@link #setDefault(Transport)}. Otherwise, an
+   * {@link IonTransport} if a Context is available, or an {@link UrlConnectionTransport}.
+   */
+  public static Transport getDefault(Context context) {
+    final Transport transport = defaultTransport;
+    if (transport != null) {
+      return transport;
+    }
+    return (context != null) ? new IonTransport(context) : new UrlConnectionTransport();
+  }
+  //endregion
+}
@@ -0,0 +1,177 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.transport;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link Transport} sending requests using {@link HttpURLConnection}.
+ * Doesn't depend on Android, so it can be used to run the clients on a plain JVM (e.g. for load
+ * tests). Connections are pooled by the platform's HTTP keep-alive cache.
+ */
+public class UrlConnectionTransport implements Transport {
+
+  //region Constants
+  /** Threads used to connect and wait for the response headers. */
+  private static final Executor EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+    /** Number of threads created so far. Used to name new threads. */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      final Thread thread = new Thread(runnable, "norilib-http-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  /** Status codes from this value up are errors, with the body in the error stream. */
+  private static final int HTTP_BAD_REQUEST = 400;
+  //endregion
+
+  //region Transport methods
+  @Override
+  public Future<HttpResponse> execute(final HttpRequest request) {
+    final ConnectionFuture future = new ConnectionFuture();
+
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final HttpURLConnection connection =
+              (HttpURLConnection) new URL(request.getUrl()).openConnection();
+          if (!future.setConnection(connection)) {
+            return;
+          }
+          connection.setConnectTimeout(request.getTimeout());
+          connection.setReadTimeout(request.getTimeout());
+          connection.setInstanceFollowRedirects(request.isFollowRedirects());
+          connection.setUseCaches(request.isUseCaches());
+          for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+          }
+
+          final int code = connection.getResponseCode();
+          final InputStream body = (code >= HTTP_BAD_REQUEST) ?
+              connection.getErrorStream() : connection.getInputStream();
+          final HttpResponse response = new UrlConnectionResponse(connection, code,
+              (body != null) ? body : new ByteArrayInputStream(new byte[0]));
+          if (!future.setComplete(response)) {
+            response.close();
+          }
+        } catch (IOException | RuntimeException e) {
+          future.setComplete(e);
+        }
+      }
+    });
+
+    return future;
+  }
+  //endregion
+
+  //region Cancellation
+  /** Future disconnecting its connection when cancelled. */
+  private static class ConnectionFuture extends SimpleFuture<HttpResponse> {
+    /** Connection used to send the request. Guarded by {@code this}. */
+    private HttpURLConnection connection;
+    /** Set when the future has been cancelled. Guarded by {@code this}. */
+    private boolean cancelled;
+
+    /**
+     * Set the connection used to send the request.
+     *
+     * @param connection Connection.
+     * @return False if the future has already been cancelled.
+     */
+    private synchronized boolean setConnection(HttpURLConnection connection) {
+      this.connection = connection;
+      return !cancelled;
+    }
+
+    @Override
+    public boolean cancel() {
+      final HttpURLConnection connection;
+      synchronized (this) {
+        cancelled = true;
+        connection = this.connection;
+      }
+      if (connection != null) {
+        connection.disconnect();
+      }
+      return super.cancel();
+    }
+  }
+  //endregion
+
+  //region HttpURLConnection response
+  /** {@link HttpResponse} streaming the body from an {@link HttpURLConnection}. */
+  private static class UrlConnectionResponse extends HttpResponse {
+    /** Connection the response was received on. */
+    private final HttpURLConnection connection;
+    /** HTTP status code. */
+    private final int code;
+    /** Stream of the response body. */
+    private final InputStream body;
+
+    /**
+     * Create a new response.
+     *
+     * @param connection Connection the response was received on.
+     * @param code       HTTP status code.
+     * @param body       Stream of the response body.
+     */
+    private UrlConnectionResponse(HttpURLConnection connection, int code, InputStream body) {
+      this.connection = connection;
+      this.code = code;
+      this.body = body;
+    }
+
+    @Override
+    public int getCode() {
+      return code;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return connection.getHeaderField(name);
+    }
+
+    @Override
+    public String getCharset() {
+      final String contentType = connection.getContentType();
+      if (contentType == null) {
+        return null;
+      }
+      // e.g. "application/xml; charset=utf-8"
+      for (String parameter : contentType.split(";")) {
+        final String trimmed = parameter.trim();
+        if (trimmed.toLowerCase(Locale.US).startsWith("charset=")) {
+          return trimmed.substring("charset=".length()).replace("\"", "");
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public InputStream getBody() {
+      return body;
+    }
+  }
+  //endregion
+}
@@ -0,0 +1,229 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.util;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * Blocking {@link InputStream} fed incrementally by a {@link DataEmitter}.
+ * <p/>
+ * Bytes are handed over from the emitter's reactor thread as they arrive, so a consumer on another
+ * thread can start parsing before the whole HTTP response body has been downloaded. The emitter is
+ * paused whenever more than {@link #windowSize} bytes are waiting to be read, which keeps the
+ * amount of memory used per request bounded regardless of the size of the response.
+ */
+public class DataEmitterInputStream extends InputStream {
+
+  //region Constants
+  /** Default number of buffered bytes after which the emitter is paused. */
+  public static final int DEFAULT_WINDOW_SIZE = 32 * 1024;
+  //endregion
+
+  //region Instance fields
+  /** Emitter supplying the data. */
+  private final DataEmitter emitter;
+  /** Number of buffered bytes after which the emitter is paused. */
+  private final int windowSize;
+  /** Lock guarding the buffer state shared between the reactor and the consumer thread. */
+  private final Object lock = new Object();
+  /** Chunks of data received from the emitter, but not yet read by the consumer. */
+  private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+  /** Buffer used by {@link #read()}. */
+  private final byte[] singleByte = new byte[1];
+  /** Chunk currently being read by the consumer. */
+  private byte[] currentChunk;
+  /** Read position in {@link #currentChunk}. */
+  private int currentPosition;
+  /** Number of bytes received from the emitter, but not yet read by the consumer. */
+  private int bufferedBytes;
+  /** True if the emitter has been paused because the buffer window is full. */
+  private boolean paused;
+  /** True if the emitter has finished sending data. */
+  private boolean ended;
+  /** True if the stream has been closed by the consumer. */
+  private boolean closed;
+  /** Error reported by the emitter, if any. */
+  private Exception error;
+  //endregion
+
+  //region Constructors
+  /**
+   * Create a new InputStream reading from given {@link DataEmitter}, using the
+   * {@link #DEFAULT_WINDOW_SIZE}.
+   * Must be called on the emitter's reactor thread, before any data has been emitted.
+   *
+   * @param emitter Emitter supplying the data.
+   */
+  public DataEmitterInputStream(DataEmitter emitter) {
+    this(emitter, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Create a new InputStream reading from given {@link DataEmitter}.
+   * Must be called on the emitter's reactor thread, before any data has been emitted.
+   *
+   * @param emitter    Emitter supplying the data.
+   * @param windowSize Number of buffered bytes after which the emitter is paused.
+   */
+  public DataEmitterInputStream(DataEmitter emitter, int windowSize) {
+    this.emitter = emitter;
+    this.windowSize = windowSize;
+
+    emitter.setDataCallback(new DataCallback() {
+      @Override
+      public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+        onData(bb);
+      }
+    });
+    emitter.setEndCallback(new CompletedCallback() {
+      @Override
+      public void onCompleted(Exception ex) {
+        onEnd(ex);
+      }
+    });
+  }
+  //endregion
+
+  //region Emitter callbacks
+  /**
+   * Called on the reactor thread when new data is available.
+   *
+   * @param bb Data received from the emitter.
+   */
+  private void onData(ByteBufferList bb) {
+    // The emitter expects all available data to be consumed by the callback.
+    final byte[] chunk = bb.getAllByteArray();
+
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      if (chunk.length > 0) {
+        chunks.add(chunk);
+        bufferedBytes += chunk.length;
+      }
+      // Stop reading from the network until the consumer catches up.
+      if (bufferedBytes >= windowSize && !paused) {
+        paused = true;
+        emitter.pause();
+      }
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Called on the reactor thread when the emitter has finished sending data.
+   *
+   * @param ex Error that caused the emitter to finish early, if any.
+   */
+  private void onEnd(Exception ex) {
+    synchronized (lock) {
+      ended = true;
+      error = ex;
+      lock.notifyAll();
+    }
+  }
+  //endregion
+
+  //region InputStream methods
+  @Override
+  public int read() throws IOException {
+    synchronized (lock) {
+      return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+    }
+  }
+
+  @Override
+  public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+    if (byteCount == 0) {
+      return 0;
+    }
+
+    synchronized (lock) {
+      // Wait for the next chunk of data.
+      while (currentChunk == null) {
+        if (closed) {
+          throw new IOException("Stream closed.");
+        }
+        currentChunk = chunks.poll();
+        if (currentChunk != null) {
+          currentPosition = 0;
+        } else if (error != null) {
+          throw new IOException(error);
+        } else if (ended) {
+          return -1;
+        } else {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+      }
+
+      // Copy data from the current chunk.
+      final int count = Math.min(byteCount, currentChunk.length - currentPosition);
+      System.arraycopy(currentChunk, currentPosition, buffer, byteOffset, count);
+      currentPosition += count;
+      bufferedBytes -= count;
+      if (currentPosition == currentChunk.length) {
+        currentChunk = null;
+      }
+
+      // Resume the emitter once the buffer has been drained to half of the window size.
+      if (paused && bufferedBytes < windowSize / 2) {
+        paused = false;
+        emitter.getServer().post(new Runnable() {
+          @Override
+          public void run() {
+            emitter.resume();
+          }
+        });
+      }
+      return count;
+    }
+  }
+
+  @Override
+  public int available() {
+    synchronized (lock) {
+      return bufferedBytes;
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      chunks.clear();
+      currentChunk = null;
+      bufferedBytes = 0;
+      lock.notifyAll();
+    }
+
+    // Close the connection if the consumer gave up before reaching the end of the stream.
+    emitter.getServer().post(new Runnable() {
+      @Override
+      public void run() {
+        emitter.close();
+      }
+    });
+  }
+  //endregion
+}
@@ -0,0 +1,424 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.util;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe parser for the date formats used by the supported APIs.
+ * <p/>
+ * Unlike {@link java.text.SimpleDateFormat}, the parsers are hand-written, can be shared between
+ * threads and allocate nothing but the returned {@link Date}. Each API endpoint gets its own
+ * DateParser (see {@link #forEndpoint(String)}), which remembers the format that worked last, so
+ * that following dates are parsed without trying each format in turn.
+ */
+public final class DateParser {
+
+  //region Constants
+  /** Value returned by {@link #parse(String, Format)} if the date does not match the format. */
+  public static final long INVALID = Long.MIN_VALUE;
+  /** Three-letter English month names used by {@link Format#RUBY}. */
+  private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+  /** Formats in the order they are tried in, if the last used format doesn't match. */
+  private static final Format[] FORMATS = Format.values();
+  //endregion
+
+  //region Static fields
+  /** DateParsers shared by clients for the same API endpoint. */
+  private static final ConcurrentMap<String, DateParser> ENDPOINT_PARSERS = new ConcurrentHashMap<>();
+  //endregion
+
+  //region Instance fields
+  /**
+   * Time zone used for dates that don't specify one.
+   * Captured once, as {@link TimeZone#getDefault()} returns a new copy on every call.
+   */
+  private final TimeZone localTimeZone;
+  /** Format that was successfully used to parse the previous date. */
+  private volatile Format lastFormat = FORMATS[0];
+  //endregion
+
+  //region Constructors
+  /** Create a new DateParser. Use {@link #forEndpoint(String)} to get a shared instance. */
+  public DateParser() {
+    this.localTimeZone = TimeZone.getDefault();
+  }
+  //endregion
+
+  //region Shared instances
+  /**
+   * Get the DateParser shared by all clients for given API endpoint.
+   *
+   * @param endpoint API endpoint URL.
+   * @return DateParser for given endpoint.
+   */
+  public static DateParser forEndpoint(String endpoint) {
+    final String key = endpoint != null ? endpoint : "";
+    DateParser dateParser = ENDPOINT_PARSERS.get(key);
+    if (dateParser == null) {
+      final DateParser newParser = new DateParser();
+      dateParser = ENDPOINT_PARSERS.putIfAbsent(key, newParser);
+      if (dateParser == null) {
+        dateParser = newParser;
+      }
+    }
+    return dateParser;
+  }
+  //endregion
+
+  //region Parsing dates
+  /**
+   * Parse a date in any of the supported {@link Format}s.
+   * The format that worked for the previous date is tried first.
+   *
+   * @param date Date string.
+   * @return Parsed date. null, if the string is empty.
+   * @throws ParseException The string does not match any of the supported formats.
+   */
+  public Date parse(String date) throws ParseException {
+    if (date == null || date.isEmpty()) {
+      return null;
+    }
+
+    // Try the format used by the last date first.
+    final Format last = lastFormat;
+    long time = parse(date, last);
+    if (time != INVALID) {
+      return new Date(time);
+    }
+
+    // Try each other format in turn.
+    for (Format format : FORMATS) {
+      if (format != last) {
+        time = parse(date, format);
+        if (time != INVALID) {
+          lastFormat = format;
+          return new Date(time);
+        }
+      }
+    }
+
+    throw new ParseException("Unparseable date: \"" + date + "\"", 0);
+  }
+
+  /**
+   * Parse a date in given format.
+   *
+   * @param date   Date string.
+   * @param format Format to parse.
+   * @return Milliseconds since the Unix epoch. {@link #INVALID}, if the date does not match the format.
+   */
+  public long parse(String date, Format format) {
+    switch (format) {
+      case ISO_8601:
+        return parseIso8601(date);
+      case SQL_DATETIME:
+        return parseSqlDatetime(date);
+      case UNIX_TIMESTAMP:
+        return parseUnixTimestamp(date);
+      case RUBY:
+        return parseRuby(date);
+      default:
+        return INVALID;
+    }
+  }
+
+  /**
+   * Parse an ISO 8601 date, such as <code>2016-09-25T14:21:03.123-04:00</code>.
+   * Fractional seconds are optional. Dates without a time zone designator are in UTC.
+   *
+   * @param s Date string.
+   * @return Milliseconds since the Unix epoch. {@link #INVALID}, if the date does not match the format.
+   */
+  private static long parseIso8601(String s) {
+    final int length = s.length();
+    if (length < 19 || s.charAt(10) != 'T') {
+      return INVALID;
+    }
+    final long dateTime = parseDateTime(s);
+    if (dateTime == INVALID) {
+      return INVALID;
+    }
+
+    // Fractional seconds.
+    int i = 19;
+    int millis = 0;
+    if (i < length && s.charAt(i) == '.') {
+      i++;
+      int digits = 0;
+      while (i < length && isDigit(s.charAt(i))) {
+        if (digits < 3) {
+          millis = millis * 10 + (s.charAt(i) - '0');
+        }
+        digits++;
+        i++;
+      }
+      if (digits == 0) {
+        return INVALID;
+      }
+      for (; digits < 3; digits++) {
+        millis *= 10;
+      }
+    }
+
+    // Time zone designator.
+    if (i == length) {
+      return dateTime + millis;
+    }
+    final int offset = parseZoneOffset(s, i, length);
+    if (offset == Integer.MIN_VALUE) {
+      return INVALID;
+    }
+    return dateTime + millis - offset;
+  }
+
+  /**
+   * Parse a date in the <code>yyyy-MM-dd HH:mm:ss</code> format used by Danbooru 1.x.
+   * The date is interpreted in the default time zone.
+   *
+   * @param s Date string.
+   * @return Milliseconds since the Unix epoch. {@link #INVALID}, if the date does not match the format.
+   */
+  private long parseSqlDatetime(String s) {
+    if (s.length() != 19 || s.charAt(10) != ' ') {
+      return INVALID;
+    }
+    final long dateTime = parseDateTime(s);
+    if (dateTime == INVALID) {
+      return INVALID;
+    }
+    // Convert local time to UTC. Uses the offset at the (approximate) instant, to account for DST.
+    return dateTime - localTimeZone.getOffset(dateTime - localTimeZone.getRawOffset());
+  }
+
+  /**
+   * Parse a Unix timestamp in seconds, used by Moebooru-based boards.
+   *
+   * @param s Date string.
+   * @return Milliseconds since the Unix epoch. {@link #INVALID}, if the date does not match the format.
+   */
+  private static long parseUnixTimestamp(String s) {
+    final int length = s.length();
+    // Timestamps longer than 12 digits are too far in the future to be real.
+    if (length == 0 || length > 12) {
+      return INVALID;
+    }
+    long seconds = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if (!isDigit(c)) {
+        return INVALID;
+      }
+      seconds = seconds * 10 + (c - '0');
+    }
+    return seconds * 1000L;
+  }
+
+  /**
+   * Parse a date in the <code>EEE MMM d HH:mm:ss Z yyyy</code> format used by Gelbooru, such as
+   * <code>Sat Oct 15 12:34:56 -0500 2016</code>.
+   *
+   * @param s Date string.
+   * @return Milliseconds since the Unix epoch. {@link #INVALID}, if the date does not match the format.
+   */
+  private static long parseRuby(String s) {
+    final int length = s.length();
+    // Shortest valid date: "Sat Oct 1 12:34:56 -0500 2016".
+    if (length < 29 || s.charAt(3) != ' ' || s.charAt(7) != ' ') {
+      return INVALID;
+    }
+
+    // Month name.
+    int month = -1;
+    for (int m = 0; m < 12; m++) {
+      if (s.regionMatches(true, 4, MONTHS, m * 3, 3)) {
+        month = m + 1;
+        break;
+      }
+    }
+    if (month == -1) {
+      return INVALID;
+    }
+
+    // Day of month. One or two digits.
+    int i = 8;
+    final int dayDigits = s.charAt(i + 1) == ' ' ? 1 : 2;
+    final int day = parseInt(s, i, dayDigits);
+    i += dayDigits;
+    if (day < 1 || s.charAt(i) != ' ' || length != i + 20) {
+      return INVALID;
+    }
+    i++;
+
+    // Time.
+    final int hour = parseInt(s, i, 2);
+    final int minute = parseInt(s, i + 3, 2);
+    final int second = parseInt(s, i + 6, 2);
+    if (hour < 0 || minute < 0 || second < 0 || s.charAt(i + 2) != ':' || s.charAt(i + 5) != ':'
+        || s.charAt(i + 8) != ' ') {
+      return INVALID;
+    }
+    i += 9;
+
+    // Time zone offset and year.
+    final int offset = parseZoneOffset(s, i, i + 5);
+    final int year = parseInt(s, i + 6, 4);
+    if (offset == Integer.MIN_VALUE || s.charAt(i + 5) != ' ' || year < 0) {
+      return INVALID;
+    }
+
+    final long dateTime = toEpochMillis(year, month, day, hour, minute, second);
+    return dateTime != INVALID ? dateTime - offset : INVALID;
+  }
+  //endregion
+
+  //region Helper methods
+  /**
+   * Parse the <code>yyyy-MM-dd?HH:mm:ss</code> part shared by ISO 8601 and SQL dates.
+   *
+   * @param s Date string, at least 19 characters long.
+   * @return Milliseconds since the Unix epoch, in UTC. {@link #INVALID} if the date is malformed.
+   */
+  private static long parseDateTime(String s) {
+    if (s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(13) != ':' || s.charAt(16) != ':') {
+      return INVALID;
+    }
+    final int year = parseInt(s, 0, 4);
+    final int month = parseInt(s, 5, 2);
+    final int day = parseInt(s, 8, 2);
+    final int hour = parseInt(s, 11, 2);
+    final int minute = parseInt(s, 14, 2);
+    final int second = parseInt(s, 17, 2);
+    if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) {
+      return INVALID;
+    }
+    return toEpochMillis(year, month, day, hour, minute, second);
+  }
+
+  /**
+   * Parse a time zone designator: <code>Z</code>, <code>±HH:mm</code>, <code>±HHmm</code> or
+   * <code>±HH</code>.
+   *
+   * @param s     Date string.
+   * @param start Index of the designator.
+   * @param end   Index after the end of the designator.
+   * @return Offset from UTC in milliseconds. {@link Integer#MIN_VALUE} if the designator is invalid.
+   */
+  private static int parseZoneOffset(String s, int start, int end) {
+    if (end > s.length() || start >= end) {
+      return Integer.MIN_VALUE;
+    }
+    final char sign = s.charAt(start);
+    if (sign == 'Z' && end == start + 1) {
+      return 0;
+    }
+    if (sign != '+' && sign != '-') {
+      return Integer.MIN_VALUE;
+    }
+
+    final int hours = parseInt(s, start + 1, 2);
+    final int minutes;
+    switch (end - start) {
+      case 3: // ±HH
+        minutes = 0;
+        break;
+      case 5: // ±HHmm
+        minutes = parseInt(s, start + 3, 2);
+        break;
+      case 6: // ±HH:mm
+        minutes = s.charAt(start + 3) == ':' ? parseInt(s, start + 4, 2) : -1;
+        break;
+      default:
+        return Integer.MIN_VALUE;
+    }
+    if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+      return Integer.MIN_VALUE;
+    }
+
+    final int offset = (hours * 60 + minutes) * 60000;
+    return sign == '-' ? -offset : offset;
+  }
+
+  /**
+   * Parse a fixed-length, non-negative decimal number.
+   *
+   * @param s      String to parse.
+   * @param start  Index of the first digit.
+   * @param digits Number of digits.
+   * @return Parsed number. -1 if the string contains a non-digit character in the given range.
+   */
+  private static int parseInt(String s, int start, int digits) {
+    if (start + digits > s.length()) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = start; i < start + digits; i++) {
+      final char c = s.charAt(i);
+      if (!isDigit(c)) {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * Check if given character is an ASCII digit.
+   *
+   * @param c Character to check.
+   * @return True if the character is a digit.
+   */
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * Convert a date in the proleptic Gregorian calendar to milliseconds since the Unix epoch.
+   *
+   * @param year   Year.
+   * @param month  Month. (1-12)
+   * @param day    Day of month. (1-31)
+   * @param hour   Hour. (0-23)
+   * @param minute Minute. (0-59)
+   * @param second Second. (0-60)
+   * @return Milliseconds since the Unix epoch, in UTC. {@link #INVALID} if a field is out of range.
+   */
+  private static long toEpochMillis(int year, int month, int day, int hour, int minute, int second) {
+    if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+      return INVALID;
+    }
+
+    // Days since 1970-01-01. (See: http://howardhinnant.github.io/date_algorithms.html)
+    final int y = month <= 2 ? year - 1 : year;
+    final int era = (y >= 0 ? y : y - 399) / 400;
+    final int yearOfEra = y - era * 400;
+    final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    final long days = era * 146097L + dayOfEra - 719468;
+
+    return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+  }
+  //endregion
+
+  //region Date format enum
+  /** Date formats used by the supported APIs. */
+  public enum Format {
+    /** ISO 8601, used by Danbooru 2.x and E621. (<code>2016-09-25T14:21:03.123-04:00</code>) */
+    ISO_8601,
+    /** Used by upstream Danbooru 1.x. (<code>2016-09-25 14:21:03</code>, local time) */
+    SQL_DATETIME,
+    /** Unix timestamp in seconds, used by Moebooru. (<code>1474813263</code>) */
+    UNIX_TIMESTAMP,
+    /** Ruby's default Time format, used by Gelbooru. (<code>Sun Sep 25 14:21:03 -0400 2016</code>) */
+    RUBY
+  }
+  //endregion
+}
@@ -0,0 +1,162 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.util;
+
+import java.util.Arrays;
+
+/**
+ * Set of primitive longs, using open addressing with linear probing.
+ * <p/>
+ * Unlike a {@code HashSet<Long>}, values are not boxed and the whole set is stored in a single
+ * array, so adding millions of values doesn't create millions of objects.
+ */
+public class LongHashSet {
+
+  //region Constants
+  /** Default initial capacity. */
+  private static final int DEFAULT_CAPACITY = 16;
+  /** Value marking empty slots. Presence of this value in the set is tracked separately. */
+  private static final long EMPTY = 0;
+  //endregion
+
+  //region Instance fields
+  /** Hash table. Its length is always a power of two. */
+  private long[] table;
+  /** Number of values in {@link #table}. */
+  private int size;
+  /** True if {@link #EMPTY} was added to the set. */
+  private boolean containsEmpty;
+  //endregion
+
+  //region Constructors
+  /** Create a new, empty set. */
+  public LongHashSet() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Create a new, empty set.
+   *
+   * @param expectedSize Number of values the set should hold without resizing.
+   */
+  public LongHashSet(int expectedSize) {
+    // Keep the load factor at or below 0.5, so probe sequences stay short.
+    int capacity = DEFAULT_CAPACITY;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    this.table = new long[capacity];
+  }
+  //endregion
+
+  //region Set operations
+  /**
+   * Add a value to the set.
+   *
+   * @param value Value to add.
+   * @return True if the value was added. False if it was already in the set.
+   */
+  public boolean add(long value) {
+    if (value == EMPTY) {
+      final boolean added = !containsEmpty;
+      containsEmpty = true;
+      return added;
+    }
+
+    final int mask = table.length - 1;
+    int i = mix(value) & mask;
+    while (table[i] != EMPTY) {
+      if (table[i] == value) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    table[i] = value;
+
+    if (++size * 2 > table.length) {
+      resize(table.length * 2);
+    }
+    return true;
+  }
+
+  /**
+   * Check if a value is in the set.
+   *
+   * @param value Value to look for.
+   * @return True if the value is in the set.
+   */
+  public boolean contains(long value) {
+    if (value == EMPTY) {
+      return containsEmpty;
+    }
+
+    final int mask = table.length - 1;
+    int i = mix(value) & mask;
+    while (table[i] != EMPTY) {
+      if (table[i] == value) {
+        return true;
+      }
+      i = (i + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * Get the number of values in the set.
+   *
+   * @return Number of values.
+   */
+  public int size() {
+    return containsEmpty ? size + 1 : size;
+  }
+
+  /** Remove all values from the set. */
+  public void clear() {
+    Arrays.fill(table, EMPTY);
+    size = 0;
+    containsEmpty = false;
+  }
+  //endregion
+
+  //region Hash table
+  /**
+   * Re-hash the values into a table of a different size.
+   *
+   * @param capacity New table length. Must be a power of two.
+   */
+  private void resize(int capacity) {
+    final long[] oldTable = table;
+    final int mask = capacity - 1;
+    table = new long[capacity];
+
+    for (long value : oldTable) {
+      if (value != EMPTY) {
+        int i = mix(value) & mask;
+        while (table[i] != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        table[i] = value;
+      }
+    }
+  }
+
+  /**
+   * Spread the bits of a value, so values differing only in their high bits don't collide.
+   *
+   * @param value Value to hash.
+   * @return Hash code.
+   */
+  private static int mix(long value) {
+    // Finalization step of MurmurHash3.
+    long h = value;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+  //endregion
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.util;
+
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.util.Locale;
+
+import io.github.tjg1.library.norilib.SearchResult;
+
+/**
+ * Remembers where each page of recent searches ends, so API clients can request the next page by
+ * image ID (keyset paging) instead of by page number.
+ * <p/>
+ * Deep page numbers are slow on the server (the database has to skip all previous images) and
+ * drift when new images are uploaded while paging. Requesting images below the lowest ID seen so
+ * far doesn't have either of these problems. Pages requested before the previous page has arrived
+ * (e.g. when prefetching several pages at once) fall back to page numbers.
+ */
+public class PageCursors {
+
+  //region Constants
+  /** Default maximum number of cursors remembered. */
+  public static final int DEFAULT_MAX_ENTRIES = 64;
+  //endregion
+
+  //region Instance fields
+  /** Cursors, by page number and search query. */
+  private final LruCache<String, Long> cursors;
+  //endregion
+
+  //region Constructors
+  /** Create a new cursor cache remembering up to {@link #DEFAULT_MAX_ENTRIES} cursors. */
+  public PageCursors() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Create a new cursor cache.
+   *
+   * @param maxEntries Maximum number of cursors remembered.
+   */
+  public PageCursors(int maxEntries) {
+    this.cursors = new LruCache<>(maxEntries);
+  }
+  //endregion
+
+  //region Cursors
+  /**
+   * Get the cursor to use when requesting a page.
+   *
+   * @param tags Search query. A space-separated list of tags.
+   * @param pid  Page number. (zero-indexed)
+   * @return Cursor of the page. {@link SearchResult#NO_CURSOR} if the previous page hasn't been
+   * fetched, or the query can't be paged by cursor.
+   */
+  public long get(String tags, int pid) {
+    final Long cursor = cursors.get(createKey(tags, pid));
+    return cursor != null ? cursor : SearchResult.NO_CURSOR;
+  }
+
+  /**
+   * Remember where a page ends.
+   *
+   * @param tags         Search query. A space-separated list of tags.
+   * @param pid          Page number of the fetched page. (zero-indexed)
+   * @param searchResult Fetched page.
+   */
+  public void put(String tags, int pid, SearchResult searchResult) {
+    final long cursor = searchResult.getNextPageCursor();
+    if (cursor != SearchResult.NO_CURSOR && supportsCursor(tags)) {
+      cursors.put(createKey(tags, pid + 1), cursor);
+    }
+  }
+
+  /**
+   * Remember where a page ends once it has been fetched.
+   * Unlike cursors remembered by a parser, this also covers pages that weren't parsed again, such
+   * as unmodified pages revalidated by a {@link io.github.tjg1.library.norilib.cache.RevalidationCache}.
+   *
+   * @param tags   Search query. A space-separated list of tags.
+   * @param pid    Page number of the requested page. (zero-indexed)
+   * @param future Future completed with the fetched page.
+   * @return Future completed with the same page, once its cursor is remembered. Cancelling it
+   * cancels the given future.
+   */
+  public Future<SearchResult> put(final String tags, final int pid,
+                                  final Future<SearchResult> future) {
+    final SimpleFuture<SearchResult> result = new SimpleFuture<SearchResult>() {
+      @Override
+      public boolean cancel() {
+        future.cancel();
+        return super.cancel();
+      }
+    };
+    future.setCallback(new FutureCallback<SearchResult>() {
+      @Override
+      public void onCompleted(Exception e, SearchResult searchResult) {
+        if (e == null) {
+          put(tags, pid, searchResult);
+        }
+        result.setComplete(e, searchResult);
+      }
+    });
+    return result;
+  }
+
+  /** Forget all cursors. */
+  public void clear() {
+    cursors.evictAll();
+  }
+
+  /**
+   * Check if results of a query are sorted by descending ID, the default order of Danbooru-style
+   * APIs. Queries sorted using an {@code order:} metatag, or already limited by an {@code id:}
+   * metatag can't be paged by cursor.
+   *
+   * @param tags Search query. A space-separated list of tags.
+   * @return True if the query can be paged by cursor.
+   */
+  public static boolean supportsCursor(String tags) {
+    if (TextUtils.isEmpty(tags)) {
+      return true;
+    }
+    for (String tag : tags.toLowerCase(Locale.US).split(" ")) {
+      // Exclusions (e.g. "-id:1") don't change the sort order, so they are fine.
+      if (tag.startsWith("order:") || tag.startsWith("id:")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Create the cache key of a page.
+   *
+   * @param tags Search query. A space-separated list of tags.
+   * @param pid  Page number. (zero-indexed)
+   * @return Cache key.
+   */
+  private static String createKey(String tags, int pid) {
+    return pid + "\n" + tags;
+  }
+  //endregion
+}
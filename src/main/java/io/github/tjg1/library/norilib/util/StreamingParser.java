@@ -0,0 +1,104 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.util;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.tjg1.library.norilib.transport.HttpResponse;
+
+/**
+ * Parser that parses the response body while it is still being downloaded.
+ * <p/>
+ * Instead of collecting the whole body into a String first, data is streamed from the
+ * {@link HttpResponse} body into {@link #parse(Reader)}, which runs on a background thread.
+ *
+ * @param <T> Type of the parsed result.
+ */
+public abstract class StreamingParser<T> {
+
+  //region Constants
+  /** Charset used when the server does not specify one. */
+  private static final String DEFAULT_CHARSET = "UTF-8";
+  /**
+   * Threads used to run the parsers.
+   * Parsers block while waiting for data, so they can't run on the reactor thread.
+   */
+  private static final Executor PARSER_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+    /** Number of threads created so far. Used to name new threads. */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      final Thread thread = new Thread(runnable, "norilib-parser-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  //endregion
+
+  //region Instance fields
+  /** Response being parsed. Set before {@link #parse(Reader)} is called. */
+  private volatile HttpResponse response;
+  //endregion
+
+  //region Parsing the response body
+  /**
+   * Parse the body of a response on a background thread. The response is closed afterwards.
+   *
+   * @param response Response to parse.
+   * @return Future completed with the parsed result.
+   */
+  public Future<T> parse(final HttpResponse response) {
+    final SimpleFuture<T> future = new SimpleFuture<>();
+    this.response = response;
+    final String charset = response.getCharset() != null ? response.getCharset() : DEFAULT_CHARSET;
+
+    PARSER_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          future.setComplete(parse(new InputStreamReader(response.getBody(), charset)));
+        } catch (Exception e) {
+          future.setComplete(e);
+        } finally {
+          response.close();
+        }
+      }
+    });
+
+    return future;
+  }
+
+  /**
+   * Parse the response body. Called on a background thread.
+   * Reads from the Reader block until more data has been received from the server.
+   *
+   * @param reader Reader streaming the HTTP response body.
+   * @return Parsed result.
+   * @throws IOException Network error or malformed response.
+   */
+  protected abstract T parse(Reader reader) throws IOException;
+
+  /**
+   * Get the response being parsed. Can be called from {@link #parse(Reader)}.
+   *
+   * @return Response being parsed.
+   */
+  protected HttpResponse getResponse() {
+    return response;
+  }
+  //endregion
+}
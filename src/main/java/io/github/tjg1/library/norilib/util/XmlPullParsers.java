@@ -0,0 +1,67 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014-2016 Tomasz Jan Góralczyk <tomg@fastmail.uk>
+ * License: ISC
+ */
+
+package io.github.tjg1.library.norilib.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.Reader;
+
+/**
+ * Provides {@link XmlPullParser}s for the API clients.
+ * <p/>
+ * Looking up the {@link XmlPullParserFactory} and creating a new parser for every response is
+ * expensive, so the factory is created once and each thread re-uses its own parser.
+ */
+public abstract class XmlPullParsers {
+
+  //region Static fields
+  /** Factory shared by all threads. Lazily initialized by {@link #getFactory()}. */
+  private static XmlPullParserFactory factory;
+  /** Parser re-used by each thread. Parsers are not thread-safe. */
+  private static final ThreadLocal<XmlPullParser> PARSER = new ThreadLocal<>();
+  //endregion
+
+  //region Getting parsers
+  /**
+   * Get an {@link XmlPullParser} reading from given input.
+   * The parser is owned by the calling thread and must not be passed to other threads. It is reset
+   * and returned again by the next call from the same thread.
+   *
+   * @param input Reader to parse.
+   * @return XML parser reading from given input.
+   * @throws XmlPullParserException Error creating the parser.
+   */
+  public static XmlPullParser newPullParser(Reader input) throws XmlPullParserException {
+    XmlPullParser xpp = PARSER.get();
+    if (xpp == null) {
+      xpp = getFactory().newPullParser();
+      PARSER.set(xpp);
+    }
+    // Setting new input resets the parser state.
+    xpp.setInput(input);
+    return xpp;
+  }
+
+  /**
+   * Get the shared {@link XmlPullParserFactory}, creating it if needed.
+   *
+   * @return Shared XML parser factory.
+   * @throws XmlPullParserException Error creating the factory.
+   */
+  private static synchronized XmlPullParserFactory getFactory() throws XmlPullParserException {
+    if (factory == null) {
+      // Disable namespace awareness for security reasons.
+      // See: (http://lists.w3.org/Archives/Public/public-xmlsec/2009Dec/att-0000/sws5-jensen.pdf).
+      factory = XmlPullParserFactory.newInstance();
+      factory.setNamespaceAware(false);
+    }
+    return factory;
+  }
+  //endregion
+}